@@ -37,8 +37,7 @@ import android.media.ImageReader.OnImageAvailableListener;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.Log;
 import android.util.Size;
@@ -60,15 +59,20 @@ import androidx.core.content.ContextCompat;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
-import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
-import io.reactivex.disposables.Disposable;
-import thesis.rttsd_thesis.env.ImageUtils;
-import thesis.rttsd_thesis.mediaplayer.MediaPlayerHolder;
+import thesis.rttsd_thesis.env.YuvConverter;
+import thesis.rttsd_thesis.env.YuvTensorSampler;
+import thesis.rttsd_thesis.mediaplayer.MediaPlayerAdapter;
+import thesis.rttsd_thesis.mediaplayer.SoundPoolPlayer;
 import thesis.rttsd_thesis.model.bus.MessageEventBus;
+import thesis.rttsd_thesis.pipeline.FrameMailbox;
+import thesis.rttsd_thesis.pipeline.FramePool;
+import thesis.rttsd_thesis.pipeline.RefCountedFrame;
 import thesis.rttsd_thesis.model.bus.model.EventGpsDisabled;
 import thesis.rttsd_thesis.model.bus.model.EventUpdateLocation;
 import thesis.rttsd_thesis.model.entity.Data;
@@ -83,18 +87,17 @@ public abstract class CameraActivity extends AppCompatActivity
         View.OnClickListener {
   private static final int PERMISSIONS_REQUEST = 1;
   private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
-  private static Handler handler;
   protected int previewWidth = 0;
   protected int previewHeight = 0;
-  //private Handler handler;
-  private HandlerThread handlerThread;
   private boolean useCamera2API;
-  private boolean isProcessingFrame = false;
-  private final byte[][] yuvBytes = new byte[3][];
-  private int[] rgbBytes = null;
-  private int yRowStride;
-  private Runnable postInferenceCallback;
-  private Runnable imageConverter;
+  // One frame filled by the camera, one waiting in the mailbox and one being converted.
+  private static final int CAMERA_FRAMES = 3;
+  private FramePool<CameraFrame> cameraFrames;
+  private final FrameMailbox<CameraFrame> frameMailbox = new FrameMailbox<>();
+  private final AtomicLong droppedFrames = new AtomicLong();
+  // Only advanced on the camera thread.
+  private long frameSequence;
+  private final YuvConverter yuvConverter = YuvConverter.getInstance();
 
   private LinearLayout gestureLayout;
   private BottomSheetBehavior<LinearLayout> sheetBehavior;
@@ -103,14 +106,13 @@ public abstract class CameraActivity extends AppCompatActivity
   protected ImageView bottomSheetArrowImageView;
   private TextView threadsTextView,signsTextView;
 
-  private static Boolean notificationSpeed = true;
   private SwitchCompat notification;
 
   private int speedLimit = 999;
 
   private CompositeDisposable compositeDisposable;
   Data data;
-  protected MediaPlayerHolder mediaPlayerHolder;
+  protected MediaPlayerAdapter mediaPlayerHolder;
 
   @Override
   protected void onCreate(final Bundle savedInstanceState) {
@@ -119,10 +121,11 @@ public abstract class CameraActivity extends AppCompatActivity
 
     setContentView(R.layout.tfe_od_activity_camera);
 
-    final Disposable subscribe = Observable.interval(5L, TimeUnit.SECONDS)
-            .timeInterval()
-            .observeOn(AndroidSchedulers.mainThread())
-            .subscribe(v -> notificationSpeed = true);
+    final List<CameraFrame> frames = new ArrayList<>(CAMERA_FRAMES);
+    for (int i = 0; i < CAMERA_FRAMES; i++) {
+      frames.add(new CameraFrame());
+    }
+    cameraFrames = new FramePool<>(frames);
 
     setCallBack();
     setupViews();
@@ -146,7 +149,8 @@ public abstract class CameraActivity extends AppCompatActivity
     bottomSheetArrowImageView = findViewById(R.id.bottom_sheet_arrow);
     notification = findViewById(R.id.notification_switch);
 
-    mediaPlayerHolder = new MediaPlayerHolder(getApplicationContext());
+    mediaPlayerHolder = new SoundPoolPlayer(getApplicationContext());
+    mediaPlayerHolder.preload(R.raw.speed_limit_exceeded);
 
     ViewTreeObserver vto = gestureLayout.getViewTreeObserver();
     vto.addOnGlobalLayoutListener(
@@ -246,8 +250,8 @@ public abstract class CameraActivity extends AppCompatActivity
     if (data.getLocation().hasSpeed()) {
       double speed = data.getLocation().getSpeed() * 3.6;
 
-      if (speed > this.speedLimit && notification.isChecked() && getNotificationSpeed()) {
-        setNotificationSpeed(false);
+      // Repeats are held back by the announcement cooldown.
+      if (speed > this.speedLimit && notification.isChecked()) {
         mediaPlayerHolder.loadMedia(R.raw.speed_limit_exceeded);
       }
       String text = getString(R.string.currentSpeedText1) +" "+ (int) speed +" "+ getString(R.string.currentSpeedText2);
@@ -255,11 +259,81 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
-  protected int[] getRgbBytes() {
-    imageConverter.run();
+  /**
+   * Takes the latest camera frame, or returns null if there is no new frame since the last call.
+   * The caller owns one reference and gives it back with {@link CameraFrame#release()} once the
+   * frame has been read, the last release returns its image or buffer to the camera.
+   */
+  protected CameraFrame takeLatestFrame() {
+    return frameMailbox.take();
+  }
+
+  /**
+   * Converts a frame to ARGB at the full preview resolution.
+   *
+   * @param rgbBytes previewWidth * previewHeight array receiving the pixels.
+   */
+  protected int[] getRgbBytes(CameraFrame frame, int[] rgbBytes) {
+    if (frame.nv21Bytes != null) {
+      yuvConverter.convertYUV420SPToARGB8888(frame.nv21Bytes, previewWidth, previewHeight, rgbBytes);
+    } else {
+      yuvConverter.convertYUV420ToARGB8888(
+              frame.planes[0],
+              frame.planes[1],
+              frame.planes[2],
+              previewWidth,
+              previewHeight,
+              frame.yRowStride,
+              frame.uvRowStride,
+              frame.uvPixelStride,
+              rgbBytes);
+    }
     return rgbBytes;
   }
 
+  /**
+   * Samples a frame straight into a model input buffer, without the full resolution RGB
+   * conversion done by {@link #getRgbBytes}.
+   *
+   * @param argbOut Optional array that also receives the sampled ARGB pixels, may be null.
+   */
+  protected void fillInputBuffer(
+          CameraFrame frame, YuvTensorSampler sampler, ByteBuffer input, int[] argbOut) {
+    if (frame.nv21Bytes != null) {
+      sampler.sampleNV21(frame.nv21Bytes, input, argbOut);
+    } else {
+      sampler.sample(
+              frame.planes[0], frame.planes[1], frame.planes[2],
+              frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, input, argbOut);
+    }
+  }
+
+  /** Frames the camera delivered that were replaced by a newer one before being taken. */
+  public long getReplacedFrameCount() {
+    return frameMailbox.getReplacedCount();
+  }
+
+  /** Frames the camera delivered that could not be handed over at all. */
+  public long getDroppedFrameCount() {
+    return droppedFrames.get();
+  }
+
+  /** Frames taken for processing. */
+  public long getTakenFrameCount() {
+    return frameMailbox.getTakenCount();
+  }
+
+  /** Hands a filled frame to the consumer, recycling the one it replaces. */
+  private void postFrame(CameraFrame frame) {
+    frame.timestamp = SystemClock.uptimeMillis();
+    frame.sequence = frameSequence++;
+    final CameraFrame replaced = frameMailbox.post(frame);
+    if (replaced != null) {
+      replaced.release();
+    }
+    processImage();
+  }
+
   /**
    * Callback for android.hardware.Camera API
    */
@@ -267,30 +341,25 @@ public abstract class CameraActivity extends AppCompatActivity
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
     try {
       // Initialize the storage bitmaps once when the resolution is known.
-      if (rgbBytes == null) {
+      if (previewWidth == 0) {
         Camera.Size previewSize = camera.getParameters().getPreviewSize();
         previewHeight = previewSize.height;
         previewWidth = previewSize.width;
-        rgbBytes = new int[previewWidth * previewHeight];
         onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
       }
     } catch (final Exception e) {
+      camera.addCallbackBuffer(bytes);
       return;
     }
 
-    isProcessingFrame = true;
-    yuvBytes[0] = bytes;
-    yRowStride = previewWidth;
-
-    imageConverter =
-            () -> ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
-
-    postInferenceCallback =
-            () -> {
-              camera.addCallbackBuffer(bytes);
-              isProcessingFrame = false;
-            };
-    //processImage();
+    final CameraFrame frame = cameraFrames.acquire();
+    if (frame == null) {
+      droppedFrames.incrementAndGet();
+      camera.addCallbackBuffer(bytes);
+      return;
+    }
+    frame.setNv21(bytes, camera);
+    postFrame(frame);
   }
 
   /**
@@ -302,48 +371,31 @@ public abstract class CameraActivity extends AppCompatActivity
     if (previewWidth == 0 || previewHeight == 0) {
       return;
     }
-    if (rgbBytes == null) {
-      rgbBytes = new int[previewWidth * previewHeight];
-    }
+    final CameraFrame frame = cameraFrames.acquire();
+    boolean posted = false;
     try {
       final Image image = reader.acquireLatestImage();
 
       if (image == null) {
+        if (frame != null) {
+          frame.release();
+        }
         return;
       }
 
-      if (isProcessingFrame) {
+      if (frame == null) {
+        droppedFrames.incrementAndGet();
         image.close();
         return;
       }
-      isProcessingFrame = true;
       Trace.beginSection("imageAvailable");
-      final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
-      yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
-
-      imageConverter =
-              () -> ImageUtils.convertYUV420ToARGB8888(
-                      yuvBytes[0],
-                      yuvBytes[1],
-                      yuvBytes[2],
-                      previewWidth,
-                      previewHeight,
-                      yRowStride,
-                      uvRowStride,
-                      uvPixelStride,
-                      rgbBytes);
-
-      postInferenceCallback =
-              () -> {
-                image.close();
-                isProcessingFrame = false;
-              };
-
-      processImage();
+      frame.setImage(image);
+      posted = true;
+      postFrame(frame);
     } catch (final Exception e) {
+      if (frame != null && !posted) {
+        frame.release();
+      }
       Trace.endSection();
       return;
     }
@@ -358,23 +410,16 @@ public abstract class CameraActivity extends AppCompatActivity
   @Override
   public synchronized void onResume() {
     super.onResume();
-
-    handlerThread = new HandlerThread("inference");
-    handlerThread.start();
-    handler = new Handler(handlerThread.getLooper());
   }
 
   @Override
   public synchronized void onPause() {
-    handlerThread.quitSafely();
-    try {
-      handlerThread.join();
-      handlerThread = null;
-      handler = null;
-    } catch (final InterruptedException e) {
-        Log.e("onPause",e.getMessage());
-    }
     super.onPause();
+    // The camera is closed now, give back the frame nobody is going to take.
+    final CameraFrame waiting = frameMailbox.clear();
+    if (waiting != null) {
+      waiting.release();
+    }
   }
 
   @Override
@@ -385,18 +430,13 @@ public abstract class CameraActivity extends AppCompatActivity
   @Override
   public synchronized void onDestroy() {
     super.onDestroy();
+    mediaPlayerHolder.release();
     if (compositeDisposable != null) {
       compositeDisposable.dispose();
       compositeDisposable = null;
     }
   }
 
-  public static synchronized void runInBackground(final Runnable r) {
-    if (handler != null) {
-      handler.post(r);
-    }
-  }
-
   @Override
   public void onRequestPermissionsResult(
           final int requestCode, @NonNull final String[] permissions, final int[] grantResults) {
@@ -506,26 +546,8 @@ public abstract class CameraActivity extends AppCompatActivity
     getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
   }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
-    }
-  }
-
   public boolean isDebug() { return false; }
 
-  protected void readyForNextImage() {
-    if (postInferenceCallback != null) {
-      postInferenceCallback.run();
-    }
-  }
-
   protected int getScreenOrientation() {
     switch (getWindowManager().getDefaultDisplay().getRotation()) {
       case Surface.ROTATION_270:
@@ -651,16 +673,68 @@ public abstract class CameraActivity extends AppCompatActivity
 
   }
 
-  public static Boolean getNotificationSpeed() {
-    return notificationSpeed;
-  }
-
-  public void setNotificationSpeed(Boolean notificationSpeed) {
-    CameraActivity.notificationSpeed = notificationSpeed;
-  }
-
   public void setSpeedLimit(int speedLimit) {
     this.speedLimit = speedLimit;
   }
 
+  /**
+   * A camera frame handed from the camera thread to the detector. The planes are read in place,
+   * so the image or buffer behind them stays with the frame until its last reference is released.
+   */
+  protected static final class CameraFrame extends RefCountedFrame {
+    private final ByteBuffer[] planes = new ByteBuffer[3];
+    private Image image;
+    private byte[] nv21Bytes;
+    private Camera camera;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private long timestamp;
+    private long sequence;
+
+    private void setImage(Image image) {
+      this.image = image;
+      final Plane[] imagePlanes = image.getPlanes();
+      for (int i = 0; i < imagePlanes.length; ++i) {
+        planes[i] = imagePlanes[i].getBuffer();
+      }
+      yRowStride = imagePlanes[0].getRowStride();
+      uvRowStride = imagePlanes[1].getRowStride();
+      uvPixelStride = imagePlanes[1].getPixelStride();
+    }
+
+    private void setNv21(byte[] bytes, Camera camera) {
+      this.nv21Bytes = bytes;
+      this.camera = camera;
+    }
+
+    /** Position of the frame in the camera stream, increasing by one per delivered frame. */
+    public long getSequence() {
+      return sequence;
+    }
+
+    /** {@link SystemClock#uptimeMillis()} when the camera delivered the frame. */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /** Gives the image or buffer back to the camera before the frame goes back to the pool. */
+    @Override
+    protected void onRecycle() {
+      planes[0] = planes[1] = planes[2] = null;
+      if (image != null) {
+        image.close();
+        image = null;
+      }
+      if (nv21Bytes != null) {
+        try {
+          camera.addCallbackBuffer(nv21Bytes);
+        } catch (final RuntimeException e) {
+          // The camera was released while the frame was waiting.
+        }
+        nv21Bytes = null;
+        camera = null;
+      }
+    }
+  }
 }
@@ -417,10 +417,11 @@ public class CameraConnectionFragment extends Fragment {
       previewRequestBuilder.addTarget(surface);
 
 
-      // Create the reader for the preview frames.
+      // Create the reader for the preview frames. One image is filled while one waits for the
+      // detector and one is being converted.
       previewReader =
           ImageReader.newInstance(
-              previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+              previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 3);
 
       previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
       previewRequestBuilder.addTarget(previewReader.getSurface());
@@ -0,0 +1,99 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+/**
+ * Helpers for boxes stored as x1, y1, x2, y2 in a flat float array, four entries per box.
+ */
+public final class Boxes {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private Boxes() {
+    }
+
+    public static float area(float[] boxes, int i) {
+        final int b = i * 4;
+        return Math.max(0, boxes[b + 2] - boxes[b]) * Math.max(0, boxes[b + 3] - boxes[b + 1]);
+    }
+
+    /** Intersection over union of box {@code i} and box {@code j}. */
+    public static float iou(float[] boxes, int i, int j) {
+        final int a = i * 4;
+        final int b = j * 4;
+        final float w = Math.min(boxes[a + 2], boxes[b + 2]) - Math.max(boxes[a], boxes[b]);
+        final float h = Math.min(boxes[a + 3], boxes[b + 3]) - Math.max(boxes[a + 1], boxes[b + 1]);
+        if (w <= 0 || h <= 0) return 0;
+        final float intersection = w * h;
+        final float union = area(boxes, i) + area(boxes, j) - intersection;
+        return union > 0 ? intersection / union : 0;
+    }
+
+    /** Intersection over union of two boxes given by their corners. */
+    public static float iou(float l1, float t1, float r1, float b1,
+                            float l2, float t2, float r2, float b2) {
+        final float w = Math.min(r1, r2) - Math.max(l1, l2);
+        final float h = Math.min(b1, b2) - Math.max(t1, t2);
+        if (w <= 0 || h <= 0) return 0;
+        final float intersection = w * h;
+        final float union = (r1 - l1) * (b1 - t1) + (r2 - l2) * (b2 - t2) - intersection;
+        return union > 0 ? intersection / union : 0;
+    }
+
+    /**
+     * Fills {@code order} with 0..count-1 sorted by descending score, without allocating.
+     */
+    public static void sortByScore(int[] order, float[] scores, int count) {
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        quickSort(order, scores, 0, count - 1);
+    }
+
+    private static void quickSort(int[] order, float[] scores, int lo, int hi) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            final float pivot = scores[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (scores[order[i]] > pivot) i++;
+                while (scores[order[j]] < pivot) j--;
+                if (i <= j) {
+                    final int tmp = order[i];
+                    order[i++] = order[j];
+                    order[j--] = tmp;
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth.
+            if (j - lo < hi - i) {
+                quickSort(order, scores, lo, j);
+                lo = i;
+            } else {
+                quickSort(order, scores, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            final int value = order[i];
+            final float score = scores[value];
+            int j = i - 1;
+            while (j >= lo && scores[order[j]] < score) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = value;
+        }
+    }
+}
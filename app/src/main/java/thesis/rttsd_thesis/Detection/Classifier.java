@@ -21,16 +21,104 @@ import android.graphics.RectF;
 
 import androidx.annotation.NonNull;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
 /**
  * Generic interface for interacting with different recognition engines.
+ *
+ * <p>The asynchronous methods may call {@link #recognizeImage} and {@link #recognizeImages} from
+ * several background threads at once, implementations have to allow that.
  */
 public interface Classifier {
     List<Recognition> recognizeImage(Bitmap bitmap);
 
+    /**
+     * Recognizes several images, the results are in the same order. Engines that can run images
+     * together or side by side override this, the default runs them one after another.
+     */
+    default List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps) {
+        final List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+        for (Bitmap bitmap : bitmaps) {
+            results.add(recognizeImage(bitmap));
+        }
+        return results;
+    }
+
+    /**
+     * Recognizes a frame on a background thread. The result is delivered on {@code observeOn},
+     * {@link Single#toFuture()} turns it into a plain future. Nothing runs until subscribed.
+     */
+    default Single<FrameResult> recognizeImageAsync(final Frame frame, final Scheduler observeOn) {
+        return Single.fromCallable(() -> new FrameResult(frame, recognizeImage(frame.bitmap)))
+                .subscribeOn(Schedulers.io())
+                .observeOn(observeOn);
+    }
+
+    /**
+     * Recognizes frames with {@link #recognizeImages} on a background thread. The results are
+     * delivered together on {@code observeOn}, in the order of {@code frames}.
+     */
+    default Single<List<FrameResult>> recognizeImagesAsync(
+            final List<Frame> frames, final Scheduler observeOn) {
+        return Single.fromCallable(() -> {
+            final List<Bitmap> bitmaps = new ArrayList<>(frames.size());
+            for (Frame frame : frames) {
+                bitmaps.add(frame.bitmap);
+            }
+            final List<List<Recognition>> recognitions = recognizeImages(bitmaps);
+            final List<FrameResult> results = new ArrayList<>(frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                results.add(new FrameResult(frames.get(i), recognitions.get(i)));
+            }
+            return results;
+        }).subscribeOn(Schedulers.io()).observeOn(observeOn);
+    }
+
     void setNumThreads(int num_threads);
 
+    /**
+     * An image to recognize, tagged with the camera frame it was taken from.
+     */
+    class Frame {
+        public final Bitmap bitmap;
+
+        /**
+         * Position of the frame in the camera stream.
+         */
+        public final long sequence;
+
+        /**
+         * {@link android.os.SystemClock#uptimeMillis()} when the frame was captured.
+         */
+        public final long timestamp;
+
+        public Frame(final Bitmap bitmap, final long sequence, final long timestamp) {
+            this.bitmap = bitmap;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * What was recognized in a {@link Frame}, with the frame's sequence number and timestamp.
+     */
+    class FrameResult {
+        public final long sequence;
+        public final long timestamp;
+        public final List<Recognition> recognitions;
+
+        public FrameResult(final Frame frame, final List<Recognition> recognitions) {
+            this.sequence = frame.sequence;
+            this.timestamp = frame.timestamp;
+            this.recognitions = recognitions;
+        }
+    }
+
     /**
      * An immutable result returned by a Classifier describing what was recognized.
      */
@@ -58,6 +146,18 @@ public interface Classifier {
 
         private int detectedClass;
 
+        /**
+         * Id of the traffic sign in the {@link SignTable}, {@link SignTable#UNKNOWN} until the sign
+         * is classified.
+         */
+        private int signId = SignTable.UNKNOWN;
+
+        /**
+         * Id of the tracked object this is a detection of, stable across frames, or -1 until the
+         * tracker has confirmed the object.
+         */
+        private int trackId = -1;
+
         public Recognition(
                 final String id, final String title, final Float confidence, final RectF location) {
             this.id = id;
@@ -98,6 +198,22 @@ public interface Classifier {
             return detectedClass;
         }
 
+        public int getSignId() {
+            return signId;
+        }
+
+        public void setSignId(int signId) {
+            this.signId = signId;
+        }
+
+        public int getTrackId() {
+            return trackId;
+        }
+
+        public void setTrackId(int trackId) {
+            this.trackId = trackId;
+        }
+
         public void setConfidence(float confidence){this.confidence = confidence;}
 
         public void setTitle(String title){this.title = title;}
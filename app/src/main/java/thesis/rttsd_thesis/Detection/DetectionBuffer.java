@@ -0,0 +1,270 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import thesis.rttsd_thesis.tracking.SortTracker;
+
+/**
+ * The detections of one frame in parallel primitive arrays, from the decoder through suppression,
+ * tracking, classification and drawing.
+ *
+ * <p>Each detection is an index. Its box, score, class, track and sign live at that index in the
+ * arrays, which grow when needed and are reused by {@link #clear()}, so a frame pool of buffers
+ * allocates nothing once warmed up. {@link Classifier.Recognition} objects are only built on
+ * request, for the interface methods and logging.
+ *
+ * <p>Not thread safe, a buffer belongs to one frame and the stages hand the frame on.
+ */
+public class DetectionBuffer {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private float[] boxes;
+    private float[] scores;
+    private int[] classes;
+    private int[] trackIds;
+    private int[] candidateTrackIds;
+    private int[] signIds;
+    private float[] voteShares;
+    private String[] titles;
+    private int count;
+    // Only for transformBoxes, created on first use.
+    private RectF scratch;
+
+    public DetectionBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public DetectionBuffer(int capacity) {
+        boxes = new float[capacity * 4];
+        scores = new float[capacity];
+        classes = new int[capacity];
+        trackIds = new int[capacity];
+        candidateTrackIds = new int[capacity];
+        signIds = new int[capacity];
+        voteShares = new float[capacity];
+        titles = new String[capacity];
+    }
+
+    public void clear() {
+        Arrays.fill(titles, 0, count, null);
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Appends a detection with no track and no sign yet.
+     *
+     * @return its index.
+     */
+    public int add(float left, float top, float right, float bottom, float score,
+                   int detectedClass, String title) {
+        if (count == scores.length) {
+            grow();
+        }
+        final int i = count++;
+        boxes[i * 4] = left;
+        boxes[i * 4 + 1] = top;
+        boxes[i * 4 + 2] = right;
+        boxes[i * 4 + 3] = bottom;
+        scores[i] = score;
+        classes[i] = detectedClass;
+        trackIds[i] = SortTracker.NO_TRACK;
+        candidateTrackIds[i] = SortTracker.NO_TRACK;
+        signIds[i] = SignTable.UNKNOWN;
+        voteShares[i] = 0;
+        titles[i] = title;
+        return i;
+    }
+
+    /**
+     * Keeps the first {@code maxCount} detections scoring at least {@code minScore}, in their
+     * order, and drops the rest.
+     */
+    public void retain(float minScore, int maxCount) {
+        int kept = 0;
+        for (int i = 0; i < count && kept < maxCount; i++) {
+            if (scores[i] < minScore) {
+                continue;
+            }
+            if (kept != i) {
+                System.arraycopy(boxes, i * 4, boxes, kept * 4, 4);
+                scores[kept] = scores[i];
+                classes[kept] = classes[i];
+                trackIds[kept] = trackIds[i];
+                candidateTrackIds[kept] = candidateTrackIds[i];
+                signIds[kept] = signIds[i];
+                voteShares[kept] = voteShares[i];
+                titles[kept] = titles[i];
+            }
+            kept++;
+        }
+        Arrays.fill(titles, kept, count, null);
+        count = kept;
+    }
+
+    /** Maps every box with the matrix, to move them to another coordinate system. */
+    public void transformBoxes(Matrix matrix) {
+        if (scratch == null) {
+            scratch = new RectF();
+        }
+        for (int i = 0; i < count; i++) {
+            getBox(i, scratch);
+            matrix.mapRect(scratch);
+            setBox(i, scratch);
+        }
+    }
+
+    public void getBox(int i, RectF outBox) {
+        outBox.set(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+    }
+
+    public void setBox(int i, RectF box) {
+        boxes[i * 4] = box.left;
+        boxes[i * 4 + 1] = box.top;
+        boxes[i * 4 + 2] = box.right;
+        boxes[i * 4 + 3] = box.bottom;
+    }
+
+    public float getLeft(int i) {
+        return boxes[i * 4];
+    }
+
+    public float getTop(int i) {
+        return boxes[i * 4 + 1];
+    }
+
+    public float getRight(int i) {
+        return boxes[i * 4 + 2];
+    }
+
+    public float getBottom(int i) {
+        return boxes[i * 4 + 3];
+    }
+
+    public float getWidth(int i) {
+        return boxes[i * 4 + 2] - boxes[i * 4];
+    }
+
+    public float getHeight(int i) {
+        return boxes[i * 4 + 3] - boxes[i * 4 + 1];
+    }
+
+    public float getArea(int i) {
+        return getWidth(i) * getHeight(i);
+    }
+
+    public float getScore(int i) {
+        return scores[i];
+    }
+
+    public void setScore(int i, float score) {
+        scores[i] = score;
+    }
+
+    public int getDetectedClass(int i) {
+        return classes[i];
+    }
+
+    /** The id of the detection's track, {@link SortTracker#NO_TRACK} if it has no confirmed one. */
+    public int getTrackId(int i) {
+        return trackIds[i];
+    }
+
+    public void setTrackId(int i, int trackId) {
+        trackIds[i] = trackId;
+    }
+
+    /**
+     * The id of the detection's track also while it is tentative, {@link SortTracker#NO_TRACK} if
+     * it has none. Equal to {@link #getTrackId} once the track is confirmed.
+     */
+    public int getCandidateTrackId(int i) {
+        return candidateTrackIds[i];
+    }
+
+    public void setCandidateTrackId(int i, int trackId) {
+        candidateTrackIds[i] = trackId;
+    }
+
+    public int getSignId(int i) {
+        return signIds[i];
+    }
+
+    public void setSignId(int i, int signId) {
+        signIds[i] = signId;
+    }
+
+    /**
+     * The share of the track's recent classifications that named its sign, 0 while no sign is
+     * committed. The score stays the one of the stage that named the sign.
+     */
+    public float getVoteShare(int i) {
+        return voteShares[i];
+    }
+
+    public void setVoteShare(int i, float voteShare) {
+        voteShares[i] = voteShare;
+    }
+
+    public String getTitle(int i) {
+        return titles[i];
+    }
+
+    public void setTitle(int i, String title) {
+        titles[i] = title;
+    }
+
+    /** A new recognition with the state of one detection. */
+    public Classifier.Recognition toRecognition(int i) {
+        final Classifier.Recognition recognition = new Classifier.Recognition(
+                "0", titles[i], scores[i],
+                new RectF(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]),
+                classes[i]);
+        recognition.setTrackId(trackIds[i]);
+        recognition.setSignId(signIds[i]);
+        return recognition;
+    }
+
+    /** New recognitions of all detections, in order. */
+    public ArrayList<Classifier.Recognition> toRecognitions() {
+        final ArrayList<Classifier.Recognition> recognitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recognitions.add(toRecognition(i));
+        }
+        return recognitions;
+    }
+
+    private void grow() {
+        final int capacity = Math.max(INITIAL_CAPACITY, scores.length * 2);
+        boxes = Arrays.copyOf(boxes, capacity * 4);
+        scores = Arrays.copyOf(scores, capacity);
+        classes = Arrays.copyOf(classes, capacity);
+        trackIds = Arrays.copyOf(trackIds, capacity);
+        candidateTrackIds = Arrays.copyOf(candidateTrackIds, capacity);
+        signIds = Arrays.copyOf(signIds, capacity);
+        voteShares = Arrays.copyOf(voteShares, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+    }
+}
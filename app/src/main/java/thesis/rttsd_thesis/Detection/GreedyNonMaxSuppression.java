@@ -0,0 +1,96 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import java.util.Arrays;
+
+/**
+ * Greedy non maximum suppression with a single sort over all classes.
+ *
+ * <p>Per class suppression is done by shifting every box by {@code class * (max coordinate + 1)}
+ * so boxes of different classes can never overlap, which lets all classes go through one pass.
+ * The pass stops as soon as {@code topK} candidates are kept.
+ */
+public class GreedyNonMaxSuppression implements NonMaxSuppression {
+    private final float iouThreshold;
+    private final int topK;
+    private final boolean classAgnostic;
+
+    private int[] order = new int[0];
+    private boolean[] suppressed = new boolean[0];
+    private float[] shifted = new float[0];
+
+    /**
+     * @param iouThreshold candidates overlapping a kept one by at least this much are dropped.
+     * @param topK maximum number of candidates to keep.
+     * @param classAgnostic if true, boxes of different classes suppress each other too.
+     */
+    public GreedyNonMaxSuppression(float iouThreshold, int topK, boolean classAgnostic) {
+        this.iouThreshold = iouThreshold;
+        this.topK = topK;
+        this.classAgnostic = classAgnostic;
+    }
+
+    @Override
+    public int apply(float[] boxes, float[] scores, int[] classes, int count, int[] keep) {
+        if (count == 0) return 0;
+        ensureCapacity(count);
+        Boxes.sortByScore(order, scores, count);
+
+        final float[] candidates = classAgnostic ? boxes : shiftByClass(boxes, classes, count);
+
+        int kept = 0;
+        for (int i = 0; i < count && kept < topK; i++) {
+            final int current = order[i];
+            if (suppressed[current]) continue;
+            keep[kept++] = current;
+
+            for (int j = i + 1; j < count; j++) {
+                final int other = order[j];
+                if (!suppressed[other] && Boxes.iou(candidates, current, other) >= iouThreshold) {
+                    suppressed[other] = true;
+                }
+            }
+        }
+        return kept;
+    }
+
+    private float[] shiftByClass(float[] boxes, int[] classes, int count) {
+        float maxCoordinate = 0;
+        for (int i = 0; i < count * 4; i++) {
+            maxCoordinate = Math.max(maxCoordinate, boxes[i]);
+        }
+        final float classOffset = maxCoordinate + 1;
+        for (int i = 0; i < count; i++) {
+            final float offset = classes[i] * classOffset;
+            final int b = i * 4;
+            shifted[b] = boxes[b] + offset;
+            shifted[b + 1] = boxes[b + 1] + offset;
+            shifted[b + 2] = boxes[b + 2] + offset;
+            shifted[b + 3] = boxes[b + 3] + offset;
+        }
+        return shifted;
+    }
+
+    private void ensureCapacity(int count) {
+        if (order.length < count) {
+            order = new int[count * 2];
+            suppressed = new boolean[count * 2];
+            shifted = new float[count * 8];
+        }
+        Arrays.fill(suppressed, 0, count, false);
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process wide cache of the loaded models, so that recreating the camera activity (rotation, a
+ * permission dialog, coming back to it) does not load them again.
+ *
+ * <p>Each model file is memory mapped once and the mapping is shared by every interpreter built
+ * from it. Detectors and sign classifiers are reference counted: {@code acquire...} hands out the
+ * loaded instance for the same configuration and {@link #release} gives it back. Released
+ * instances stay loaded, idle, until {@link #trim()}, which closes their interpreters and GPU
+ * delegates. Trimming happens by itself once the app's UI is hidden or memory runs low.
+ */
+public class ModelRegistry {
+    private static final String TAG = "ModelRegistry";
+
+    private static ModelRegistry instance;
+
+    private final Map<String, MappedByteBuffer> models = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Held while loading, so a trim from the main thread does not wait for a load.
+    private final Object loadLock = new Object();
+    private boolean trimCallbacksRegistered;
+    private int loadCount;
+
+    public static synchronized ModelRegistry getInstance() {
+        if (instance == null) {
+            instance = new ModelRegistry();
+        }
+        return instance;
+    }
+
+    private ModelRegistry() {
+    }
+
+    /** The memory mapped model file, mapped on first use. */
+    public synchronized MappedByteBuffer getModel(AssetManager assets, String filename)
+            throws IOException {
+        MappedByteBuffer model = models.get(filename);
+        if (model == null) {
+            model = YoloV5Classifier.loadModelFile(assets, filename);
+            models.put(filename, model);
+        }
+        return model;
+    }
+
+    /**
+     * The detector for this configuration, loaded unless the registry already has one. Give it
+     * back with {@link #release}.
+     */
+    public YoloV5Classifier acquireDetector(
+            final Context context,
+            final String modelFilename,
+            final String labelFilename,
+            final boolean isQuantized,
+            final int inputSize,
+            final int numInterpreters)
+            throws IOException {
+        final String key = "detector:" + modelFilename + ":" + labelFilename + ":" + isQuantized
+                + ":" + inputSize + ":" + numInterpreters;
+        synchronized (loadLock) {
+            Closeable model = acquire(context, key);
+            if (model == null) {
+                model = YoloV5Classifier.create(context.getAssets(), modelFilename, labelFilename,
+                        isQuantized, inputSize, numInterpreters);
+                add(key, model);
+            }
+            return (YoloV5Classifier) model;
+        }
+    }
+
+    /**
+     * The sign classifier for this configuration, loaded unless the registry already has one. Give
+     * it back with {@link #release}.
+     */
+    public SignClassifier acquireSignClassifier(
+            final Context context,
+            final String modelFilename,
+            final int poolSize,
+            final int numThreads)
+            throws IOException {
+        final String key = "classifier:" + modelFilename + ":" + poolSize + ":" + numThreads;
+        synchronized (loadLock) {
+            Closeable model = acquire(context, key);
+            if (model == null) {
+                model = SignClassifier.create(context, modelFilename, poolSize, numThreads);
+                add(key, model);
+            }
+            return (SignClassifier) model;
+        }
+    }
+
+    /**
+     * Gives back an instance from {@code acquire...}. Once nobody holds it, it is closed by the
+     * next {@link #trim()} unless acquired again before that.
+     */
+    public synchronized void release(final Closeable model) {
+        for (Entry entry : entries.values()) {
+            if (entry.model == model) {
+                if (entry.refs > 0) {
+                    entry.refs--;
+                }
+                return;
+            }
+        }
+        Log.w(TAG, "Released a model the registry does not hold");
+    }
+
+    /** Closes every instance nobody holds, releasing its interpreters and delegates. */
+    public synchronized void trim() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.refs == 0) {
+                it.remove();
+                try {
+                    entry.model.close();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Closing " + entry.key + " failed", e);
+                }
+            }
+        }
+    }
+
+    /** Instances loaded since the process started, for telling a reload from a reuse. */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+    private synchronized Closeable acquire(final Context context, final String key) {
+        if (!trimCallbacksRegistered) {
+            trimCallbacksRegistered = true;
+            context.getApplicationContext().registerComponentCallbacks(new TrimCallbacks());
+        }
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.refs++;
+        return entry.model;
+    }
+
+    private synchronized void add(final String key, final Closeable model) {
+        final Entry entry = new Entry(key, model);
+        entry.refs = 1;
+        entries.put(key, entry);
+        loadCount++;
+    }
+
+    private static final class Entry {
+        final String key;
+        final Closeable model;
+        int refs;
+
+        Entry(String key, Closeable model) {
+            this.key = key;
+            this.model = model;
+        }
+    }
+
+    private final class TrimCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                trim();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            trim();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+}
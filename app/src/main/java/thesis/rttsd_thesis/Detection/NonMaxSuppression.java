@@ -0,0 +1,35 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+/**
+ * Non maximum suppression over candidates stored as parallel arrays, see {@link Boxes} for the box
+ * layout.
+ */
+public interface NonMaxSuppression {
+    /**
+     * Suppresses overlapping candidates.
+     *
+     * @param boxes x1, y1, x2, y2 of each candidate.
+     * @param scores score of each candidate, implementations may rescore in place.
+     * @param classes class of each candidate.
+     * @param count number of candidates.
+     * @param keep receives the indices of the kept candidates by descending score, must hold at
+     *     least {@code count} entries.
+     * @return number of kept candidates.
+     */
+    int apply(float[] boxes, float[] scores, int[] classes, int count, int[] keep);
+}
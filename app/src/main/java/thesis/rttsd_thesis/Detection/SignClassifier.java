@@ -0,0 +1,498 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.label.Category;
+import org.tensorflow.lite.support.metadata.MetadataExtractor;
+import org.tensorflow.lite.support.metadata.schema.AssociatedFileType;
+import org.tensorflow.lite.support.metadata.schema.TensorMetadata;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+import org.tensorflow.lite.task.vision.classifier.Classifications;
+import org.tensorflow.lite.task.vision.classifier.ImageClassifier;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Second-stage classifier for the sign crops returned by the detector.
+ *
+ * <p>The underlying {@link ImageClassifier}s are created once and kept in a small pool, so the
+ * model is not reloaded per detection and several crops of the same frame can be classified in
+ * parallel. The score threshold is applied per call, which lets it follow the confidence slider
+ * without rebuilding the pool.
+ *
+ * <p>In batch mode all crops of a frame are packed into one [N,64,64,3] input and classified with
+ * a single interpreter call. N is rounded up to one of {@link #BATCH_SIZES}, each of which gets its
+ * own interpreter resized once, so busy frames do not pay for a resize on every call.
+ *
+ * <p>Crops are passed as ARGB pixels, resized by the caller, and written straight into input
+ * buffers that are kept from frame to frame, so classifying allocates no bitmaps or tensors. The
+ * results go into arrays owned by the caller and the pooled classifiers are fed by workers that
+ * are created once, so a frame allocates nothing outside of the classifiers themselves.
+ */
+public class SignClassifier implements Closeable {
+    private static final String TAG = "SignClassifier";
+
+    /** Batch sizes the batch interpreters are resized to, larger frames are split into chunks. */
+    private static final int[] BATCH_SIZES = {2, 4, 8};
+
+    /** One of the pooled classifiers, an {@link ImageClassifier} outside of tests. */
+    interface CropClassifier extends Closeable {
+        /** The best category for the image, or {@code null} if there is none. */
+        Category classify(TensorImage image);
+
+        @Override
+        void close();
+    }
+
+    private final BlockingQueue<CropClassifier> pool;
+    private final List<CropClassifier> classifiers;
+    private final ThreadPoolExecutor executor;
+
+    // The crops of the current call, shared with the workers. The workers take crops until none
+    // are left and the caller waits for all of them before it returns.
+    private final Runnable worker;
+    private final AtomicInteger nextCrop = new AtomicInteger();
+    private final Object workersLock = new Object();
+    private int runningWorkers;
+    private int jobCount;
+    private float jobThreshold;
+    private String[] jobLabels;
+    private float[] jobScores;
+
+    // Batch mode, only available for models with a uint8 [1,h,w,3] input and labels in the metadata.
+    private MappedByteBuffer batchModel;
+    private List<String> labels;
+    private int inputWidth;
+    private int inputHeight;
+    private int numThreads;
+    private DataType outputType;
+    private float outputScale;
+    private int outputZeroPoint;
+    private final Interpreter[] batchInterpreters = new Interpreter[BATCH_SIZES.length];
+    private final ByteBuffer[] batchInputs = new ByteBuffer[BATCH_SIZES.length];
+    private final ByteBuffer[] batchOutputs = new ByteBuffer[BATCH_SIZES.length];
+    private byte[] rgb = new byte[0];
+    private boolean batchMode = false;
+
+    // One input per crop for the pooled classifiers, grown to the largest frame.
+    private ByteBuffer[] cropBuffers = new ByteBuffer[0];
+    private TensorBuffer[] cropTensors = new TensorBuffer[0];
+    private TensorImage[] cropImages = new TensorImage[0];
+    private int cropWidth;
+    private int cropHeight;
+
+    public static SignClassifier create(
+            final Context context,
+            final String modelFilename,
+            final int poolSize,
+            final int numThreads)
+            throws IOException {
+        // No score threshold here, it is applied in classify() so that it can change at runtime.
+        ImageClassifier.ImageClassifierOptions options =
+                ImageClassifier.ImageClassifierOptions.builder()
+                        .setMaxResults(1)
+                        .setNumThreads(numThreads)
+                        .build();
+
+        final List<CropClassifier> classifiers = new ArrayList<>(poolSize);
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                classifiers.add(new TaskClassifier(
+                        ImageClassifier.createFromFileAndOptions(context, modelFilename, options)));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CropClassifier classifier : classifiers) {
+                classifier.close();
+            }
+            throw e;
+        }
+        final SignClassifier c = new SignClassifier(classifiers);
+        c.numThreads = numThreads;
+        try {
+            c.loadBatchModel(ModelRegistry.getInstance().getModel(context.getAssets(), modelFilename));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Batch mode not available: " + e.getMessage());
+        }
+        return c;
+    }
+
+    private void loadBatchModel(MappedByteBuffer model) throws IOException {
+        Interpreter probe = new Interpreter(model);
+        try {
+            Tensor input = probe.getInputTensor(0);
+            int[] shape = input.shape();
+            if (input.dataType() != DataType.UINT8 || shape.length != 4 || shape[3] != 3) {
+                throw new IOException("unsupported input tensor " + input.dataType());
+            }
+            inputHeight = shape[1];
+            inputWidth = shape[2];
+
+            Tensor output = probe.getOutputTensor(0);
+            outputType = output.dataType();
+            if (outputType != DataType.FLOAT32 && outputType != DataType.UINT8
+                    && outputType != DataType.INT8) {
+                throw new IOException("unsupported output tensor " + outputType);
+            }
+            outputScale = outputType != DataType.FLOAT32 ? output.quantizationParams().getScale() : 1f;
+            outputZeroPoint = outputType != DataType.FLOAT32
+                    ? output.quantizationParams().getZeroPoint() : 0;
+        } finally {
+            probe.close();
+        }
+
+        MetadataExtractor metadata = new MetadataExtractor(model);
+        TensorMetadata outputMetadata = metadata.getOutputTensorMetadata(0);
+        for (int i = 0; outputMetadata != null && i < outputMetadata.associatedFilesLength(); i++) {
+            if (outputMetadata.associatedFiles(i).type() == AssociatedFileType.TENSOR_AXIS_LABELS) {
+                labels = readLabels(metadata.getAssociatedFile(outputMetadata.associatedFiles(i).name()));
+                break;
+            }
+        }
+        if (labels == null) {
+            throw new IOException("no label file in the model metadata");
+        }
+        batchModel = model;
+    }
+
+    private static List<String> readLabels(InputStream input) throws IOException {
+        final List<String> labels = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(input));
+        String line;
+        while ((line = br.readLine()) != null) {
+            labels.add(line);
+        }
+        br.close();
+        return labels;
+    }
+
+    SignClassifier(List<CropClassifier> classifiers) {
+        this.classifiers = classifiers;
+        this.pool = new ArrayBlockingQueue<>(classifiers.size(), false, classifiers);
+        // The caller classifies too, so one classifier less is left for the workers. A bounded
+        // queue and started threads keep execute() from allocating.
+        final int workers = Math.max(1, classifiers.size() - 1);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workers));
+        this.executor.prestartAllCoreThreads();
+        this.worker = () -> {
+            drainCrops();
+            synchronized (workersLock) {
+                if (--runningWorkers == 0) {
+                    workersLock.notifyAll();
+                }
+            }
+        };
+    }
+
+    public int getPoolSize() {
+        return classifiers.size();
+    }
+
+    public boolean isBatchModeAvailable() {
+        return batchModel != null;
+    }
+
+    /** Classify all crops of a frame with one interpreter call, if the model supports it. */
+    public void setBatchMode(boolean batchMode) {
+        this.batchMode = batchMode;
+    }
+
+    /**
+     * Classifies all crops of a frame, batched into one interpreter call or spread over the pooled
+     * classifiers. The label and score of crop {@code i} are written to {@code labels[i]} and
+     * {@code scores[i]}, the label is {@code null} where the crop was rejected or could not be
+     * classified.
+     *
+     * @param crops ARGB pixels of {@code count} crops of {@code width * height}, one after the
+     *     other.
+     * @param labels receives the labels, at least {@code count} long.
+     * @param scores receives the scores, at least {@code count} long.
+     */
+    public synchronized void classifyAll(int[] crops, int width, int height, int count,
+            float threshold, String[] labels, float[] scores) {
+        if (batchMode && batchModel != null && count > 1
+                && width == inputWidth && height == inputHeight) {
+            try {
+                classifyBatch(crops, count, threshold, labels, scores);
+                return;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Batch classification failed", e);
+            }
+        }
+
+        ensureCropInputs(width, height, count);
+        final int size = width * height;
+        for (int i = 0; i < count; i++) {
+            // The tensor images hold these buffers since they were created.
+            writeRgb(crops, i * size, size, cropBuffers[i].array());
+        }
+
+        jobCount = count;
+        jobThreshold = threshold;
+        jobLabels = labels;
+        jobScores = scores;
+        nextCrop.set(0);
+        final int workers = Math.min(count, classifiers.size()) - 1;
+        synchronized (workersLock) {
+            runningWorkers = Math.max(0, workers);
+        }
+        for (int i = 0; i < workers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // Closed or busy, the caller takes the remaining crops.
+                synchronized (workersLock) {
+                    runningWorkers -= workers - i;
+                }
+                break;
+            }
+        }
+        drainCrops();
+        awaitWorkers();
+        jobLabels = null;
+        jobScores = null;
+    }
+
+    /** Classifies crops of the current call until none are left, on the caller and the workers. */
+    private void drainCrops() {
+        int crop;
+        while ((crop = nextCrop.getAndIncrement()) < jobCount) {
+            final Category category = classifySafely(crop, jobThreshold);
+            jobLabels[crop] = category != null ? category.getLabel() : null;
+            jobScores[crop] = category != null ? category.getScore() : 0;
+        }
+    }
+
+    private void awaitWorkers() {
+        boolean interrupted = false;
+        synchronized (workersLock) {
+            while (runningWorkers > 0) {
+                try {
+                    workersLock.wait();
+                } catch (InterruptedException e) {
+                    // The workers write into the caller's arrays, they have to finish first.
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void ensureCropInputs(int width, int height, int count) {
+        if (width != cropWidth || height != cropHeight) {
+            cropBuffers = new ByteBuffer[0];
+            cropTensors = new TensorBuffer[0];
+            cropImages = new TensorImage[0];
+            cropWidth = width;
+            cropHeight = height;
+        }
+        if (cropImages.length >= count) {
+            return;
+        }
+        final int previous = cropImages.length;
+        cropBuffers = Arrays.copyOf(cropBuffers, count);
+        cropTensors = Arrays.copyOf(cropTensors, count);
+        cropImages = Arrays.copyOf(cropImages, count);
+        final int[] shape = {height, width, 3};
+        for (int i = previous; i < count; i++) {
+            // A heap buffer, the task library reads its backing array. It is loaded once and
+            // rewritten in place for every frame.
+            cropBuffers[i] = ByteBuffer.allocate(width * height * 3);
+            cropTensors[i] = TensorBuffer.createFixedSize(shape, DataType.UINT8);
+            cropTensors[i].loadBuffer(cropBuffers[i]);
+            cropImages[i] = new TensorImage(DataType.UINT8);
+            cropImages[i].load(cropTensors[i]);
+        }
+    }
+
+    /** Classifies one of the crop inputs, the pooled classifiers can run several at once. */
+    private Category classify(int crop, float threshold) throws InterruptedException {
+        final CropClassifier classifier = pool.take();
+        try {
+            Category best = classifier.classify(cropImages[crop]);
+            return best != null && best.getScore() >= threshold ? best : null;
+        } finally {
+            pool.add(classifier);
+        }
+    }
+
+    private void classifyBatch(
+            int[] crops, int cropCount, float threshold, String[] resultLabels, float[] scores) {
+        final int maxBatch = BATCH_SIZES[BATCH_SIZES.length - 1];
+        final int size = inputWidth * inputHeight;
+        if (rgb.length < size * 3) {
+            rgb = new byte[size * 3];
+        }
+        for (int start = 0; start < cropCount; start += maxBatch) {
+            final int count = Math.min(maxBatch, cropCount - start);
+            final int slot = batchSlot(count);
+            final Interpreter interpreter = getBatchInterpreter(slot);
+            final ByteBuffer input = batchInputs[slot];
+            final ByteBuffer output = batchOutputs[slot];
+
+            input.rewind();
+            for (int i = 0; i < count; i++) {
+                writeRgb(crops, (start + i) * size, size, rgb);
+                input.put(rgb, 0, size * 3);
+            }
+            // Unused batch entries keep the previous contents, their results are ignored.
+            input.rewind();
+            output.rewind();
+            interpreter.run(input, output);
+
+            final int numLabels = labels.size();
+            for (int i = 0; i < count; i++) {
+                int best = -1;
+                float bestScore = 0;
+                for (int c = 0; c < numLabels; c++) {
+                    int index = i * numLabels + c;
+                    float score = score(output, index, outputType, outputScale, outputZeroPoint);
+                    if (score > bestScore) {
+                        best = c;
+                        bestScore = score;
+                    }
+                }
+                final boolean accepted = best >= 0 && bestScore >= threshold;
+                resultLabels[start + i] = accepted ? labels.get(best) : null;
+                scores[start + i] = accepted ? bestScore : 0;
+            }
+        }
+    }
+
+    /**
+     * The score at {@code index} of a classifier output, dequantized for UINT8 and INT8 outputs.
+     */
+    static float score(ByteBuffer output, int index, DataType type, float scale, int zeroPoint) {
+        switch (type) {
+            case FLOAT32:
+                return output.getFloat(index * 4);
+            case UINT8:
+                return scale * ((output.get(index) & 0xFF) - zeroPoint);
+            case INT8:
+                return scale * (output.get(index) - zeroPoint);
+            default:
+                throw new IllegalArgumentException("unsupported output type " + type);
+        }
+    }
+
+    private static int batchSlot(int count) {
+        for (int i = 0; i < BATCH_SIZES.length; i++) {
+            if (count <= BATCH_SIZES[i]) return i;
+        }
+        return BATCH_SIZES.length - 1;
+    }
+
+    private Interpreter getBatchInterpreter(int slot) {
+        if (batchInterpreters[slot] == null) {
+            final int batchSize = BATCH_SIZES[slot];
+            Interpreter.Options options = new Interpreter.Options();
+            options.setNumThreads(numThreads);
+            Interpreter interpreter = new Interpreter(batchModel, options);
+            interpreter.resizeInput(0, new int[] {batchSize, inputHeight, inputWidth, 3});
+            interpreter.allocateTensors();
+
+            batchInputs[slot] = ByteBuffer.allocateDirect(batchSize * inputHeight * inputWidth * 3);
+            batchInputs[slot].order(ByteOrder.nativeOrder());
+            batchOutputs[slot] = ByteBuffer.allocateDirect(interpreter.getOutputTensor(0).numBytes());
+            batchOutputs[slot].order(ByteOrder.nativeOrder());
+            batchInterpreters[slot] = interpreter;
+        }
+        return batchInterpreters[slot];
+    }
+
+    private static void writeRgb(int[] pixels, int offset, int count, byte[] out) {
+        for (int i = 0, o = 0; i < count; i++) {
+            final int pixelValue = pixels[offset + i];
+            out[o++] = (byte) ((pixelValue >> 16) & 0xFF);
+            out[o++] = (byte) ((pixelValue >> 8) & 0xFF);
+            out[o++] = (byte) (pixelValue & 0xFF);
+        }
+    }
+
+    private Category classifySafely(int crop, float threshold) {
+        try {
+            return classify(crop, threshold);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "Classification failed", e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+        for (CropClassifier classifier : classifiers) {
+            classifier.close();
+        }
+        for (int i = 0; i < batchInterpreters.length; i++) {
+            if (batchInterpreters[i] != null) {
+                batchInterpreters[i].close();
+                batchInterpreters[i] = null;
+            }
+        }
+    }
+
+    /** A pooled {@link ImageClassifier}, reduced to its best category. */
+    private static final class TaskClassifier implements CropClassifier {
+        private final ImageClassifier classifier;
+
+        TaskClassifier(ImageClassifier classifier) {
+            this.classifier = classifier;
+        }
+
+        @Override
+        public Category classify(TensorImage image) {
+            List<Classifications> results = classifier.classify(image);
+            if (results.isEmpty() || results.get(0).getCategories().isEmpty()) {
+                return null;
+            }
+            return results.get(0).getCategories().get(0);
+        }
+
+        @Override
+        public void close() {
+            classifier.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the app does for each traffic sign class: the speed limit it sets, the image it shows and
+ * the sound it plays.
+ *
+ * <p>Loaded once from a comma separated asset with one line per sign, see
+ * {@code assets/sign_table.csv}. Resource names are resolved to ids while loading, so acting on a
+ * recognition is an array lookup by {@link Classifier.Recognition#getSignId()}. Classifier labels
+ * are turned into ids once per classification with {@link #idOf(String)}.
+ */
+public class SignTable {
+    /** Id of recognitions that match no sign in the table. */
+    public static final int UNKNOWN = -1;
+
+    private final Sign[] signs;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /** One line of the table. Resource ids are 0 where the line names none. */
+    public static class Sign {
+        public final int id;
+        public final String label;
+        /** In km/h, 0 if the sign sets no limit. */
+        public final int speedLimit;
+        public final int drawable;
+        public final int sound;
+        /** Higher is more urgent. */
+        public final int priority;
+
+        Sign(int id, String label, int speedLimit, int drawable, int sound, int priority) {
+            this.id = id;
+            this.label = label;
+            this.speedLimit = speedLimit;
+            this.drawable = drawable;
+            this.sound = sound;
+            this.priority = priority;
+        }
+    }
+
+    public static SignTable load(final Context context, final String filename) throws IOException {
+        final Resources resources = context.getResources();
+        final String packageName = context.getPackageName();
+        final List<Sign> signs = new ArrayList<>();
+        int maxId = UNKNOWN;
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                context.getAssets().open(filename), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split(",", -1);
+                if (fields.length != 6) {
+                    throw new IOException("Expected 6 fields in " + filename + ": " + line);
+                }
+                try {
+                    final Sign sign = new Sign(
+                            Integer.parseInt(fields[0].trim()),
+                            fields[1].trim(),
+                            Integer.parseInt(fields[2].trim()),
+                            resolve(resources, fields[3], "drawable", packageName),
+                            resolve(resources, fields[4], "raw", packageName),
+                            Integer.parseInt(fields[5].trim()));
+                    signs.add(sign);
+                    maxId = Math.max(maxId, sign.id);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line in " + filename + ": " + line, e);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return new SignTable(signs, maxId + 1);
+    }
+
+    private static int resolve(Resources resources, String name, String type, String packageName)
+            throws IOException {
+        name = name.trim();
+        if (name.isEmpty()) {
+            return 0;
+        }
+        final int id = resources.getIdentifier(name, type, packageName);
+        if (id == 0) {
+            throw new IOException("No " + type + " resource named " + name);
+        }
+        return id;
+    }
+
+    private SignTable(List<Sign> signs, int size) {
+        this.signs = new Sign[size];
+        for (Sign sign : signs) {
+            this.signs[sign.id] = sign;
+            ids.put(sign.label, sign.id);
+        }
+    }
+
+    /** The id of the sign with this classifier label, or {@link #UNKNOWN}. */
+    public int idOf(String label) {
+        final Integer id = label != null ? ids.get(label.trim()) : null;
+        return id != null ? id : UNKNOWN;
+    }
+
+    /** The sign with this id, or null for {@link #UNKNOWN} and ids not in the table. */
+    public Sign get(int id) {
+        return id >= 0 && id < signs.length ? signs[id] : null;
+    }
+
+    /** The distinct sound resources of all signs, for preloading. */
+    public int[] getSounds() {
+        final Set<Integer> sounds = new LinkedHashSet<>();
+        for (Sign sign : signs) {
+            if (sign != null && sign.sound != 0) {
+                sounds.add(sign.sound);
+            }
+        }
+        final int[] ids = new int[sounds.size()];
+        int i = 0;
+        for (int sound : sounds) {
+            ids[i++] = sound;
+        }
+        return ids;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
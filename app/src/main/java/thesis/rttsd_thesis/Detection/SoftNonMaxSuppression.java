@@ -0,0 +1,73 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import java.util.Arrays;
+
+/**
+ * Gaussian Soft-NMS. Instead of dropping overlapping candidates their score is decayed by
+ * {@code exp(-iou^2 / sigma)}, candidates that fall below {@code scoreThreshold} are dropped. Only
+ * candidates of the same class decay each other. The decayed scores are written back.
+ */
+public class SoftNonMaxSuppression implements NonMaxSuppression {
+    private final float sigma;
+    private final float scoreThreshold;
+    private final int topK;
+
+    private boolean[] done = new boolean[0];
+
+    public SoftNonMaxSuppression(float sigma, float scoreThreshold, int topK) {
+        this.sigma = sigma;
+        this.scoreThreshold = scoreThreshold;
+        this.topK = topK;
+    }
+
+    @Override
+    public int apply(float[] boxes, float[] scores, int[] classes, int count, int[] keep) {
+        if (done.length < count) {
+            done = new boolean[count * 2];
+        }
+        Arrays.fill(done, 0, count, false);
+
+        int kept = 0;
+        while (kept < topK) {
+            // Pick the best remaining candidate, scores change every round so there is no presort.
+            int best = -1;
+            float bestScore = scoreThreshold;
+            for (int i = 0; i < count; i++) {
+                if (!done[i] && scores[i] >= bestScore) {
+                    best = i;
+                    bestScore = scores[i];
+                }
+            }
+            if (best < 0) break;
+
+            done[best] = true;
+            keep[kept++] = best;
+            for (int i = 0; i < count; i++) {
+                if (done[i] || classes[i] != classes[best]) continue;
+                final float iou = Boxes.iou(boxes, best, i);
+                if (iou > 0) {
+                    scores[i] *= (float) Math.exp(-(iou * iou) / sigma);
+                    if (scores[i] < scoreThreshold) {
+                        done[i] = true;
+                    }
+                }
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,158 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import java.util.Locale;
+
+/**
+ * Latency and accuracy of the two and the single stage mode, see {@link StageSelector}.
+ *
+ * <p>Latency is counted per frame and mode: the frame latency from the camera to the end of the
+ * classify stage, of which the mean and 90th percentile are reported, and the time spent in the
+ * classify stage. There is no ground truth on the device, so the two stage result is the
+ * reference. Every box the second stage classifies in a two stage frame is also checked against
+ * the detector's class head: whether the head was confident enough to be trusted, and if so
+ * whether it named the same sign. From that follows the share of boxes on which the single stage
+ * mode would have named the same sign as the two stage mode.
+ *
+ * <p>Latencies go into a histogram of whole milliseconds, so adding a frame allocates nothing.
+ * Thread safe, frames are added by the classify stage and the report is read on the UI thread.
+ */
+public class StageModeReport {
+    /** Latencies of this many milliseconds and more share the last bucket. */
+    static final int MAX_LATENCY_MS = 1000;
+
+    private static final String[] MODE_NAMES = {"two stage", "single stage"};
+
+    private final long[][] latencies = new long[MODE_NAMES.length][MAX_LATENCY_MS + 1];
+    private final long[] frames = new long[MODE_NAMES.length];
+    private final long[] totalLatencyMs = new long[MODE_NAMES.length];
+    private final long[] classifyNanos = new long[MODE_NAMES.length];
+    private final long[] boxes = new long[MODE_NAMES.length];
+    private final long[] secondStageBoxes = new long[MODE_NAMES.length];
+    private long checkedBoxes;
+    private long confidentBoxes;
+    private long agreeingBoxes;
+
+    /**
+     * Adds a classified frame.
+     *
+     * @param mode {@link StageSelector#TWO_STAGE} or {@link StageSelector#SINGLE_STAGE}.
+     * @param latencyMs time from the camera frame to the end of the classify stage.
+     * @param classifyNanos time spent in the classify stage.
+     * @param boxes boxes in the frame.
+     * @param secondStageBoxes boxes the second stage classified, the others were cached or named by
+     *     the detector.
+     */
+    public synchronized void addFrame(int mode, long latencyMs, long classifyNanos, int boxes,
+                                      int secondStageBoxes) {
+        frames[mode]++;
+        totalLatencyMs[mode] += latencyMs;
+        latencies[mode][(int) Math.max(0, Math.min(latencyMs, MAX_LATENCY_MS))]++;
+        this.classifyNanos[mode] += classifyNanos;
+        this.boxes[mode] += boxes;
+        this.secondStageBoxes[mode] += secondStageBoxes;
+    }
+
+    /**
+     * Adds a box the second stage classified in a two stage frame.
+     *
+     * @param headSign the sign the class head named, {@link SignTable#UNKNOWN} if it was not
+     *     confident.
+     * @param sign the sign the second stage named, {@link SignTable#UNKNOWN} if none.
+     */
+    public synchronized void addCheck(int headSign, int sign) {
+        checkedBoxes++;
+        if (headSign != SignTable.UNKNOWN) {
+            confidentBoxes++;
+            if (headSign == sign) {
+                agreeingBoxes++;
+            }
+        }
+    }
+
+    public synchronized long getFrameCount(int mode) {
+        return frames[mode];
+    }
+
+    /** Mean frame latency of the mode, 0 before its first frame. */
+    public synchronized float getMeanLatencyMs(int mode) {
+        return frames[mode] > 0 ? totalLatencyMs[mode] / (float) frames[mode] : 0;
+    }
+
+    /** The frame latency that {@code percentile} of the frames of the mode did not exceed. */
+    public synchronized int getLatencyPercentileMs(int mode, float percentile) {
+        final long rank = (long) Math.ceil(percentile * frames[mode]);
+        long count = 0;
+        for (int ms = 0; ms <= MAX_LATENCY_MS; ms++) {
+            count += latencies[mode][ms];
+            if (count >= rank && count > 0) {
+                return ms;
+            }
+        }
+        return 0;
+    }
+
+    /** Mean time per frame in the classify stage, 0 before the first frame of the mode. */
+    public synchronized float getMeanClassifyMs(int mode) {
+        return frames[mode] > 0 ? classifyNanos[mode] / 1e6f / frames[mode] : 0;
+    }
+
+    /** Share of the boxes of the mode the second stage classified, 0 without boxes. */
+    public synchronized float getSecondStageShare(int mode) {
+        return boxes[mode] > 0 ? secondStageBoxes[mode] / (float) boxes[mode] : 0;
+    }
+
+    /** Share of the checked boxes on which the class head was confident. */
+    public synchronized float getConfidentShare() {
+        return checkedBoxes > 0 ? confidentBoxes / (float) checkedBoxes : 0;
+    }
+
+    /** Share of the confident boxes on which the class head named the second stage's sign. */
+    public synchronized float getHeadAgreement() {
+        return confidentBoxes > 0 ? agreeingBoxes / (float) confidentBoxes : 0;
+    }
+
+    /**
+     * Share of the checked boxes on which the single stage mode names the same sign as the two
+     * stage mode. Boxes the head is not sure about go to the second stage in both modes.
+     */
+    public synchronized float getSingleStageAgreement() {
+        return checkedBoxes > 0 ? 1 - (confidentBoxes - agreeingBoxes) / (float) checkedBoxes : 0;
+    }
+
+    /** A table of both modes followed by the accuracy of the single stage, for the log. */
+    public synchronized String report() {
+        final StringBuilder report = new StringBuilder(
+                "Mode          frames  mean ms  p90 ms  classify ms  second stage\n");
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            report.append(String.format(Locale.US, "%-12s %7d %8.1f %7d %12.1f %12.0f%%\n",
+                    MODE_NAMES[mode], frames[mode], getMeanLatencyMs(mode),
+                    getLatencyPercentileMs(mode, 0.9f), getMeanClassifyMs(mode),
+                    100 * getSecondStageShare(mode)));
+        }
+        if (checkedBoxes == 0) {
+            report.append("No boxes were checked against the second stage");
+        } else {
+            report.append(String.format(Locale.US,
+                    "Class head confident on %.0f%% of %d boxes, agreeing with the second stage on "
+                            + "%.0f%% of them, single stage agrees with two stage on %.0f%% of all",
+                    100 * getConfidentShare(), checkedBoxes, 100 * getHeadAgreement(),
+                    100 * getSingleStageAgreement()));
+        }
+        return report.toString();
+    }
+}
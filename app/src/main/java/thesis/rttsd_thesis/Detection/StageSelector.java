@@ -0,0 +1,98 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import java.util.List;
+
+/**
+ * Decides which stage names the sign in a box, the detector's class head or the second stage
+ * classifier.
+ *
+ * <p>In {@link #SINGLE_STAGE} mode a box whose detector class is a sign of the {@link SignTable}
+ * and whose score reaches the minimum is taken as that sign, only the ambiguous rest is classified
+ * again. This needs a detector trained on the sign classes, with their labels in its labels file.
+ * With a labels file that names no sign, such as the single {@code sign} class, every frame runs
+ * in {@link #TWO_STAGE} mode. {@link #COMPARE} alternates between the two frame by frame, so both
+ * see the same scenes for the {@link StageModeReport}.
+ */
+public class StageSelector {
+    /** Every box is classified by the second stage. */
+    public static final int TWO_STAGE = 0;
+    /** Confident boxes keep the detector's class, the rest is classified by the second stage. */
+    public static final int SINGLE_STAGE = 1;
+    /** Odd frames run in single stage mode and even frames in two stage mode. */
+    public static final int COMPARE = 2;
+
+    private final int mode;
+    private final int[] classToSign;
+    private final float minScore;
+    private final boolean available;
+
+    /**
+     * @param labels the detector's labels, by class.
+     * @param minScore lowest detector score at which its class is trusted.
+     */
+    public static StageSelector create(int mode, List<String> labels, SignTable signTable,
+                                       float minScore) {
+        final int[] classToSign = new int[labels.size()];
+        for (int c = 0; c < classToSign.length; c++) {
+            classToSign[c] = signTable.idOf(labels.get(c));
+        }
+        return new StageSelector(mode, classToSign, minScore);
+    }
+
+    StageSelector(int mode, int[] classToSign, float minScore) {
+        this.classToSign = classToSign;
+        this.minScore = minScore;
+        boolean available = false;
+        for (int sign : classToSign) {
+            available |= sign != SignTable.UNKNOWN;
+        }
+        this.available = available;
+        this.mode = available ? mode : TWO_STAGE;
+    }
+
+    /** Whether the detector's labels name any sign, without that every frame is two stage. */
+    public boolean isSingleStageAvailable() {
+        return available;
+    }
+
+    /** The configured mode, {@link #TWO_STAGE} if the single stage is not available. */
+    public int getMode() {
+        return mode;
+    }
+
+    /** The mode of the frame with this sequence number, two or single stage. */
+    public int modeOf(long sequence) {
+        if (mode == COMPARE) {
+            return (sequence & 1) != 0 ? SINGLE_STAGE : TWO_STAGE;
+        }
+        return mode;
+    }
+
+    /**
+     * The sign the detector's class head names for a box, if it is sure enough to skip the second
+     * stage.
+     *
+     * @return the sign id, or {@link SignTable#UNKNOWN} if the box has to be classified again.
+     */
+    public int signOf(int detectedClass, float score) {
+        if (score < minScore || detectedClass < 0 || detectedClass >= classToSign.length) {
+            return SignTable.UNKNOWN;
+        }
+        return classToSign[detectedClass];
+    }
+}
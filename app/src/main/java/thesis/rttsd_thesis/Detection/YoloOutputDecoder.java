@@ -0,0 +1,196 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.detection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder for the YOLOv5 output tensor.
+ *
+ * <p>Reads the [output_box][numClass + 5] output in place. For quantized models anchors are
+ * rejected on the raw uint8 objectness byte, so only the survivors are dequantized. Candidates are
+ * written into reusable arrays, so after the first few frames decoding allocates nothing.
+ */
+public class YoloOutputDecoder {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int numBoxes;
+    private final int numClass;
+    private final int stride;
+    private final float inputSize;
+    private final boolean isQuantized;
+    private final float scale;
+    private final int zeroPoint;
+
+    private float lastThreshold = Float.NaN;
+    private int rawObjThreshold;
+
+    /** Decoded candidates as x1, y1, x2, y2 in input pixels, four entries per candidate. */
+    float[] boxes = new float[INITIAL_CAPACITY * 4];
+    float[] scores = new float[INITIAL_CAPACITY];
+    int[] classes = new int[INITIAL_CAPACITY];
+    int count;
+
+    /**
+     * @param numBoxes number of anchors in the output.
+     * @param numClass number of class scores after the objectness of each anchor.
+     * @param inputSize side of the square model input, used to denormalize xywh.
+     * @param isQuantized whether the output holds uint8 values.
+     * @param scale output quantization scale, ignored for float outputs.
+     * @param zeroPoint output quantization zero point, ignored for float outputs.
+     */
+    public YoloOutputDecoder(int numBoxes, int numClass, int inputSize,
+                             boolean isQuantized, float scale, int zeroPoint) {
+        this.numBoxes = numBoxes;
+        this.numClass = numClass;
+        this.stride = numClass + 5;
+        this.inputSize = inputSize;
+        this.isQuantized = isQuantized;
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+    }
+
+    /**
+     * Decodes all anchors whose objectness times best class score is above {@code threshold}.
+     *
+     * @param output the output tensor, read with absolute gets so its position is not changed.
+     * @param labelCount number of class scores to consider, at most numClass.
+     * @param maxX right clamp for the boxes.
+     * @param maxY bottom clamp for the boxes.
+     * @return number of decoded candidates.
+     */
+    public int decode(ByteBuffer output, float threshold, int labelCount, float maxX, float maxY) {
+        count = 0;
+        final int classCount = Math.min(labelCount, numClass);
+        if (isQuantized) {
+            decodeQuantized(output, threshold, classCount, maxX, maxY);
+        } else {
+            decodeFloat(output, threshold, classCount, maxX, maxY);
+        }
+        return count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    private void decodeQuantized(ByteBuffer output, float threshold, int classCount,
+                                 float maxX, float maxY) {
+        if (threshold != lastThreshold) {
+            // confidence = obj * maxClass, and maxClass can not exceed the largest representable
+            // value, so anchors whose obj is at most threshold / that value can never pass.
+            final float maxScore = Math.max(1f, scale * (255 - zeroPoint));
+            rawObjThreshold = (int) Math.floor(threshold / maxScore / scale + zeroPoint);
+            lastThreshold = threshold;
+        }
+        final int rawThreshold = rawObjThreshold;
+
+        for (int i = 0, base = 0; i < numBoxes; i++, base += stride) {
+            final int rawObj = output.get(base + 4) & 0xFF;
+            if (rawObj <= rawThreshold) {
+                continue;
+            }
+
+            // Dequantization is monotonic, so the arg max can be taken on the raw bytes.
+            int detectedClass = -1;
+            int rawMax = zeroPoint;
+            for (int c = 0; c < classCount; c++) {
+                final int rawClass = output.get(base + 5 + c) & 0xFF;
+                if (rawClass > rawMax) {
+                    detectedClass = c;
+                    rawMax = rawClass;
+                }
+            }
+            if (detectedClass < 0) {
+                continue;
+            }
+
+            final float confidence = scale * (rawObj - zeroPoint) * scale * (rawMax - zeroPoint);
+            if (confidence > threshold) {
+                add(scale * ((output.get(base) & 0xFF) - zeroPoint),
+                        scale * ((output.get(base + 1) & 0xFF) - zeroPoint),
+                        scale * ((output.get(base + 2) & 0xFF) - zeroPoint),
+                        scale * ((output.get(base + 3) & 0xFF) - zeroPoint),
+                        confidence, detectedClass, maxX, maxY);
+            }
+        }
+    }
+
+    private void decodeFloat(ByteBuffer output, float threshold, int classCount,
+                             float maxX, float maxY) {
+        for (int i = 0, base = 0; i < numBoxes; i++, base += stride * 4) {
+            // Class scores are sigmoid outputs, so obj alone has to beat the threshold.
+            final float obj = output.getFloat(base + 16);
+            if (obj <= threshold) {
+                continue;
+            }
+
+            int detectedClass = -1;
+            float maxClass = 0;
+            for (int c = 0; c < classCount; c++) {
+                final float score = output.getFloat(base + 20 + c * 4);
+                if (score > maxClass) {
+                    detectedClass = c;
+                    maxClass = score;
+                }
+            }
+            if (detectedClass < 0) {
+                continue;
+            }
+
+            final float confidence = obj * maxClass;
+            if (confidence > threshold) {
+                add(output.getFloat(base), output.getFloat(base + 4),
+                        output.getFloat(base + 8), output.getFloat(base + 12),
+                        confidence, detectedClass, maxX, maxY);
+            }
+        }
+    }
+
+    private void add(float x, float y, float w, float h, float confidence, int detectedClass,
+                     float maxX, float maxY) {
+        if (count == scores.length) {
+            grow();
+        }
+        // Denormalize xywh
+        x *= inputSize;
+        y *= inputSize;
+        w *= inputSize;
+        h *= inputSize;
+
+        final int b = count * 4;
+        boxes[b] = Math.max(0, x - w / 2);
+        boxes[b + 1] = Math.max(0, y - h / 2);
+        boxes[b + 2] = Math.min(maxX, x + w / 2);
+        boxes[b + 3] = Math.min(maxY, y + h / 2);
+        scores[count] = confidence;
+        classes[count] = detectedClass;
+        count++;
+    }
+
+    private void grow() {
+        final int capacity = scores.length * 2;
+        final float[] newBoxes = new float[capacity * 4];
+        final float[] newScores = new float[capacity];
+        final int[] newClasses = new int[capacity];
+        System.arraycopy(boxes, 0, newBoxes, 0, count * 4);
+        System.arraycopy(scores, 0, newScores, 0, count);
+        System.arraycopy(classes, 0, newClasses, 0, count);
+        boxes = newBoxes;
+        scores = newScores;
+        classes = newClasses;
+    }
+}
@@ -18,7 +18,6 @@ package thesis.rttsd_thesis.detection;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.util.Log;
 
 import org.tensorflow.lite.Interpreter;
@@ -26,6 +25,7 @@ import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.gpu.GpuDelegate;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,14 +35,21 @@ import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import io.reactivex.Observable;
+import io.reactivex.schedulers.Schedulers;
 import thesis.rttsd_thesis.DetectorActivity;
+import thesis.rttsd_thesis.env.InputNormalizer;
 
-public class YoloV5Classifier implements Classifier {
+public class YoloV5Classifier implements Classifier, Closeable {
+    private static final String TAG = "YoloV5Classifier";
 
     public static YoloV5Classifier create(
             final AssetManager assetManager,
@@ -51,27 +58,35 @@ public class YoloV5Classifier implements Classifier {
             final boolean isQuantized,
             final int inputSize)
             throws IOException {
+        return create(assetManager, modelFilename, labelFilename, isQuantized, inputSize, 1);
+    }
+
+    /**
+     * @param numInterpreters number of independent interpreters sharing the mapped model, so that
+     *     up to that many frames can be detected at once from different threads. With more than one
+     *     the interpreters run on the CPU, a single GPU would only serialize them.
+     */
+    public static YoloV5Classifier create(
+            final AssetManager assetManager,
+            final String modelFilename,
+            final String labelFilename,
+            final boolean isQuantized,
+            final int inputSize,
+            final int numInterpreters)
+            throws IOException {
         final YoloV5Classifier d = new YoloV5Classifier();
         InputStream labelsInput = assetManager.open(labelFilename);
         BufferedReader br = new BufferedReader(new InputStreamReader(labelsInput));
 
-        while (br.readLine() != null) {
-            d.labels.add(br.readLine());
+        String line;
+        while ((line = br.readLine()) != null) {
+            d.labels.add(line);
         }
         br.close();
 
         try {
-            Interpreter.Options options = (new Interpreter.Options());
-            options.setNumThreads(NUM_THREADS);
-
-            GpuDelegate.Options gpu_options = new GpuDelegate.Options();
-            gpu_options.setPrecisionLossAllowed(true); // It seems that the default is true
-            gpu_options.setInferencePreference(GpuDelegate.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
-            d.gpuDelegate = new GpuDelegate(gpu_options);
-            options.addDelegate(d.gpuDelegate);
-
-            d.tfliteModel = loadModelFile(assetManager, modelFilename);
-            d.tfLite = new Interpreter(d.tfliteModel, options);
+            d.tfliteModel = ModelRegistry.getInstance().getModel(assetManager, modelFilename);
+            d.tfLite = d.createInterpreter(numInterpreters == 1);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -85,9 +100,7 @@ public class YoloV5Classifier implements Classifier {
             numBytesPerChannel = 4; // Floating point
         }
         d.INPUT_SIZE = inputSize;
-        d.imgData = ByteBuffer.allocateDirect(d.INPUT_SIZE * d.INPUT_SIZE * 3 * numBytesPerChannel);
-        d.imgData.order(ByteOrder.nativeOrder());
-        d.intValues = new int[d.INPUT_SIZE * d.INPUT_SIZE];
+        d.numBytesPerChannel = numBytesPerChannel;
 
         d.output_box = (int) ((Math.pow((inputSize / 32), 2) + Math.pow((inputSize / 16), 2) + Math.pow((inputSize / 8), 2)) * 3);
         if (d.isModelQuantized){
@@ -98,22 +111,92 @@ public class YoloV5Classifier implements Classifier {
             d.oup_scale = oupten.quantizationParams().getScale();
             d.oup_zero_point = oupten.quantizationParams().getZeroPoint();
         }
+        d.normalizer = new InputNormalizer(isQuantized, d.inp_scale, d.inp_zero_point);
 
         int[] shape = d.tfLite.getOutputTensor(0).shape();
         int numClass = shape[shape.length - 1] - 5;
         d.numClass = numClass;
-        d.outData = ByteBuffer.allocateDirect(d.output_box * (numClass + 5) * numBytesPerChannel);
-        d.outData.order(ByteOrder.nativeOrder());
-        Log.e("check me",d.outData+" "+d.numClass+" "+d.output_box +" "+numClass +" "+ numBytesPerChannel);
+        final int count = Math.max(1, numInterpreters);
+        d.engines = new Engine[count];
+        d.idleEngines = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            d.engines[i] = d.new Engine(i == 0 ? d.tfLite : d.createInterpreter(false));
+            d.idleEngines.add(d.engines[i]);
+        }
+        Log.d(TAG, "Loaded " + numClass + " classes, " + d.output_box + " boxes, "
+                + numBytesPerChannel + " bytes per channel, " + count + " interpreters");
         return d;
     }
 
+    /** The class labels, by detected class. */
+    public List<String> getLabels() {
+        return Collections.unmodifiableList(labels);
+    }
+
     public int getInputSize() {
         return INPUT_SIZE;
     }
 
+    /**
+     * Allocates an input buffer, INPUT_SIZE x INPUT_SIZE RGB in quantized bytes or floats. Callers
+     * keep one per frame in flight, so that the next frame can be written while this one is being
+     * detected, see {@link #recognizeInput(ByteBuffer)}.
+     */
+    public ByteBuffer createInputBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * numBytesPerChannel);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /**
+     * Writes pixels into the input buffer in the format the model expects. Keeps scratch rows, so
+     * it is for one thread, the interpreters have their own for {@link #recognizeImage}.
+     */
+    public InputNormalizer getInputNormalizer() {
+        return normalizer;
+    }
+
     public void setNumThreads(int num_threads) {
-        if (tfLite != null) tfLite.setNumThreads(num_threads);
+        for (Engine engine : engines) {
+            synchronized (engine) {
+                engine.interpreter.setNumThreads(num_threads);
+            }
+        }
+    }
+
+    /**
+     * Runs every interpreter {@code runs} times on a blank input, so that delegate preparation and
+     * the allocations of the first invocations happen here instead of on the first camera frame.
+     */
+    public void warmUp(int runs) {
+        final ByteBuffer blank = createInputBuffer();
+        for (Engine engine : engines) {
+            for (int i = 0; i < runs; i++) {
+                engine.recognize(blank);
+            }
+        }
+    }
+
+    /**
+     * Closes the interpreters and the GPU delegate. Waits for detections in progress, the
+     * detector cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        for (Engine engine : engines) {
+            synchronized (engine) {
+                engine.interpreter.close();
+            }
+        }
+        if (gpuDelegate != null) {
+            gpuDelegate.close();
+            gpuDelegate = null;
+        }
+    }
+
+    /** Number of interpreters, the number of frames that can be detected at once. */
+    public int getNumInterpreters() {
+        return engines.length;
     }
 
     public float getObjThresh() {
@@ -125,14 +208,24 @@ public class YoloV5Classifier implements Classifier {
 
     private  int output_box;
 
+    private int numBytesPerChannel;
+
     // Number of threads in the java app
     private static final int NUM_THREADS = 4;
 
+    // Default non maximum suppression
+    private static final float NMS_THRESH = 0.8f;
+    private static final int NMS_TOP_K = 100;
+
     private boolean isModelQuantized;
 
     /** holds a gpu delegate */
     GpuDelegate gpuDelegate = null;
 
+    // Interpreters sharing tfliteModel, the first one is tfLite.
+    private Engine[] engines;
+    private BlockingQueue<Engine> idleEngines;
+
 
     /** The loaded TensorFlow Lite model. */
     private MappedByteBuffer tfliteModel;
@@ -141,10 +234,9 @@ public class YoloV5Classifier implements Classifier {
 
     // Pre-allocated buffers.
     private final Vector<String> labels = new Vector<>();
-    private int[] intValues;
 
-    private ByteBuffer imgData;
-    private ByteBuffer outData;
+    private InputNormalizer normalizer;
+    private NonMaxSuppression nms = new GreedyNonMaxSuppression(NMS_THRESH, NMS_TOP_K, false);
 
     private Interpreter tfLite;
     private float inp_scale;
@@ -155,183 +247,198 @@ public class YoloV5Classifier implements Classifier {
     private YoloV5Classifier() {
     }
 
-    //non maximum suppression
-    protected ArrayList<Recognition> nms(ArrayList<Recognition> list) {
-        ArrayList<Recognition> nmsList = new ArrayList<>();
-
-        for (int k = 0; k < labels.size(); k++) {
-            //1.find max confidence per class
-            PriorityQueue<Recognition> pq =
-                    new PriorityQueue<>(
-                            200,
-                            (lhs, rhs) -> {
-                                // Intentionally reversed to put high confidence at the head of the queue.
-                                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-                            });
-
-            for (int i = 0; i < list.size(); ++i) {
-                if (list.get(i).getDetectedClass() == k) {
-                    pq.add(list.get(i));
-                }
-            }
-
-            //2.do non maximum suppression
-            while (pq.size() > 0) {
-                //insert detection with max confidence
-                Recognition[] a = new Recognition[pq.size()];
-                Recognition[] detections = pq.toArray(a);
-                Recognition max = detections[0];
-                nmsList.add(max);
-                pq.clear();
-
-                for (int j = 1; j < detections.length; j++) {
-
-                    Recognition detection = detections[j];
-                    RectF b = detection.getLocation();
-                    if (box_iou(max.getLocation(), b) < mNmsThresh) {
-                        pq.add(detection);
-                    }
-                }
-            }
-        }
-        return nmsList;
-    }
-
-    protected float mNmsThresh = 0.8f;
-
-    protected float box_iou(RectF a, RectF b) {
-        return box_intersection(a, b) / box_union(a, b);
+    /** Non maximum suppression applied to the decoded candidates. */
+    public void setNonMaxSuppression(NonMaxSuppression nms) {
+        this.nms = nms;
     }
 
-    protected float box_intersection(RectF a, RectF b) {
-        float w = overlap((a.left + a.right) / 2, a.right - a.left,
-                (b.left + b.right) / 2, b.right - b.left);
-        float h = overlap((a.top + a.bottom) / 2, a.bottom - a.top,
-                (b.top + b.bottom) / 2, b.bottom - b.top);
-        if (w < 0 || h < 0) return 0;
-        return w * h;
+    /**
+     * Thread safe like {@link #recognizeInput(ByteBuffer)}, the bitmap is written into the input
+     * buffer of the interpreter that runs it.
+     */
+    public ArrayList<Recognition> recognizeImage(Bitmap bitmap) {
+        final Engine engine = takeEngine();
+        if (engine == null) {
+            return new ArrayList<>();
+        }
+        try {
+            return engine.recognize(bitmap);
+        } finally {
+            idleEngines.add(engine);
+        }
     }
 
-    protected float box_union(RectF a, RectF b) {
-        float i = box_intersection(a, b);
-        return (a.right - a.left) * (a.bottom - a.top) + (b.right - b.left) * (b.bottom - b.top) - i;
+    /**
+     * Runs up to {@link #getNumInterpreters()} of the images at once, one per interpreter. The
+     * model takes a single image per invocation, so this spreads the batch rather than stacking
+     * it into one tensor.
+     */
+    @Override
+    public List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps) {
+        if (engines.length == 1 || bitmaps.size() < 2) {
+            return Classifier.super.recognizeImages(bitmaps);
+        }
+        return Observable.fromIterable(bitmaps)
+                .concatMapEager(bitmap -> Observable.<List<Recognition>>fromCallable(
+                        () -> recognizeImage(bitmap)).subscribeOn(Schedulers.io()),
+                        engines.length, 1)
+                .toList()
+                .blockingGet();
     }
 
-    protected float overlap(float x1, float w1, float x2, float w2) {
-        float l1 = x1 - w1 / 2;
-        float l2 = x2 - w2 / 2;
-        float left = Math.max(l1, l2);
-        float r1 = x1 + w1 / 2;
-        float r2 = x2 + w2 / 2;
-        float right = Math.min(r1, r2);
-        return right - left;
+    /**
+     * Runs detection on an input buffer from {@link #createInputBuffer()}. Safe to call from as many
+     * threads as there are interpreters, each call takes the interpreter that has been idle longest
+     * and further callers wait for one to free up.
+     */
+    public ArrayList<Recognition> recognizeInput(ByteBuffer input) {
+        final Engine engine = takeEngine();
+        if (engine == null) {
+            return new ArrayList<>();
+        }
+        try {
+            return engine.recognize(input);
+        } finally {
+            idleEngines.add(engine);
+        }
     }
 
     /**
-     * Writes Image data into a {@code ByteBuffer}.
+     * Like {@link #recognizeInput(ByteBuffer)}, but writes the detections into a buffer the caller
+     * reuses instead of creating recognitions. Once the buffer has grown to the usual number of
+     * detections this allocates nothing.
      */
-    protected void convertBitmapToByteBuffer(Bitmap bitmap) {
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        imgData.rewind();
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                int pixelValue = intValues[i * INPUT_SIZE + j];
-                // Float model
-                float IMAGE_MEAN = 0;
-                float IMAGE_STD = 255.0f;
-                if (isModelQuantized) {
-                    // Quantized model
-                    imgData.put((byte) ((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD / inp_scale + inp_zero_point));
-                    imgData.put((byte) ((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD / inp_scale + inp_zero_point));
-                    imgData.put((byte) (((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD / inp_scale + inp_zero_point));
-                } else { // Float model
-                    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                }
-            }
+    public void recognizeInput(ByteBuffer input, DetectionBuffer detections) {
+        detections.clear();
+        final Engine engine = takeEngine();
+        if (engine == null) {
+            return;
+        }
+        try {
+            engine.recognize(input, detections);
+        } finally {
+            idleEngines.add(engine);
         }
     }
 
-    public ArrayList<Recognition> recognizeImage(Bitmap bitmap) {
+    /** Waits for an idle interpreter, null if interrupted. Hand it back to idleEngines. */
+    private Engine takeEngine() {
+        try {
+            return idleEngines.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-        //CameraActivity.runInBackground(() -> convertBitmapToByteBuffer(bitmap));
-        convertBitmapToByteBuffer(bitmap);
+    private Interpreter createInterpreter(boolean useGpu) {
+        Interpreter.Options options = (new Interpreter.Options());
+        options.setNumThreads(NUM_THREADS);
 
-        Map<Integer, Object> outputMap = new HashMap<>();
+        if (useGpu) {
+            GpuDelegate.Options gpu_options = new GpuDelegate.Options();
+            gpu_options.setPrecisionLossAllowed(true); // It seems that the default is true
+            gpu_options.setInferencePreference(GpuDelegate.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
+            gpuDelegate = new GpuDelegate(gpu_options);
+            options.addDelegate(gpuDelegate);
+        }
+        return new Interpreter(tfliteModel, options);
+    }
 
-        outData.rewind();
-        outputMap.put(0, outData);
-        Log.d("YoloV5Classifier", "mObjThresh: " + getObjThresh());
+    /** An interpreter with its own output buffer and decoding state. */
+    private final class Engine {
+        private final Interpreter interpreter;
+        private final ByteBuffer outData;
+        private final Object[] inputArray = new Object[1];
+        private final Map<Integer, Object> outputMap = new HashMap<>();
+        private final YoloOutputDecoder decoder;
+        private int[] keep = new int[0];
+        // Detections of the calls that return recognitions.
+        private final DetectionBuffer detections = new DetectionBuffer();
+        // Input for recognizeImage, allocated on first use.
+        private ImageInput imageInput;
+
+        Engine(Interpreter interpreter) {
+            this.interpreter = interpreter;
+            outData = ByteBuffer.allocateDirect(output_box * (numClass + 5) * numBytesPerChannel);
+            outData.order(ByteOrder.nativeOrder());
+            outputMap.put(0, outData);
+            decoder = new YoloOutputDecoder(
+                    output_box, numClass, INPUT_SIZE, isModelQuantized, oup_scale, oup_zero_point);
+        }
 
-        Object[] inputArray = {imgData};
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+        synchronized ArrayList<Recognition> recognize(Bitmap bitmap) {
+            if (imageInput == null) {
+                imageInput = new ImageInput(INPUT_SIZE, isModelQuantized, inp_scale, inp_zero_point);
+            }
+            bitmap.getPixels(imageInput.pixels, 0, bitmap.getWidth(), 0, 0,
+                    bitmap.getWidth(), bitmap.getHeight());
+            return recognize(imageInput.write());
+        }
 
-        ByteBuffer byteBuffer = (ByteBuffer) outputMap.get(0);
-        assert byteBuffer != null;
-        byteBuffer.rewind();
+        synchronized ArrayList<Recognition> recognize(ByteBuffer input) {
+            recognize(input, detections);
+            final ArrayList<Recognition> recognitions = detections.toRecognitions();
+            detections.clear();
+            return recognitions;
+        }
 
-        ArrayList<Recognition> detections = new ArrayList<>();
+        synchronized void recognize(ByteBuffer input, DetectionBuffer out) {
+            input.rewind();
+            inputArray[0] = input;
+            outData.rewind();
+            interpreter.runForMultipleInputsOutputs(inputArray, outputMap);
 
-        float[][][] out = new float[1][output_box][numClass + 5];
-        Log.d("YoloV5Classifier", "out[0] detect start");
+            final int count = decoder.decode(
+                    outData, getObjThresh(), labels.size(), INPUT_SIZE - 1, INPUT_SIZE - 1);
 
-        for (int i = 0; i < output_box; ++i) {
-            for (int j = 0; j < numClass + 5; ++j) {
-                if (isModelQuantized){
-                    out[0][i][j] = oup_scale * (((int) byteBuffer.get() & 0xFF) - oup_zero_point);
-                }
-                else {
-                    out[0][i][j] = byteBuffer.getFloat();
-                }
-            }
-            // Denormalize xywh
-            for (int j = 0; j < 4; ++j) {
-                out[0][i][j] *= getInputSize();
+            if (keep.length < count) {
+                keep = new int[count * 2];
             }
-        }
-        for (int i = 0; i < output_box; ++i){
-            final int offset = 0;
-            final float confidence = out[0][i][4];
-            int detectedClass = -1;
-            float maxClass = 0;
-
-            final float[] classes = new float[labels.size()];
-            System.arraycopy(out[0][i], 5, classes, 0, labels.size());
-
-            for (int c = 0; c < labels.size(); ++c) {
-                if (classes[c] > maxClass) {
-                    detectedClass = c;
-                    maxClass = classes[c];
-                }
+            final int kept;
+            // The suppression keeps scratch arrays, the engines share it.
+            synchronized (nms) {
+                kept = nms.apply(decoder.boxes, decoder.scores, decoder.classes, count, keep);
             }
 
-            final float confidenceInClass = maxClass * confidence;
-            if (confidenceInClass > getObjThresh()) {
-                final float xPos = out[0][i][0];
-                final float yPos = out[0][i][1];
-
-                final float w = out[0][i][2];
-                final float h = out[0][i][3];
-                //Log.d("YoloV5Classifier",
-                        //Float.toString(xPos) + ',' + yPos + ',' + w + ',' + h);
-
-                final RectF rect =
-                        new RectF(
-                                Math.max(0, xPos - w / 2),
-                                Math.max(0, yPos - h / 2),
-                                Math.min(bitmap.getWidth() - 1, xPos + w / 2),
-                                Math.min(bitmap.getHeight() - 1, yPos + h / 2));
-                detections.add(new Recognition("" + offset, labels.get(detectedClass),
-                        confidenceInClass, rect, detectedClass));
+            final float[] boxes = decoder.boxes;
+            out.clear();
+            for (int k = 0; k < kept; k++) {
+                final int i = keep[k];
+                final int detectedClass = decoder.classes[i];
+                out.add(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3],
+                        decoder.scores[i], detectedClass, labels.get(detectedClass));
             }
         }
+    }
 
-        //Log.d("YoloV5Classifier", "detect end");
-        //        final ArrayList<Recognition> recognitions = detections;
-        return nms(detections);
+    /**
+     * The input of one interpreter for the bitmap calls. It has its own normalizer, whose scratch
+     * rows would otherwise mix up the inputs of interpreters running at the same time.
+     */
+    static final class ImageInput {
+        final int[] pixels;
+        private final int inputSize;
+        private final ByteBuffer buffer;
+        private final InputNormalizer normalizer;
+
+        ImageInput(int inputSize, boolean isQuantized, float inputScale, int inputZeroPoint) {
+            this.inputSize = inputSize;
+            pixels = new int[inputSize * inputSize];
+            buffer = ByteBuffer.allocateDirect(inputSize * inputSize * 3 * (isQuantized ? 1 : 4));
+            buffer.order(ByteOrder.nativeOrder());
+            normalizer = new InputNormalizer(isQuantized, inputScale, inputZeroPoint);
+        }
+
+        /** Writes {@link #pixels} into the input buffer and returns it rewound. */
+        ByteBuffer write() {
+            buffer.rewind();
+            normalizer.write(pixels, inputSize, inputSize, buffer);
+            buffer.rewind();
+            return buffer;
+        }
     }
+
     public static MappedByteBuffer loadModelFile(AssetManager assets, String modelFilename)
             throws IOException {
         AssetFileDescriptor fileDescriptor = assets.openFd(modelFilename);
@@ -21,7 +21,6 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.media.ImageReader.OnImageAvailableListener;
@@ -29,6 +28,7 @@ import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.widget.CompoundButton;
 import android.widget.ImageView;
@@ -37,18 +37,36 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.widget.SwitchCompat;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.task.vision.classifier.Classifications;
-import org.tensorflow.lite.task.vision.classifier.ImageClassifier;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import thesis.rttsd_thesis.detection.Classifier.Recognition;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import thesis.rttsd_thesis.detection.DetectionBuffer;
+import thesis.rttsd_thesis.detection.ModelRegistry;
+import thesis.rttsd_thesis.detection.SignClassifier;
+import thesis.rttsd_thesis.detection.SignTable;
+import thesis.rttsd_thesis.detection.StageModeReport;
+import thesis.rttsd_thesis.detection.StageSelector;
 import thesis.rttsd_thesis.detection.YoloV5Classifier;
 import thesis.rttsd_thesis.customview.OverlayView;
 import thesis.rttsd_thesis.env.BorderedText;
+import thesis.rttsd_thesis.env.CropResampler;
 import thesis.rttsd_thesis.env.ImageUtils;
+import thesis.rttsd_thesis.env.YuvTensorSampler;
+import thesis.rttsd_thesis.pipeline.FramePipeline;
+import thesis.rttsd_thesis.pipeline.FramePool;
+import thesis.rttsd_thesis.pipeline.RefCountedFrame;
+import thesis.rttsd_thesis.tracking.ClassificationCache;
 import thesis.rttsd_thesis.tracking.MultiBoxTracker;
+import thesis.rttsd_thesis.tracking.SignVoter;
+import thesis.rttsd_thesis.tracking.SortTracker;
 
 
 /**
@@ -56,6 +74,7 @@ import thesis.rttsd_thesis.tracking.MultiBoxTracker;
  * objects.
  */
 public class DetectorActivity extends CameraActivity implements OnImageAvailableListener {
+  private static final String TAG = "DetectorActivity";
 
   // Variables for Object Detection
   private static final int TF_OD_API_INPUT_SIZE = 640;
@@ -69,11 +88,41 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   private static final boolean MAINTAIN_ASPECT = true;
   private static final Size DESIRED_PREVIEW_SIZE = new Size(0, 0);
   private static final boolean SAVE_PREVIEW_BITMAP = false;
+  // Sample the YUV frame straight into the detector input instead of going through bitmaps.
+  private static final boolean FUSED_PREPROCESSING = true;
+  // Frames in flight through the convert, detect, track, classify and notify stages.
+  private static final int PIPELINE_FRAMES = 3;
+  // Interpreters detecting frames at once. A single one runs on the GPU delegate. Past about four
+  // threads one interpreter scales poorly, so on 8 core devices without a usable GPU set this to 2
+  // to detect two frames at once on the CPU instead.
+  private static final int DETECTOR_INTERPRETERS = 1;
+  // Blank invocations per interpreter while loading, 0 to skip the warm-up.
+  private static final int DETECTOR_WARM_UP_RUNS = 2;
   private static final float TEXT_SIZE_DIP = 10;
 
   //Variables for Classifier
   public static float CLASSIFICATION_THRESHOLD = 0.6f;
   public static String MODEL_FILENAME = "model82Q.tflite";
+  private static final String SIGN_TABLE_FILE = "sign_table.csv";
+  private static final int CLASSIFIER_POOL_SIZE = 2;
+  private static final int CLASSIFIER_NUM_THREADS = 2;
+  private static final boolean CLASSIFIER_BATCH_MODE = true;
+  // Whether confident boxes keep the detector's class instead of being classified again. Needs a
+  // detector whose labels file names the signs of the sign table, otherwise all frames are two
+  // stage. COMPARE alternates the modes per frame for the report logged on pause.
+  private static final int STAGE_MODE = StageSelector.SINGLE_STAGE;
+  private static final float SINGLE_STAGE_MIN_SCORE = 0.8f;
+  // A tracked sign is classified again once its result is older than the TTL, its box grew by
+  // half, or while its score is below the minimum.
+  private static final int CLASSIFICATION_CACHE_SIZE = 32;
+  private static final long CLASSIFICATION_CACHE_TTL_MS = 1000;
+  private static final float CLASSIFICATION_CACHE_MIN_SCORE = 0.8f;
+  private static final float CLASSIFICATION_CACHE_GROWTH = 1.5f;
+  // A tracked sign is acted on once about two confident classifications agree, evidence halves
+  // every four votes on the track, whatever the frame rate.
+  private static final float SIGN_VOTE_HALF_LIFE = 4;
+  private static final float SIGN_VOTE_COMMIT_SCORE = 1.5f;
+  private static final float SIGN_VOTE_MARGIN = 0.5f;
   private static SwitchCompat notification;
   public static final int INPUT_IMG_SIZE_WIDTH = 64;
   public static final int INPUT_IMG_SIZE_HEIGHT = 64;
@@ -81,12 +130,44 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   public OverlayView trackingOverlay;
   private YoloV5Classifier detector;
-  private long lastProcessingTimeMs;
-  private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
-  private Bitmap cropCopyBitmap = null;
-
-  private boolean computingDetection = false;
+  private SignClassifier signClassifier;
+  private SignTable signTable;
+  private StageSelector stageSelector;
+  private final StageModeReport stageModeReport = new StageModeReport();
+  // Title of boxes the second stage could not classify.
+  private String unknownSignTitle;
+  // Only touched by the classify stage, like the voter.
+  private final ClassificationCache classificationCache = new ClassificationCache(
+          CLASSIFICATION_CACHE_SIZE, CLASSIFICATION_CACHE_TTL_MS,
+          CLASSIFICATION_CACHE_MIN_SCORE, CLASSIFICATION_CACHE_GROWTH);
+  private final SignVoter signVoter = new SignVoter(
+          CLASSIFICATION_CACHE_SIZE, SIGN_VOTE_HALF_LIFE, SIGN_VOTE_COMMIT_SCORE, SIGN_VOTE_MARGIN);
+  // Resamples the boxes for the second stage, only used by the classify stage.
+  private final CropResampler cropResampler =
+          new CropResampler(INPUT_IMG_SIZE_WIDTH, INPUT_IMG_SIZE_HEIGHT);
+  // Sign last acted on per track id, only touched by the notify stage.
+  private final SparseIntArray actedSigns = new SparseIntArray();
+  // Emits the detector once the models are loaded and warmed up, cached for later preview sizes.
+  private Single<YoloV5Classifier> detectorReady;
+  private Disposable detectorSetup;
+  private boolean resumed;
+  private long createTime;
+  private volatile long detectorLoadMs = -1;
+  private final AtomicLong timeToFirstDetectionMs = new AtomicLong(-1);
+  private volatile long lastProcessingTimeMs;
+  private long shownProcessingTimeMs = -1;
+  // Posted once per frame, reused so posting allocates nothing.
+  private final Runnable showInference = () -> {
+    final long processingTimeMs = lastProcessingTimeMs;
+    if (processingTimeMs != shownProcessingTimeMs) {
+      shownProcessingTimeMs = processingTimeMs;
+      showInference(processingTimeMs + "ms");
+    }
+  };
+  private YuvTensorSampler inputSampler;
+  private volatile FramePipeline<DetectionFrame> pipeline;
+  private final AtomicInteger pendingNumThreads = new AtomicInteger();
+  private final AtomicBoolean convertPending = new AtomicBoolean();
 
   private Matrix frameToCropTransform;
   private Matrix cropToFrameTransform;
@@ -95,6 +176,16 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   private ImageView viewSign;
 
 
+  @Override
+  protected void onCreate(final Bundle savedInstanceState) {
+    createTime = SystemClock.uptimeMillis();
+    // Load the models in the background while the camera opens, the pipeline starts once both
+    // the models and the preview size are there.
+    detectorReady = Single.fromCallable(this::loadDetector).subscribeOn(Schedulers.io()).cache();
+    detectorSetup = detectorReady.subscribe(detector -> {}, error -> {});
+    super.onCreate(savedInstanceState);
+  }
+
   protected void onSaveInstanceState(@NonNull Bundle outState) {
     super.onSaveInstanceState(outState);
   }
@@ -143,34 +234,21 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         BorderedText borderedText = new BorderedText(textSizePx);
       borderedText.setTypeface(Typeface.MONOSPACE);
 
+      // The camera was reopened, let the frames of the previous session drain first.
+      if (pipeline != null) {
+        pipeline.stop();
+        pipeline = null;
+      }
+
       tracker = new MultiBoxTracker(this);
 
       int cropSize = TF_OD_API_INPUT_SIZE;
-        try {
-            detector =
-                    YoloV5Classifier.create(
-                            getAssets(),
-                            TF_OD_API_MODEL_FILE,
-                            TF_OD_API_LABELS_FILE,
-                            TF_OD_API_IS_QUANTIZED,
-                            TF_OD_API_INPUT_SIZE);
-        } catch (final IOException e) {
-            e.printStackTrace();
-            Toast toast =
-                    Toast.makeText(
-                            getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
-            toast.show();
-            finish();
-        }
 
       previewWidth = size.getWidth();
       previewHeight = size.getHeight();
 
       int sensorOrientation = rotation - getScreenOrientation();
 
-      rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-      croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
-
       frameToCropTransform =
               ImageUtils.getTransformationMatrix(
                       previewWidth, previewHeight,
@@ -190,359 +268,439 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
               });
 
       tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+      unknownSignTitle = getString(R.string.signTxt);
+      showFrameInfo(previewWidth + "x" + previewHeight);
+      showCropInfo(TF_OD_API_INPUT_SIZE + "x" + TF_OD_API_INPUT_SIZE);
+
+      // Frames that arrive before the detector is ready find no pipeline and are dropped.
+      if (detectorSetup != null) {
+        detectorSetup.dispose();
+      }
+      detectorSetup = detectorReady
+              .observeOn(AndroidSchedulers.mainThread())
+              .subscribe(this::startPipeline, this::onDetectorFailed);
     }
 
-    @Override
-    protected void processImage () {
-        trackingOverlay.postInvalidate();
+    /**
+     * Runs in the background, see {@link #onCreate}. The models come from the {@link
+     * ModelRegistry}, so a recreated activity gets the ones it already loaded and warmed up.
+     */
+    private YoloV5Classifier loadDetector() throws IOException {
+      final long start = SystemClock.uptimeMillis();
+      signTable = SignTable.load(this, SIGN_TABLE_FILE);
+      final ModelRegistry registry = ModelRegistry.getInstance();
+      final int loadCount = registry.getLoadCount();
+      final YoloV5Classifier detector =
+              registry.acquireDetector(
+                      getApplicationContext(),
+                      TF_OD_API_MODEL_FILE,
+                      TF_OD_API_LABELS_FILE,
+                      TF_OD_API_IS_QUANTIZED,
+                      TF_OD_API_INPUT_SIZE,
+                      DETECTOR_INTERPRETERS);
+      try {
+        signClassifier =
+                registry.acquireSignClassifier(
+                        getApplicationContext(),
+                        MODEL_FILENAME,
+                        CLASSIFIER_POOL_SIZE,
+                        CLASSIFIER_NUM_THREADS);
+      } catch (final IOException | RuntimeException e) {
+        registry.release(detector);
+        throw e;
+      }
+      signClassifier.setBatchMode(CLASSIFIER_BATCH_MODE);
+      stageSelector = StageSelector.create(
+              STAGE_MODE, detector.getLabels(), signTable, SINGLE_STAGE_MIN_SCORE);
+      if (STAGE_MODE != StageSelector.TWO_STAGE && !stageSelector.isSingleStageAvailable()) {
+        Log.w(TAG, "No detector label names a sign, every box is classified by the second stage");
+      }
+      final long loaded = SystemClock.uptimeMillis();
+      if (registry.getLoadCount() != loadCount) {
+        // Only freshly loaded interpreters need a warm-up.
+        detector.warmUp(DETECTOR_WARM_UP_RUNS);
+      }
+      detectorLoadMs = SystemClock.uptimeMillis() - start;
+      Log.i(TAG, "Models loaded in " + (loaded - start) + "ms, warmed up in "
+              + (SystemClock.uptimeMillis() - loaded) + "ms");
+      return detector;
+    }
 
-      // No mutex needed as this method is not reentrant.
-      if (computingDetection) {
-        readyForNextImage();
-        return;
+    private void releaseModels(YoloV5Classifier detector) {
+      final ModelRegistry registry = ModelRegistry.getInstance();
+      registry.release(detector);
+      registry.release(signClassifier);
+    }
+
+    private void startPipeline(YoloV5Classifier detector) {
+      this.detector = detector;
+      // Decodes the announcements on the player's thread, clips already loaded are skipped.
+      mediaPlayerHolder.preload(signTable.getSounds());
+      inputSampler =
+              new YuvTensorSampler(
+                      previewWidth, previewHeight,
+                      TF_OD_API_INPUT_SIZE,
+                      frameToCropTransform,
+                      detector.getInputNormalizer());
+      pipeline = createPipeline(TF_OD_API_INPUT_SIZE);
+      if (resumed) {
+        pipeline.start();
       }
-      computingDetection = true;
+    }
 
-      rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    private void onDetectorFailed(Throwable error) {
+      Log.e(TAG, "Detector could not be initialized", error);
+      Toast toast =
+              Toast.makeText(
+                      getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
+      toast.show();
+      finish();
+    }
 
-      readyForNextImage();
+    /** Time the models took to load and warm up, -1 until they are ready. */
+    public long getDetectorLoadMs() {
+      return detectorLoadMs;
+    }
+
+    /** Time from the activity's creation to the first detected frame, -1 until then. */
+    public long getTimeToFirstDetectionMs() {
+      return timeToFirstDetectionMs.get();
+    }
 
-      final Canvas canvas = new Canvas(croppedBitmap);
-      canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-      // For examining the actual TF input.
-      if (SAVE_PREVIEW_BITMAP) {
-        ImageUtils.saveBitmap(croppedBitmap);
+    private FramePipeline<DetectionFrame> createPipeline(int cropSize) {
+      // One more frame per extra interpreter keeps them all busy.
+      final int frameCount = PIPELINE_FRAMES + detector.getNumInterpreters() - 1;
+      final List<DetectionFrame> frames = new ArrayList<>(frameCount);
+      for (int i = 0; i < frameCount; i++) {
+        frames.add(new DetectionFrame(detector.createInputBuffer(), cropSize));
       }
+      final FramePipeline<DetectionFrame> pipeline = new FramePipeline<>(new FramePool<>(frames));
+      pipeline.addStage("convert", this::convertFrame)
+              .addStage("detect", this::detectFrame, detector.getNumInterpreters())
+              .addStage("track", this::trackFrame)
+              .addStage("classify", this::classifyFrame)
+              .addStage("notify", this::notifyFrame);
+      // A frame dropped before conversion never took its camera frame.
+      pipeline.setDropListener(frame -> {
+        if (frame.waitingForCamera) {
+          frame.waitingForCamera = false;
+          convertPending.set(false);
+        }
+      });
+      return pipeline;
+    }
 
-      runInBackground(
-              () -> {
-                final long startTime = SystemClock.uptimeMillis();
-                List<Recognition> results = detector.recognizeImage(croppedBitmap);
+    /** Queue depth and occupancy of the detection pipeline stages, empty before it is created. */
+    public List<FramePipeline.StageStats> getPipelineStats() {
+      final FramePipeline<DetectionFrame> pipeline = this.pipeline;
+      return pipeline != null ? pipeline.getStageStats() : new ArrayList<>();
+    }
 
-                cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
+    /** Latency and accuracy of the two and the single stage mode. */
+    public StageModeReport getStageModeReport() {
+      return stageModeReport;
+    }
 
-                float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+    /** Hits and misses of the per track classification results. */
+    public ClassificationCache getClassificationCache() {
+      return classificationCache;
+    }
 
-                final List<Recognition> mappedRecognitions = new ArrayList<>();
+    @Override
+    protected void processImage () {
+        trackingOverlay.postInvalidate();
 
-                int cResults = 0;
-                for (Recognition result : results) {
-                  RectF location = result.getLocation();
-                  if (location != null && result.getConfidence() >= minimumConfidence) {
-                      classify(result);
+      // The convert stage takes the latest camera frame when it gets to it, so one queued frame is
+      // enough. Camera frames that arrive in the meantime replace each other in the mailbox.
+      if (!convertPending.compareAndSet(false, true)) {
+        return;
+      }
+      final FramePipeline<DetectionFrame> pipeline = this.pipeline;
+      final DetectionFrame frame = pipeline != null ? pipeline.acquire() : null;
+      if (frame == null) {
+        // Every frame is in flight (or detection is not set up), the camera frame waits in the
+        // mailbox until it is replaced or the next camera frame finds a free one.
+        convertPending.set(false);
+        return;
+      }
+      frame.waitingForCamera = true;
+      pipeline.submit(frame);
+    }
 
-                      cResults++;
-                    if (cResults > maximumResults) break;
+    private boolean convertFrame(DetectionFrame frame) {
+      frame.waitingForCamera = false;
+      // Cleared before taking, so a camera frame posted after the take queues another frame.
+      convertPending.set(false);
+      final CameraFrame cameraFrame = takeLatestFrame();
+      if (cameraFrame == null) {
+        // An earlier frame already took the latest camera frame.
+        return false;
+      }
+      frame.startTime = cameraFrame.getTimestamp();
+      frame.sequence = cameraFrame.getSequence();
+      try {
+        if (FUSED_PREPROCESSING) {
+          fillInputBuffer(cameraFrame, inputSampler, frame.input, frame.pixels);
+        } else {
+          frame.ensureRgb(previewWidth, previewHeight);
+          frame.rgbBitmap.setPixels(
+                  getRgbBytes(cameraFrame, frame.rgb), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        }
+      } finally {
+        cameraFrame.release();
+      }
 
-                    cropToFrameTransform.mapRect(location);
+      if (!FUSED_PREPROCESSING) {
+        final Canvas canvas = new Canvas(frame.bitmap);
+        canvas.drawBitmap(frame.rgbBitmap, frameToCropTransform, null);
+        // For examining the actual TF input.
+        if (SAVE_PREVIEW_BITMAP) {
+          ImageUtils.saveBitmap(frame.bitmap);
+        }
+        frame.bitmap.getPixels(
+                frame.pixels, 0, TF_OD_API_INPUT_SIZE, 0, 0, TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE);
+        frame.input.rewind();
+        detector.getInputNormalizer().write(
+                frame.pixels, TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, frame.input);
+      }
+      return true;
+    }
 
-                    result.setLocation(location);
-                    mappedRecognitions.add(result);
+    private boolean detectFrame(DetectionFrame frame) {
+      final int numThreads = pendingNumThreads.getAndSet(0);
+      if (numThreads > 0) {
+        detector.setNumThreads(numThreads);
+      }
+      detector.recognizeInput(frame.input, frame.detections);
+      if (timeToFirstDetectionMs.compareAndSet(-1, SystemClock.uptimeMillis() - createTime)) {
+        Log.i(TAG, "First detection after " + timeToFirstDetectionMs.get() + "ms");
+      }
+      return true;
+    }
 
-                    //runInBackground(() -> checkSpeedLimit(result.getTitle().trim()));
-                      runOnUiThread(() -> {checkSpeedLimit(result.getTitle().trim());});
-                    if(getNotificationSpeed() && notification.isChecked()) runInBackground(() -> playSound(result.getTitle()));
+    private boolean trackFrame(DetectionFrame frame) {
+      float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
 
-                  }
-                }
-                lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+      final DetectionBuffer detections = frame.detections;
+      detections.retain(minimumConfidence, maximumResults);
+      detections.transformBoxes(cropToFrameTransform);
+      // Tracked before classification, so signs that are already known can skip it.
+      tracker.trackResults(detections);
+      return true;
+    }
 
-                tracker.trackResults(mappedRecognitions);
-                trackingOverlay.postInvalidate();
+    private boolean classifyFrame(DetectionFrame frame) {
+      if (FUSED_PREPROCESSING && SAVE_PREVIEW_BITMAP) {
+        fillBitmap(frame);
+        ImageUtils.saveBitmap(frame.bitmap);
+      }
+      final int mode = stageSelector.modeOf(frame.sequence);
+      final long classifyStart = System.nanoTime();
+      final int classified = classify(frame, mode);
+      final long classifyNanos = System.nanoTime() - classifyStart;
+      tracker.updateLabels(frame.detections);
+      lastProcessingTimeMs = SystemClock.uptimeMillis() - frame.startTime;
+      stageModeReport.addFrame(
+              mode, lastProcessingTimeMs, classifyNanos, frame.detections.size(), classified);
+
+      trackingOverlay.postInvalidate();
+
+      runOnUiThread(showInference);
+      return true;
+    }
 
-                computingDetection = false;
+    private void fillBitmap(DetectionFrame frame) {
+      // With fused preprocessing the bitmap is only filled when it is saved.
+      if (FUSED_PREPROCESSING && !frame.bitmapFilled) {
+        frame.bitmap.setPixels(
+                frame.pixels, 0, TF_OD_API_INPUT_SIZE, 0, 0, TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE);
+        frame.bitmapFilled = true;
+      }
+    }
 
-                runOnUiThread(
-                        () -> {
-                          showFrameInfo(previewWidth + "x" + previewHeight);
-                          showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                          showInference(lastProcessingTimeMs + "ms");
-                        });
-              });
+    private boolean notifyFrame(DetectionFrame frame) {
+      for (int i = actedSigns.size() - 1; i >= 0; i--) {
+          if (!tracker.isTracked(actedSigns.keyAt(i))) {
+              actedSigns.removeAt(i);
+          }
+      }
+      final DetectionBuffer detections = frame.detections;
+      for (int i = 0; i < detections.size(); i++) {
+          // Act once per tracked sign, and again only if its classification changes.
+          final int trackId = detections.getTrackId(i);
+          if (trackId == SortTracker.NO_TRACK) {
+              continue;
+          }
+          final int signId = detections.getSignId(i);
+          final int actedSign = actedSigns.get(trackId, SignTable.UNKNOWN);
+          actedSigns.put(trackId, signId);
+          if (actedSign == signId) {
+              continue;
+          }
+          final SignTable.Sign sign = signTable.get(signId);
+          if (sign != null && sign.speedLimit > 0) {
+              runOnUiThread(() -> showSpeedLimit(sign));
+          }
+          if (notification.isChecked()) playSound(sign);
+      }
+      return true;
     }
 
-    private void checkSpeedLimit(String title){
-      switch (title){
-          case "Μέγιστη ταχύτητα 20km/h":
-              setSpeedLimit(20);
-              viewSign.setImageResource(R.drawable.speed_sign_20);
-              break;
-          case "Μέγιστη ταχύτητα 30km/h":
-              setSpeedLimit(30);
-              viewSign.setImageResource(R.drawable.speed_sign_30);
-              break;
-          case "Μέγιστη ταχύτητα 40km/h":
-              setSpeedLimit(40);
-              viewSign.setImageResource(R.drawable.speed_sign_40);
-              break;
-          case "Μέγιστη ταχύτητα 50km/h":
-              setSpeedLimit(50);
-              viewSign.setImageResource(R.drawable.speed_sign_50);
-              break;
-          case "Μέγιστη ταχύτητα 60km/h":
-              setSpeedLimit(60);
-              viewSign.setImageResource(R.drawable.speed_sign_60);
-              break;
-          case "Μέγιστη ταχύτητα 70km/h":
-              setSpeedLimit(70);
-              viewSign.setImageResource(R.drawable.speed_sign_70);
-              break;
-          case "Μέγιστη ταχύτητα 80km/h":
-              setSpeedLimit(80);
-              viewSign.setImageResource(R.drawable.speed_sign_80);
-              break;
-          case "Μέγιστη ταχύτητα 90km/h":
-              setSpeedLimit(90);
-              viewSign.setImageResource(R.drawable.speed_sign_90);
-              break;
-          case "Μέγιστη ταχύτητα 100km/h":
-              setSpeedLimit(100);
-              viewSign.setImageResource(R.drawable.speed_sign_100);
-              break;
-          case "Μέγιστη ταχύτητα 110km/h":
-              setSpeedLimit(110);
-              viewSign.setImageResource(R.drawable.speed_sign_110);
-              break;
-          case "Μέγιστη ταχύτητα 120km/h":
-              setSpeedLimit(120);
-              viewSign.setImageResource(R.drawable.speed_sign_120);
-              break;
-          default:
-              break;
+    private void showSpeedLimit(SignTable.Sign sign){
+      setSpeedLimit(sign.speedLimit);
+      if (sign.drawable != 0) {
+          viewSign.setImageResource(sign.drawable);
       }
     }
 
-    @SuppressLint("ResourceType")
-    private void playSound(String title) {
-        setNotificationSpeed(false);
-        switch (title.trim()) {
-            case "Τέλος οδού προτεραιότητας":
-                mediaPlayerHolder.loadMedia(R.raw.priority_road_ends_3);
-                break;
-            case "Υποχρεωτική κατεύθυνση ευθεία":
-                mediaPlayerHolder.loadMedia(R.raw.go_straight_ahead_4);
-                break;
-            case "Υποχρεωτική κατεύθυνση ευθεία ή αριστερά":
-                mediaPlayerHolder.loadMedia(R.raw.go_straight_ahead_or_turn_left_5);
-                break;
-            case "Υποχρεωτική κατεύθυνση ευθεία ή δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.go_straight_ahead_or_turn_right_6);
-                break;
-            case "Υποχρεωτική διέλευση αριστερά":
-                mediaPlayerHolder.loadMedia(R.raw.passing_left_mandatory_8);
-                break;
-            case "Υποχρεωτική διέλευση δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.passing_right_mandatory_9);
-                break;
-            case "Μέγιστη ταχύτητα 20km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_20kmh_10);
-                break;
-            case "Μέγιστη ταχύτητα 30km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_30kmh_11);
-                break;
-            case "Μέγιστη ταχύτητα 40km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_40kmh_12);
-                break;
-            case "Μέγιστη ταχύτητα 50km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_50kmh_13);
-                break;
-            case "Μέγιστη ταχύτητα 60km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_60kmh_14);
-                break;
-            case "Μέγιστη ταχύτητα 70km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_70kmh_15);
-                break;
-            case "Μέγιστη ταχύτητα 80km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_80kmh_16);
-                break;
-            case "Μέγιστη ταχύτητα 90km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_90kmh_17);
-                break;
-            case "Μέγιστη ταχύτητα 100km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_100kmh_18);
-                break;
-            case "Μέγιστη ταχύτητα 110km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_110kmh_19);
-                break;
-            case "Μέγιστη ταχύτητα 120km/h":
-                mediaPlayerHolder.loadMedia(R.raw.maxsl_120kmh_20);
-                break;
-            case "Απαγορεύεται η είσοδος ποδήλατων":
-                mediaPlayerHolder.loadMedia(R.raw.cyclists_prohibited_21);
-                break;
-            case "Απαγορεύονται όλα τα οχήματα":
-                mediaPlayerHolder.loadMedia(R.raw.no_vehicle_entry_22);
-                break;
-            case "Απαγορεύεται η αριστερή στροφή":
-                mediaPlayerHolder.loadMedia(R.raw.turning_left_prohibited_24);
-                break;
-            case "Απαγορεύεται η είσοδος αυτοκίνητων":
-                mediaPlayerHolder.loadMedia(R.raw.cars_prohibited_25);
-                break;
-            case "Απαγορεύεται η είσοδος μοτοσυκλετών":
-                mediaPlayerHolder.loadMedia(R.raw.motorcycles_prohibited_26);
-                break;
-            case "Απαγορεύεται η δεξιά στροφή":
-                mediaPlayerHolder.loadMedia(R.raw.turning_right_prohibited_31);
-                break;
-            case "Απαγορεύεται η στάση και στάθμευση":
-                mediaPlayerHolder.loadMedia(R.raw.parking_and_stopping_prohibited_32);
-                break;
-            case "Απαγορεύεται η αναστροφή":
-                mediaPlayerHolder.loadMedia(R.raw.u_turn_prohibited_33);
-                break;
-            case "Μονόδρομος αριστερά":
-                mediaPlayerHolder.loadMedia(R.raw.mandatory_one_way_34_35_36);
-                break;
-            case "Μονόδρομος δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.mandatory_one_way_34_35_36);
-                break;
-            case "Μονόδρομος μπροστά":
-                mediaPlayerHolder.loadMedia(R.raw.mandatory_one_way_34_35_36);
-                break;
-            case "Υποχρεωτική διέλευση αριστερά ή δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.passing_left_or_right_37);
-                break;
-            case "Οδός διέλευσης πεζών":
-                mediaPlayerHolder.loadMedia(R.raw.pedestrians_only_path_38);
-                break;
-            case "Οδός προτεραιότητας":
-                mediaPlayerHolder.loadMedia(R.raw.priority_road_39);
-                break;
-            case "Στοπ":
-                mediaPlayerHolder.loadMedia(R.raw.stop_43);
-                break;
-            case "Υποχρεωτική κατεύθυνση αριστερά":
-                mediaPlayerHolder.loadMedia(R.raw.turning_left_mandatory_44);
-                break;
-            case "Υποχρεωτική κατεύθυνση δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.turning_right_mandatory_45);
-                break;
-            case "Παραχώρηση προτεραιότητας":
-                mediaPlayerHolder.loadMedia(R.raw.give_way_47);
-                break;
-            case "Διάβαση πεζών":
-                mediaPlayerHolder.loadMedia(R.raw.crossing_for_pedestrians_53);
-                break;
-            case "Συχνή κίνηση παιδιών":
-                mediaPlayerHolder.loadMedia(R.raw.children_crossing_54);
-                break;
-            case "Διασταύρωση με οδό αριστερά και δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.crossroad_left_n_right_55);
-                break;
-            case "Επικίνδυνη δεξιά στροφή":
-                mediaPlayerHolder.loadMedia(R.raw.curve_left_56);
-                break;
-            case "Επικίνδυνη αριστερή στροφή":
-                mediaPlayerHolder.loadMedia(R.raw.curve_right_57);
-                break;
-            case "Επικίνδυνες διαδοχικές στροφές - πρώτη αριστερή":
-                mediaPlayerHolder.loadMedia(R.raw.double_curve_58_59);
-                break;
-            case "Επικίνδυνες διαδοχικές στροφές - πρώτη δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.double_curve_58_59);
-                break;
-            case "Διασταύρωση με οδό αριστερά":
-                mediaPlayerHolder.loadMedia(R.raw.crossroad_left_side_road_60);
-                break;
-            case "Διασταύρωση με οδό δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.crossroad_right_side_road_61);
-                break;
-            case "Άλλοι κίνδυνοι":
-                mediaPlayerHolder.loadMedia(R.raw.other_danger_62);
-                break;
-            case "Κίνδυνος διάβασης πεζών":
-                mediaPlayerHolder.loadMedia(R.raw.pedestrians_crossing_63);
-                break;
-            case "Μονή σιδηροδρομική γραμμή":
-                mediaPlayerHolder.loadMedia(R.raw.railroad_crossing_64);
-                break;
-            case "Σιδηροδρομική διάβαση χωρίς κινητά οδοφράγματα":
-                mediaPlayerHolder.loadMedia(R.raw.railroad_crossing_without_barriers_65);
-                break;
-            case "Υπερυψωμένο οδόστρωμα":
-                mediaPlayerHolder.loadMedia(R.raw.speed_bump_66);
-                break;
-            case "Στένωση δρόμου αριστερά και δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.road_narrows_67);
-                break;
-            case "Στένωση δρόμου αριστερά":
-                mediaPlayerHolder.loadMedia(R.raw.road_narrows_left_68);
-                break;
-            case "Στένωση δρόμου δεξιά":
-                mediaPlayerHolder.loadMedia(R.raw.road_narrows_right_69);
-                break;
-            case "Έργα":
-                mediaPlayerHolder.loadMedia(R.raw.roadworks_70);
-                break;
-            case "Προσέγγιση σε κυκλικό κόμβο":
-                mediaPlayerHolder.loadMedia(R.raw.roundabout_71);
-                break;
-            case "Ολισθηρό οδόστρωμα":
-                mediaPlayerHolder.loadMedia(R.raw.slippery_road_surface_72);
-                break;
-            case "Κόμβος με φανάρι":
-                mediaPlayerHolder.loadMedia(R.raw.traffic_light_74);
-                break;
-            case "Διπλή κυκλοφορία":
-                mediaPlayerHolder.loadMedia(R.raw.two_way_traffic_75);
-                break;
-            case "Ανώμαλο οδόστρωμα":
-                mediaPlayerHolder.loadMedia(R.raw.uneven_road_76);
-                break;
-            default:
-                break;
+    private void playSound(SignTable.Sign sign) {
+        // The announcement scheduler drops repeats of the same sign and orders the rest.
+        if (sign != null && sign.sound != 0) {
+            mediaPlayerHolder.loadMedia(sign.sound, sign.priority);
         }
     }
 
-    //This method gets a recognised box of sign and returns the classified sign.
-    private void classify (Recognition result){
-        Matrix matrix = new Matrix();
-        matrix.postRotate(0);
-
-        Bitmap crop = Bitmap.createBitmap(croppedBitmap,
-                (int) result.getLocation().left,
-                (int) result.getLocation().top,
-                (int) result.getLocation().width(),
-                (int) result.getLocation().height(),
-                matrix,
-                true);
-
-        if (crop != null) {
-            try {
-                crop = prepareImageForClassification(crop);
+    //This method gets the recognised boxes of signs and sets the classified sign on each of them.
+    //Tracked signs with a recent enough result are taken from the cache instead, and in single
+    //stage frames confident boxes keep the detector's class. The sign id is only set once the
+    //classifications of several frames agree on it. Returns the boxes the second stage classified.
+    private int classify (DetectionFrame frame, int mode){
+        final DetectionBuffer detections = frame.detections;
+        if (detections.size() == 0) return 0;
+
+        final long now = SystemClock.uptimeMillis();
+        if (frame.misses.length < detections.size()) {
+            frame.misses = new int[detections.size()];
+        }
+        final int[] misses = frame.misses;
+        int missCount = 0;
+        for (int i = 0; i < detections.size(); i++) {
+            if (mode == StageSelector.SINGLE_STAGE) {
+                final int headSign = stageSelector.signOf(
+                        detections.getDetectedClass(i), detections.getScore(i));
+                if (headSign != SignTable.UNKNOWN) {
+                    setSign(detections, i, headSign, signTable.get(headSign).label,
+                            detections.getScore(i));
+                    continue;
+                }
+            }
+            final ClassificationCache.Entry cached = classificationCache.get(
+                    detections.getTrackId(i), detections.getArea(i), now);
+            if (cached != null) {
+                detections.setTitle(i, cached.getLabel());
+                detections.setScore(i, cached.getScore());
+                detections.setSignId(i, cached.getSignId());
+                detections.setVoteShare(i, signVoter.getConfidence(detections.getTrackId(i)));
+            } else {
+                misses[missCount++] = i;
+            }
+        }
+        if (missCount == 0) return 0;
 
+        // Boxes are in frame coordinates since tracking, the crops are resampled from the input.
+        final int cropSize = INPUT_IMG_SIZE_WIDTH * INPUT_IMG_SIZE_HEIGHT;
+        if (frame.crops.length < missCount * cropSize) {
+            frame.crops = new int[missCount * cropSize];
+        }
+        final int[] crops = frame.crops;
+        if (frame.labels.length < missCount) {
+            frame.labels = new String[missCount];
+            frame.scores = new float[missCount];
+        }
+        final String[] labels = frame.labels;
+        final float[] scores = frame.scores;
+        final RectF location = frame.location;
+        for (int m = 0; m < missCount; m++) {
+            detections.getBox(misses[m], location);
+            frameToCropTransform.mapRect(location);
+            cropResampler.resample(frame.pixels, TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE,
+                    location.left, location.top, location.right, location.bottom,
+                    crops, m * cropSize);
+        }
 
-                // Initialization
-                ImageClassifier.ImageClassifierOptions options =
-                        ImageClassifier.ImageClassifierOptions.builder().setMaxResults(1).setScoreThreshold(CLASSIFICATION_THRESHOLD).setNumThreads(4).build();
+        // Run inference, batched into one call or spread over the pooled classifiers.
+        signClassifier.classifyAll(crops, INPUT_IMG_SIZE_WIDTH, INPUT_IMG_SIZE_HEIGHT, missCount,
+                CLASSIFICATION_THRESHOLD, labels, scores);
+
+        for (int m = 0; m < missCount; m++) {
+            final int i = misses[m];
+            final String label = labels[m];
+            final int trackId = detections.getTrackId(i);
+            final int signId = label != null ? signTable.idOf(label) : SignTable.UNKNOWN;
+            if (mode == StageSelector.TWO_STAGE && stageSelector.isSingleStageAvailable()) {
+                // Whether the single stage would have named the same sign, the box still has the
+                // detector score here.
+                stageModeReport.addCheck(stageSelector.signOf(
+                        detections.getDetectedClass(i), detections.getScore(i)), signId);
+            }
+            if (label != null) {
+                final int committed = setSign(detections, i, signId, label, scores[m]);
+                // Only a classification that agrees with the vote is reused.
+                if (signId != SignTable.UNKNOWN && committed == signId) {
+                    classificationCache.put(trackId, detections.getTitle(i), scores[m],
+                            committed, detections.getArea(i), now);
+                }
+            } else {
+                final int voteId = detections.getCandidateTrackId(i);
+                signVoter.vote(voteId, SignTable.UNKNOWN, 0);
+                final SignTable.Sign sign = signTable.get(signVoter.getCommitted(voteId));
+                detections.setTitle(i, sign != null ? sign.label : unknownSignTitle);
+                detections.setSignId(i, sign != null ? sign.id : SignTable.UNKNOWN);
+                detections.setVoteShare(i, signVoter.getConfidence(voteId));
+            }
+        }
+        return missCount;
+    }
 
-                ImageClassifier imageClassifier = ImageClassifier.createFromFileAndOptions(
-                        getApplicationContext(), MODEL_FILENAME, options);
+    //Votes for the sign one of the stages named and shows the committed sign, or the named one
+    //while there is none, with the score of the stage that named it. The vote share is kept apart
+    //from the score. Returns the committed sign.
+    private int setSign(DetectionBuffer detections, int i, int signId, String label, float score) {
+        // Tentative tracks vote too, so the frame that started the track counts.
+        final int voteId = detections.getCandidateTrackId(i);
+        final int committed = signVoter.vote(voteId, signId, score);
+        final SignTable.Sign sign = signTable.get(committed);
+        final float voteShare = signVoter.getConfidence(voteId);
+        detections.setTitle(i, sign != null ? sign.label : label);
+        // A committed sign other than the named one has no score of its own, it shows its share.
+        detections.setScore(i, sign == null || committed == signId ? score : voteShare);
+        detections.setSignId(i, committed);
+        detections.setVoteShare(i, voteShare);
+        return committed;
+    }
 
-                // Run inference
-                List<Classifications> results2 = imageClassifier.classify(
-                        TensorImage.fromBitmap(crop));
+    @Override
+    public synchronized void onResume() {
+      super.onResume();
+      resumed = true;
+      if (pipeline != null) {
+        pipeline.start();
+      }
+    }
 
-                result.setTitle(results2.get(0).getCategories().get(0).getLabel());
-                result.setConfidence(results2.get(0).getCategories().get(0).getScore());
-            } catch (Exception e) {
-              Log.e("SLClassifier error:", e.getMessage(),e);
-              result.setTitle(getString(R.string.signTxt));
-            }
+    @Override
+    public synchronized void onPause() {
+      resumed = false;
+      if (pipeline != null) {
+        pipeline.stop();
       }
+      Log.i(TAG, String.format("Classification cache: %d hits, %d misses, %.0f%% hit rate",
+              classificationCache.getHitCount(), classificationCache.getMissCount(),
+              100 * classificationCache.getHitRate()));
+      Log.i(TAG, "Stage modes:\n" + stageModeReport.report());
+      super.onPause();
     }
 
-    public static Bitmap prepareImageForClassification(Bitmap bitmap) {
-        Paint paint = new Paint();
-        Bitmap finalBitmap = Bitmap.createScaledBitmap(
-                bitmap,
-                INPUT_IMG_SIZE_WIDTH,
-                INPUT_IMG_SIZE_HEIGHT,
-                false);
-        Canvas canvas = new Canvas(finalBitmap);
-        canvas.drawBitmap(finalBitmap, 0, 0, paint);
-        return finalBitmap;
+    @Override
+    public synchronized void onDestroy() {
+      super.onDestroy();
+      if (detectorSetup != null) {
+        detectorSetup.dispose();
+        detectorSetup = null;
+      }
+      // Hand the models back to the registry, also if they are still loading. They stay loaded
+      // for the next activity until the registry is trimmed.
+      detectorReady.subscribe(this::releaseModels, error -> {});
     }
 
     @Override
@@ -560,9 +718,55 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     @Override
     protected void setNumThreads (final int numThreads){
-      runInBackground(() -> detector.setNumThreads(numThreads));
+      // Applied by the detect stage, the interpreter is not thread safe.
+      pendingNumThreads.set(numThreads);
     }
     public void setMaximumResults(int maximumResults) {
         this.maximumResults = maximumResults;
     }
+
+    /**
+     * Per frame slot handed from stage to stage, so several frames can be in flight without
+     * sharing buffers.
+     */
+    private static class DetectionFrame extends RefCountedFrame {
+      final ByteBuffer input;
+      final int[] pixels;
+      final Bitmap bitmap;
+      // Full resolution frame, only used without fused preprocessing.
+      int[] rgb;
+      Bitmap rgbBitmap;
+      final DetectionBuffer detections = new DetectionBuffer();
+      // Scratch for the classify stage, reused from frame to frame.
+      int[] misses = new int[0];
+      int[] crops = new int[0];
+      String[] labels = new String[0];
+      float[] scores = new float[0];
+      final RectF location = new RectF();
+      // Whether the bitmap holds this frame's pixels yet, with fused preprocessing.
+      boolean bitmapFilled;
+      long sequence;
+      long startTime;
+      // Set while the frame is queued for the convert stage.
+      volatile boolean waitingForCamera;
+
+      DetectionFrame(ByteBuffer input, int cropSize) {
+        this.input = input;
+        this.pixels = new int[cropSize * cropSize];
+        this.bitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+      }
+
+      void ensureRgb(int width, int height) {
+        if (rgb == null || rgb.length != width * height) {
+          rgb = new int[width * height];
+          rgbBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        }
+      }
+
+      @Override
+      protected void onRecycle() {
+        detections.clear();
+        bitmapFilled = false;
+      }
+    }
 }
\ No newline at end of file
@@ -42,6 +42,7 @@ import thesis.rttsd_thesis.env.ImageUtils;
 
 @SuppressLint("ValidFragment")
 public class LegacyCameraConnectionFragment extends Fragment {
+  private static final int CALLBACK_BUFFERS = 3;
   /** Conversion from screen rotation to JPEG orientation. */
   private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
@@ -181,7 +182,10 @@ public class LegacyCameraConnectionFragment extends Fragment {
 
     camera.setPreviewCallbackWithBuffer(imageListener);
     Camera.Size s = camera.getParameters().getPreviewSize();
-    camera.addCallbackBuffer(new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+    // One buffer is filled while one waits for the detector and one is being converted.
+    for (int i = 0; i < CALLBACK_BUFFERS; i++) {
+      camera.addCallbackBuffer(new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+    }
 
     textureView.setAspectRatio(s.height, s.width);
 
@@ -0,0 +1,124 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.env;
+
+/**
+ * Crops a box out of an ARGB image and resizes it to a fixed size in one pass.
+ *
+ * <p>Every destination pixel is sampled bilinearly from the four source pixels around its center,
+ * samples outside the image are clamped to its edge. This replaces cropping into a bitmap, scaling
+ * that into another one and copying the result into the classifier input. Weights are 8 bit fixed
+ * point, and red and blue are blended together in one int, so the inner loop has no float math.
+ *
+ * <p>Not thread safe, the per row and column tables are reused from crop to crop.
+ */
+public class CropResampler {
+  private static final int ONE = 256;
+
+  private final int dstWidth;
+  private final int dstHeight;
+  private final int[] x0;
+  private final int[] x1;
+  private final int[] wx;
+  private final int[] y0;
+  private final int[] y1;
+  private final int[] wy;
+
+  /**
+   * @param dstWidth Width of the resized crops.
+   * @param dstHeight Height of the resized crops.
+   */
+  public CropResampler(final int dstWidth, final int dstHeight) {
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+    x0 = new int[dstWidth];
+    x1 = new int[dstWidth];
+    wx = new int[dstWidth];
+    y0 = new int[dstHeight];
+    y1 = new int[dstHeight];
+    wy = new int[dstHeight];
+  }
+
+  public int getWidth() {
+    return dstWidth;
+  }
+
+  public int getHeight() {
+    return dstHeight;
+  }
+
+  /**
+   * Resamples the box {@code left, top, right, bottom}, in source pixels, to {@code dstWidth *
+   * dstHeight} pixels written row by row from {@code dstOffset} on.
+   *
+   * @param src ARGB pixels of the source image, row by row without padding.
+   */
+  public void resample(
+      final int[] src,
+      final int srcWidth,
+      final int srcHeight,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final int[] dst,
+      final int dstOffset) {
+    final float scaleX = (right - left) / dstWidth;
+    final float scaleY = (bottom - top) / dstHeight;
+    for (int x = 0; x < dstWidth; x++) {
+      sample(left + (x + 0.5f) * scaleX - 0.5f, srcWidth, x0, x1, wx, x);
+    }
+    for (int y = 0; y < dstHeight; y++) {
+      sample(top + (y + 0.5f) * scaleY - 0.5f, srcHeight, y0, y1, wy, y);
+    }
+
+    int out = dstOffset;
+    for (int y = 0; y < dstHeight; y++) {
+      final int row0 = y0[y] * srcWidth;
+      final int row1 = y1[y] * srcWidth;
+      final int weight = wy[y];
+      for (int x = 0; x < dstWidth; x++) {
+        final int upper = blend(src[row0 + x0[x]], src[row0 + x1[x]], wx[x]);
+        final int lower = blend(src[row1 + x0[x]], src[row1 + x1[x]], wx[x]);
+        dst[out++] = 0xff000000 | blend(upper, lower, weight);
+      }
+    }
+  }
+
+  /** Sets the two source pixels around position {@code s} and the weight of the second. */
+  private static void sample(
+      final float s, final int size, final int[] s0, final int[] s1, final int[] w, final int i) {
+    if (s <= 0) {
+      s0[i] = s1[i] = 0;
+      w[i] = 0;
+    } else if (s >= size - 1) {
+      s0[i] = s1[i] = size - 1;
+      w[i] = 0;
+    } else {
+      s0[i] = (int) s;
+      s1[i] = s0[i] + 1;
+      w[i] = (int) ((s - s0[i]) * ONE);
+    }
+  }
+
+  /** Blends the RGB of two pixels, {@code weight} out of 256 of the second. */
+  private static int blend(final int a, final int b, final int weight) {
+    final int inverse = ONE - weight;
+    final int rb = ((a & 0xff00ff) * inverse + (b & 0xff00ff) * weight) >>> 8;
+    final int g = ((a & 0xff00) * inverse + (b & 0xff00) * weight) >>> 8;
+    return (rb & 0xff00ff) | (g & 0xff00);
+  }
+}
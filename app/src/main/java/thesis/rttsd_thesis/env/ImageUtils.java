@@ -99,7 +99,7 @@ public class ImageUtils {
     }
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = Math.max((y - 16), 0);
     u -= 128;
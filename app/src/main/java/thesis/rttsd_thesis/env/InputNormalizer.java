@@ -0,0 +1,139 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.env;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Writes ARGB pixels into a model input buffer as normalized RGB.
+ *
+ * <p>Every channel value is looked up in a 256 entry table built once from the input quantization
+ * parameters, and pixels are written a row at a time with bulk puts instead of one put per
+ * channel.
+ *
+ * <p>Float inputs are written through a float view of the destination. One view is kept per
+ * destination buffer, so the input buffers of the frames in flight, which take turns, do not
+ * rebuild it every frame. Views of up to {@link #MAX_VIEWS} buffers are kept, beyond that the
+ * oldest is replaced.
+ */
+public class InputNormalizer {
+  private static final float IMAGE_MEAN = 0;
+  private static final float IMAGE_STD = 255.0f;
+  /** Destination buffers whose float views are kept. */
+  static final int MAX_VIEWS = 8;
+
+  private final boolean isQuantized;
+  private final byte[] byteLut = new byte[256];
+  private final float[] floatLut = new float[256];
+
+  private byte[] byteRow = new byte[0];
+  private float[] floatRow = new float[0];
+  private final ByteBuffer[] viewSources = new ByteBuffer[MAX_VIEWS];
+  private final FloatBuffer[] floatViews = new FloatBuffer[MAX_VIEWS];
+  private int nextView;
+  private int createdViews;
+
+  /**
+   * @param isQuantized Whether the input takes quantized bytes or floats.
+   * @param inputScale Input quantization scale, ignored for float inputs.
+   * @param inputZeroPoint Input quantization zero point, ignored for float inputs.
+   */
+  public InputNormalizer(final boolean isQuantized, final float inputScale, final int inputZeroPoint) {
+    this.isQuantized = isQuantized;
+    for (int v = 0; v < 256; v++) {
+      floatLut[v] = (v - IMAGE_MEAN) / IMAGE_STD;
+      if (isQuantized) {
+        byteLut[v] = (byte) ((v - IMAGE_MEAN) / IMAGE_STD / inputScale + inputZeroPoint);
+      }
+    }
+  }
+
+  public boolean isQuantized() {
+    return isQuantized;
+  }
+
+  /**
+   * Writes {@code width * height} pixels starting at the position of {@code input}, a row at a
+   * time.
+   */
+  public void write(final int[] pixels, final int width, final int height, final ByteBuffer input) {
+    for (int y = 0; y < height; y++) {
+      writeRow(pixels, y * width, width, input);
+    }
+  }
+
+  /** Writes {@code count} pixels starting at {@code offset} at the position of {@code input}. */
+  public void writeRow(final int[] pixels, final int offset, final int count, final ByteBuffer input) {
+    if (isQuantized) {
+      final int length = count * 3;
+      if (byteRow.length < length) {
+        byteRow = new byte[length];
+      }
+      final byte[] row = byteRow;
+      final byte[] lut = byteLut;
+      for (int i = 0, o = 0; i < count; i++) {
+        final int pixelValue = pixels[offset + i];
+        row[o++] = lut[(pixelValue >> 16) & 0xFF];
+        row[o++] = lut[(pixelValue >> 8) & 0xFF];
+        row[o++] = lut[pixelValue & 0xFF];
+      }
+      input.put(row, 0, length);
+    } else {
+      final int length = count * 3;
+      if (floatRow.length < length) {
+        floatRow = new float[length];
+      }
+      final float[] row = floatRow;
+      final float[] lut = floatLut;
+      for (int i = 0, o = 0; i < count; i++) {
+        final int pixelValue = pixels[offset + i];
+        row[o++] = lut[(pixelValue >> 16) & 0xFF];
+        row[o++] = lut[(pixelValue >> 8) & 0xFF];
+        row[o++] = lut[pixelValue & 0xFF];
+      }
+      // Bulk put through a float view, then advance the byte buffer past what was written.
+      final FloatBuffer floatView = floatViewOf(input);
+      final int position = input.position();
+      floatView.position(position / 4);
+      floatView.put(row, 0, length);
+      input.position(position + length * 4);
+    }
+  }
+
+  /** The float view of the whole of {@code input}, created on its first write. */
+  private FloatBuffer floatViewOf(final ByteBuffer input) {
+    for (int i = 0; i < MAX_VIEWS; i++) {
+      if (viewSources[i] == input) {
+        return floatViews[i];
+      }
+    }
+    final ByteBuffer whole = input.duplicate();
+    whole.order(input.order());
+    whole.rewind();
+    createdViews++;
+    final int slot = nextView;
+    nextView = (nextView + 1) % MAX_VIEWS;
+    viewSources[slot] = input;
+    floatViews[slot] = whole.asFloatBuffer();
+    return floatViews[slot];
+  }
+
+  /** Number of float views created so far, for tests. */
+  int getFloatViewCount() {
+    return createdViews;
+  }
+}
@@ -0,0 +1,272 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.env;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel YUV to ARGB conversion engine.
+ *
+ * <p>Produces the same pixels as {@link ImageUtils#convertYUV420ToARGB8888} and {@link
+ * ImageUtils#convertYUV420SPToARGB8888}, but splits the frame into row stripes that are converted
+ * on a small fork-join pool. The per Y, U and V terms of the integer conversion are looked up in
+ * tables, and the chroma terms are computed once per pair of pixels. Interleaved chroma (a pixel
+ * stride of 2) and planar chroma have their own row loops.
+ *
+ * <p>Planes are read in place from their {@link ByteBuffer}s with absolute gets, so Camera2
+ * planes do not have to be copied out first. The stripe tasks are created once and reinitialized
+ * for every frame, so converting does not allocate. One frame is converted at a time.
+ */
+public class YuvConverter {
+  /** Frames with fewer rows than this are converted on the calling thread. */
+  private static final int MIN_PARALLEL_ROWS = 64;
+
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] RV_TABLE = new int[256];
+  private static final int[] GV_TABLE = new int[256];
+  private static final int[] GU_TABLE = new int[256];
+  private static final int[] BU_TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+      RV_TABLE[i] = 1634 * (i - 128);
+      GV_TABLE[i] = -833 * (i - 128);
+      GU_TABLE[i] = -400 * (i - 128);
+      BU_TABLE[i] = 2066 * (i - 128);
+    }
+  }
+
+  private static YuvConverter instance;
+
+  private final ForkJoinPool pool;
+  private final Stripe[] stripes;
+  private final FrameTask frameTask = new FrameTask();
+
+  // The frame being converted, read by the stripes.
+  private ByteBuffer yData;
+  private ByteBuffer uData;
+  private ByteBuffer vData;
+  private int uOffset;
+  private int vOffset;
+  private int width;
+  private int height;
+  private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  private int[] out;
+
+  private byte[] nv21Array;
+  private ByteBuffer nv21Buffer;
+
+  /** Shared engine with one stripe per core, up to four. */
+  public static synchronized YuvConverter getInstance() {
+    if (instance == null) {
+      instance = new YuvConverter(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+    return instance;
+  }
+
+  public YuvConverter(final int parallelism) {
+    pool = new ForkJoinPool(Math.max(1, parallelism));
+    stripes = new Stripe[Math.max(1, parallelism)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(i);
+    }
+  }
+
+  /** Converts a frame given as separate planes, as delivered by the Camera2 API. */
+  public synchronized void convertYUV420ToARGB8888(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convert(yData, uData, 0, vData, 0, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
+
+  /** Converts an NV21 frame, as delivered by the legacy camera API. */
+  public synchronized void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final int[] output) {
+    if (input != nv21Array) {
+      // The legacy camera cycles through the same callback buffer, so the wrapper is reused.
+      nv21Array = input;
+      nv21Buffer = ByteBuffer.wrap(input);
+    }
+    final int frameSize = width * height;
+    convert(nv21Buffer, nv21Buffer, frameSize + 1, nv21Buffer, frameSize,
+        width, height, width, width, 2, output);
+  }
+
+  private void convert(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    this.yData = yData;
+    this.uData = uData;
+    this.uOffset = uOffset;
+    this.vData = vData;
+    this.vOffset = vOffset;
+    this.width = width;
+    this.height = height;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    this.out = out;
+
+    if (height < MIN_PARALLEL_ROWS || stripes.length == 1) {
+      convertRows(0, height);
+    } else {
+      frameTask.reinitialize();
+      pool.invoke(frameTask);
+    }
+
+    this.yData = this.uData = this.vData = null;
+    this.out = null;
+  }
+
+  private void convertRows(final int startRow, final int endRow) {
+    for (int j = startRow; j < endRow; j++) {
+      final int pY = yRowStride * j;
+      final int pUV = uvRowStride * (j >> 1);
+      final int pOut = width * j;
+      if (uvPixelStride == 1) {
+        convertPlanarRow(pY, pUV, pOut);
+      } else if (uvPixelStride == 2) {
+        convertInterleavedRow(pY, pUV, pOut);
+      } else {
+        convertRow(pY, pUV, pOut);
+      }
+    }
+  }
+
+  private void convertPlanarRow(final int pY, final int pUV, final int pOut) {
+    final ByteBuffer y = yData;
+    final ByteBuffer u = uData;
+    final ByteBuffer v = vData;
+    final int[] o = out;
+    final int pairs = width >> 1;
+    int uIndex = uOffset + pUV;
+    int vIndex = vOffset + pUV;
+    int yIndex = pY;
+    int outIndex = pOut;
+    for (int i = 0; i < pairs; i++) {
+      final int uValue = 0xff & u.get(uIndex++);
+      final int vValue = 0xff & v.get(vIndex++);
+      final int r = RV_TABLE[vValue];
+      final int g = GV_TABLE[vValue] + GU_TABLE[uValue];
+      final int b = BU_TABLE[uValue];
+      o[outIndex++] = toArgb(Y_TABLE[0xff & y.get(yIndex++)], r, g, b);
+      o[outIndex++] = toArgb(Y_TABLE[0xff & y.get(yIndex++)], r, g, b);
+    }
+    if ((width & 1) != 0) {
+      final int uValue = 0xff & u.get(uIndex);
+      final int vValue = 0xff & v.get(vIndex);
+      o[outIndex] = toArgb(Y_TABLE[0xff & y.get(yIndex)],
+          RV_TABLE[vValue], GV_TABLE[vValue] + GU_TABLE[uValue], BU_TABLE[uValue]);
+    }
+  }
+
+  private void convertInterleavedRow(final int pY, final int pUV, final int pOut) {
+    final ByteBuffer y = yData;
+    final ByteBuffer u = uData;
+    final ByteBuffer v = vData;
+    final int[] o = out;
+    final int pairs = width >> 1;
+    int uIndex = uOffset + pUV;
+    int vIndex = vOffset + pUV;
+    int yIndex = pY;
+    int outIndex = pOut;
+    for (int i = 0; i < pairs; i++, uIndex += 2, vIndex += 2) {
+      final int uValue = 0xff & u.get(uIndex);
+      final int vValue = 0xff & v.get(vIndex);
+      final int r = RV_TABLE[vValue];
+      final int g = GV_TABLE[vValue] + GU_TABLE[uValue];
+      final int b = BU_TABLE[uValue];
+      o[outIndex++] = toArgb(Y_TABLE[0xff & y.get(yIndex++)], r, g, b);
+      o[outIndex++] = toArgb(Y_TABLE[0xff & y.get(yIndex++)], r, g, b);
+    }
+    if ((width & 1) != 0) {
+      final int uValue = 0xff & u.get(uIndex);
+      final int vValue = 0xff & v.get(vIndex);
+      o[outIndex] = toArgb(Y_TABLE[0xff & y.get(yIndex)],
+          RV_TABLE[vValue], GV_TABLE[vValue] + GU_TABLE[uValue], BU_TABLE[uValue]);
+    }
+  }
+
+  private void convertRow(final int pY, final int pUV, final int pOut) {
+    for (int i = 0; i < width; i++) {
+      final int uv = pUV + (i >> 1) * uvPixelStride;
+      final int uValue = 0xff & uData.get(uOffset + uv);
+      final int vValue = 0xff & vData.get(vOffset + uv);
+      out[pOut + i] = toArgb(Y_TABLE[0xff & yData.get(pY + i)],
+          RV_TABLE[vValue], GV_TABLE[vValue] + GU_TABLE[uValue], BU_TABLE[uValue]);
+    }
+  }
+
+  private static int toArgb(final int y, int r, int g, int b) {
+    r += y;
+    g += y;
+    b += y;
+    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+    r = r > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (Math.max(r, 0));
+    g = g > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (Math.max(g, 0));
+    b = b > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (Math.max(b, 0));
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+
+  private class FrameTask extends RecursiveAction {
+    @Override
+    protected void compute() {
+      for (Stripe stripe : stripes) {
+        stripe.reinitialize();
+      }
+      ForkJoinTask.invokeAll(stripes);
+    }
+  }
+
+  private class Stripe extends RecursiveAction {
+    private final int index;
+
+    Stripe(final int index) {
+      this.index = index;
+    }
+
+    @Override
+    protected void compute() {
+      // Even stripe boundaries keep both rows of a chroma row in the same stripe.
+      final int rowsPerStripe = ((height + stripes.length - 1) / stripes.length + 1) & ~1;
+      final int start = Math.min(height, index * rowsPerStripe);
+      final int end = Math.min(height, start + rowsPerStripe);
+      convertRows(start, end);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.env;
+
+import android.graphics.Matrix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Samples a YUV420 camera frame straight into the detector input tensor.
+ *
+ * <p>Every destination pixel is mapped back through the inverse of the frame to crop transform
+ * (see {@link ImageUtils#getTransformationMatrix}) and the Y/U/V samples under it are converted to
+ * RGB and written to the input buffer. This replaces the full resolution RGB conversion, the
+ * frame bitmap and the crop bitmap of the previous path. Sampling is nearest neighbour, the same
+ * as drawing the frame bitmap without a filtering paint.
+ */
+public class YuvTensorSampler {
+  private final int srcWidth;
+  private final int srcHeight;
+  private final int dstSize;
+  private final InputNormalizer normalizer;
+  private final int[] row;
+
+  private byte[] nv21Array;
+  private ByteBuffer nv21Buffer;
+
+  // The transform is affine, so the source coordinate of (x, y) is colX[x] + rowX[y] and
+  // colY[x] + rowY[y], which keeps the per pixel work to two additions per axis.
+  private final float[] colX;
+  private final float[] colY;
+  private final float[] rowX;
+  private final float[] rowY;
+
+  /**
+   * @param srcWidth Width of the camera frame.
+   * @param srcHeight Height of the camera frame.
+   * @param dstSize Side of the square input tensor.
+   * @param frameToCropTransform Transform from the camera frame into the input.
+   * @param normalizer Writes the sampled pixels in the format of the input.
+   */
+  public YuvTensorSampler(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstSize,
+      final Matrix frameToCropTransform,
+      final InputNormalizer normalizer) {
+    this(srcWidth, srcHeight, dstSize, inverseValues(frameToCropTransform), normalizer);
+  }
+
+  /**
+   * @param m The values of the transform from the input into the camera frame, as returned by
+   *     {@link Matrix#getValues}.
+   */
+  YuvTensorSampler(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstSize,
+      final float[] m,
+      final InputNormalizer normalizer) {
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.dstSize = dstSize;
+    this.normalizer = normalizer;
+    this.row = new int[dstSize];
+
+    colX = new float[dstSize];
+    colY = new float[dstSize];
+    rowX = new float[dstSize];
+    rowY = new float[dstSize];
+    for (int i = 0; i < dstSize; i++) {
+      // Sample at pixel centers.
+      final float c = i + 0.5f;
+      colX[i] = m[Matrix.MSCALE_X] * c;
+      colY[i] = m[Matrix.MSKEW_Y] * c;
+      rowX[i] = m[Matrix.MSKEW_X] * c + m[Matrix.MTRANS_X];
+      rowY[i] = m[Matrix.MSCALE_Y] * c + m[Matrix.MTRANS_Y];
+    }
+  }
+
+  private static float[] inverseValues(final Matrix frameToCropTransform) {
+    final Matrix cropToFrame = new Matrix();
+    frameToCropTransform.invert(cropToFrame);
+    final float[] m = new float[9];
+    cropToFrame.getValues(m);
+    return m;
+  }
+
+  /**
+   * Samples a frame given as separate planes, as delivered by the Camera2 API.
+   *
+   * <p>The planes are read in place, so they have to stay valid (the {@code Image} open) until
+   * this returns.
+   *
+   * @param argbOut Optional dstSize * dstSize array that also receives the ARGB pixels, may be
+   *     null.
+   */
+  public void sample(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer input,
+      final int[] argbOut) {
+    sample(yData, uData, 0, vData, 0, yRowStride, uvRowStride, uvPixelStride, input, argbOut);
+  }
+
+  /** Samples an NV21 frame, as delivered by the legacy camera API. */
+  public void sampleNV21(final byte[] data, final ByteBuffer input, final int[] argbOut) {
+    if (data != nv21Array) {
+      nv21Array = data;
+      nv21Buffer = ByteBuffer.wrap(data);
+    }
+    final int frameSize = srcWidth * srcHeight;
+    sample(nv21Buffer, nv21Buffer, frameSize + 1, nv21Buffer, frameSize,
+        srcWidth, srcWidth, 2, input, argbOut);
+  }
+
+  private void sample(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer input,
+      final int[] argbOut) {
+    input.rewind();
+    for (int y = 0; y < dstSize; y++) {
+      final float rx = rowX[y];
+      final float ry = rowY[y];
+      final int[] pixels = argbOut != null ? argbOut : row;
+      final int offset = argbOut != null ? y * dstSize : 0;
+      for (int x = 0; x < dstSize; x++) {
+        final float fx = colX[x] + rx;
+        final float fy = colY[x] + ry;
+
+        int rgb = 0xff000000;
+        if (fx >= 0 && fy >= 0 && fx < srcWidth && fy < srcHeight) {
+          final int sx = (int) fx;
+          final int sy = (int) fy;
+          final int uv = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+          rgb = ImageUtils.YUV2RGB(
+              0xff & yData.get(sy * yRowStride + sx),
+              0xff & uData.get(uOffset + uv),
+              0xff & vData.get(vOffset + uv));
+        }
+        pixels[offset + x] = rgb;
+      }
+      normalizer.writeRow(pixels, offset, dstSize, input);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package thesis.rttsd_thesis.mediaplayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which announcement plays next.
+ *
+ * <ul>
+ *   <li>A clip that started less than the cooldown ago is dropped, so a sign seen on every frame
+ *       is announced once instead of piling up. Each clip has its own cooldown, an unrelated
+ *       warning is never held back by the previous one.
+ *   <li>A clip that is already waiting is not queued twice, the waiting one takes the higher of
+ *       the two priorities.
+ *   <li>Waiting clips play highest priority first, in arrival order within a priority. A clip of
+ *       higher priority than the one playing interrupts it.
+ *   <li>Clips that waited longer than the maximum wait are dropped, the sign is behind the car by
+ *       then. So are the lowest priority clips when the backlog is full.
+ * </ul>
+ *
+ * <p>Not thread safe, the player calls it from its own thread. The counters can be read from any
+ * thread.
+ */
+public class AnnouncementScheduler {
+    /** Informative signs. */
+    public static final int PRIORITY_LOW = 1;
+    /** Speed limits, prohibitions and mandatory directions. */
+    public static final int PRIORITY_NORMAL = 2;
+    /** Stop, give way, railroad and pedestrian crossings. */
+    public static final int PRIORITY_URGENT = 3;
+    /** Warnings about the driver, like exceeding the speed limit. */
+    public static final int PRIORITY_ALERT = 4;
+
+    /** {@link #offer} result: play the clip now, interrupting whatever plays. */
+    public static final int PLAY = 0;
+    /** {@link #offer} result: the clip waits for its turn. */
+    public static final int QUEUED = 1;
+    /** {@link #offer} result: the clip was already waiting. */
+    public static final int COALESCED = 2;
+    /** {@link #offer} result: the clip is still cooling down, or the backlog is full. */
+    public static final int DROPPED = 3;
+
+    private final long cooldownMs;
+    private final long maxWaitMs;
+    private final int maxBacklog;
+
+    private final List<Pending> pending = new ArrayList<>();
+    private final Map<Integer, Long> lastStarted = new HashMap<>();
+    private int playingClip;
+    private int playingPriority;
+
+    private volatile int backlog;
+    private volatile long offered;
+    private volatile long played;
+    private volatile long coalesced;
+    private volatile long preempted;
+    private volatile long dropped;
+
+    private static final class Pending {
+        final int clip;
+        int priority;
+        final long since;
+
+        Pending(int clip, int priority, long since) {
+            this.clip = clip;
+            this.priority = priority;
+            this.since = since;
+        }
+    }
+
+    /**
+     * @param cooldownMs minimum time between two starts of the same clip.
+     * @param maxWaitMs clips waiting longer are dropped.
+     * @param maxBacklog clips that can wait at once.
+     */
+    public AnnouncementScheduler(long cooldownMs, long maxWaitMs, int maxBacklog) {
+        this.cooldownMs = cooldownMs;
+        this.maxWaitMs = maxWaitMs;
+        this.maxBacklog = maxBacklog;
+    }
+
+    /**
+     * Offers a clip for playing. On {@link #PLAY} the caller starts it right away and reports the
+     * end with {@link #finished()}.
+     */
+    public int offer(int clip, int priority, long now) {
+        offered++;
+        final Long last = lastStarted.get(clip);
+        if (clip == playingClip || (last != null && now - last < cooldownMs)) {
+            dropped++;
+            return DROPPED;
+        }
+        for (Pending waiting : pending) {
+            if (waiting.clip == clip) {
+                waiting.priority = Math.max(waiting.priority, priority);
+                sort();
+                coalesced++;
+                return COALESCED;
+            }
+        }
+        if (playingClip == 0 || priority > playingPriority) {
+            if (playingClip != 0) {
+                preempted++;
+            }
+            start(clip, priority, now);
+            return PLAY;
+        }
+        pending.add(new Pending(clip, priority, now));
+        sort();
+        if (pending.size() > maxBacklog) {
+            // The last one has the lowest priority and arrived last among those.
+            final Pending removed = pending.remove(pending.size() - 1);
+            dropped++;
+            backlog = pending.size();
+            return removed.clip == clip ? DROPPED : QUEUED;
+        }
+        backlog = pending.size();
+        return QUEUED;
+    }
+
+    /** The playing clip has ended or was stopped. */
+    public void finished() {
+        playingClip = 0;
+        playingPriority = 0;
+    }
+
+    /**
+     * Takes the clip to play after the current one ended, or 0 if none is waiting. Clips that
+     * waited too long are dropped on the way.
+     */
+    public int next(long now) {
+        while (!pending.isEmpty()) {
+            final Pending first = pending.remove(0);
+            if (now - first.since > maxWaitMs) {
+                dropped++;
+                continue;
+            }
+            backlog = pending.size();
+            start(first.clip, first.priority, now);
+            return first.clip;
+        }
+        backlog = 0;
+        return 0;
+    }
+
+    /** Forgets the waiting clips and the one playing, the cooldowns stay. */
+    public void clear() {
+        pending.clear();
+        backlog = 0;
+        finished();
+    }
+
+    private void start(int clip, int priority, long now) {
+        playingClip = clip;
+        playingPriority = priority;
+        lastStarted.put(clip, now);
+        played++;
+    }
+
+    private void sort() {
+        // Stable, so arrival order holds within a priority.
+        Collections.sort(pending, (a, b) -> Integer.compare(b.priority, a.priority));
+    }
+
+    /** Clips waiting to be played. */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public long getOfferedCount() {
+        return offered;
+    }
+
+    /** Clips started, interrupting ones included. */
+    public long getPlayedCount() {
+        return played;
+    }
+
+    /** Clips merged into one that was already waiting. */
+    public long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /** Clips interrupted by a clip of higher priority. */
+    public long getPreemptedCount() {
+        return preempted;
+    }
+
+    /** Clips dropped for their cooldown, a full backlog or waiting too long. */
+    public long getDroppedCount() {
+        return dropped;
+    }
+}
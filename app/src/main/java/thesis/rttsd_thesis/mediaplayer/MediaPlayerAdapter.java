@@ -5,4 +5,20 @@ import androidx.annotation.IdRes;
 public interface MediaPlayerAdapter {
     void loadMedia(@IdRes int resId);
     void reset();
+
+    /**
+     * Plays the clip unless the {@link #getScheduler() scheduler} drops it, see the
+     * {@code AnnouncementScheduler.PRIORITY_} levels. {@link #loadMedia(int)} plays at normal
+     * priority.
+     */
+    void loadMedia(@IdRes int resId, int priority);
+
+    /** Gets clips ready ahead of their first {@link #loadMedia}, where the player can. */
+    void preload(@IdRes int... resIds);
+
+    /** Frees the player, it cannot be used afterwards. */
+    void release();
+
+    /** Decides the order of the announcements and counts the ones dropped. */
+    AnnouncementScheduler getScheduler();
 }
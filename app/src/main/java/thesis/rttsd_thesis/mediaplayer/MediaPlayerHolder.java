@@ -3,23 +3,40 @@ package thesis.rttsd_thesis.mediaplayer;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 
 import androidx.annotation.IdRes;
 
 import thesis.rttsd_thesis.R;
 
-import java.util.ArrayList;
-import java.util.List;
-
+/**
+ * Plays announcements with a {@link MediaPlayer}, preparing every clip when it is played.
+ *
+ * <p>Every method only posts to the player's own thread and returns. The MediaPlayer is created on
+ * that thread, so its prepared and completion callbacks arrive there too, and the
+ * {@link AnnouncementScheduler} is only ever called from it.
+ */
 public class MediaPlayerHolder implements MediaPlayerAdapter {
-    private MediaPlayer mediaPlayer;
+    private static final long COOLDOWN_MS = 10000;
+    private static final long MAX_WAIT_MS = 5000;
+    private static final int MAX_BACKLOG = 4;
+
     private final Context context;
+    private final HandlerThread thread;
+    private final Handler handler;
+    // Only touched on the player thread.
+    private MediaPlayer mediaPlayer;
 
-    @IdRes
-    private final List<Integer> soundList = new ArrayList<>();
+    private final AnnouncementScheduler scheduler =
+            new AnnouncementScheduler(COOLDOWN_MS, MAX_WAIT_MS, MAX_BACKLOG);
 
     public MediaPlayerHolder(Context context) {
         this.context = context;
+        thread = new HandlerThread("audio");
+        thread.start();
+        handler = new Handler(thread.getLooper());
     }
 
     private void initializeMediaPlayer() {
@@ -32,12 +49,24 @@ public class MediaPlayerHolder implements MediaPlayerAdapter {
 
     @Override
     public void loadMedia(@IdRes int resId) {
+        loadMedia(resId, resId == R.raw.speed_limit_exceeded
+                ? AnnouncementScheduler.PRIORITY_ALERT
+                : AnnouncementScheduler.PRIORITY_NORMAL);
+    }
+
+    @Override
+    public void loadMedia(@IdRes int resId, int priority) {
+        handler.post(() -> {
+            if (scheduler.offer(resId, priority, SystemClock.uptimeMillis())
+                    == AnnouncementScheduler.PLAY) {
+                play(resId);
+            }
+        });
+    }
+
+    private void play(@IdRes int resId) {
         initializeMediaPlayer();
 
-        if (isPlaying() && resId != R.raw.speed_limit_exceeded){
-            soundList.add(resId);
-            return;
-        }
         Uri mediaPath = Uri.parse("android.resource://" + context.getPackageName() + "/" + resId);
         try {
             mediaPlayer.reset();
@@ -48,32 +77,50 @@ public class MediaPlayerHolder implements MediaPlayerAdapter {
             mediaPlayer.prepare();
         } catch (Exception e) {
             e.printStackTrace();
+            // No completion will come, move on to the next clip.
+            playNext();
         }
 
     }
 
-    private boolean isPlaying() {
-        if (mediaPlayer != null) {
-             return mediaPlayer.isPlaying();
-        } else return false;
-    }
-
     private void playNext() {
-        if (!soundList.isEmpty()) {
-            int media = soundList.get(0);
-            loadMedia(media);
-            soundList.remove(0);
+        scheduler.finished();
+        int media = scheduler.next(SystemClock.uptimeMillis());
+        if (media != 0) {
+            play(media);
         }
     }
 
     @Override
     public void reset() {
+        handler.post(this::releasePlayer);
+    }
+
+    @Override
+    public void preload(@IdRes int... resIds) {
+        // Every clip is prepared when it is played.
+    }
+
+    @Override
+    public void release() {
+        handler.post(() -> {
+            releasePlayer();
+            thread.quitSafely();
+        });
+    }
+
+    private void releasePlayer() {
         if (mediaPlayer != null) {
             mediaPlayer.reset();
             mediaPlayer.release();
             mediaPlayer = null;
         }
-        soundList.clear();
+        scheduler.clear();
+    }
+
+    @Override
+    public AnnouncementScheduler getScheduler() {
+        return scheduler;
     }
 
 }
@@ -0,0 +1,209 @@
+package thesis.rttsd_thesis.mediaplayer;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.MediaMetadataRetriever;
+import android.media.SoundPool;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.IdRes;
+
+import thesis.rttsd_thesis.R;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plays announcements from clips that a {@link SoundPool} decoded into memory ahead of time, so
+ * starting one costs a single call instead of a MediaPlayer reset, setDataSource and prepare.
+ *
+ * <p>Every method only posts to the player's own thread and returns, detection never waits for
+ * audio. SoundPool does not report the end of a clip, so the length of each clip is read once
+ * while preloading and the {@link AnnouncementScheduler} is told the clip ended when it has had
+ * its time.
+ */
+public class SoundPoolPlayer implements MediaPlayerAdapter {
+    private static final String TAG = "SoundPoolPlayer";
+    // Used when a clip's length cannot be read.
+    private static final long DEFAULT_DURATION_MS = 3000;
+    private static final long COOLDOWN_MS = 10000;
+    private static final long MAX_WAIT_MS = 5000;
+    private static final int MAX_BACKLOG = 4;
+
+    private final Context context;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final SoundPool soundPool;
+    private final Runnable playNext = this::playNext;
+    private final AnnouncementScheduler scheduler =
+            new AnnouncementScheduler(COOLDOWN_MS, MAX_WAIT_MS, MAX_BACKLOG);
+
+    // Only touched on the player thread.
+    private final Map<Integer, Clip> clips = new HashMap<>();
+    private final Map<Integer, Clip> clipsBySoundId = new HashMap<>();
+    private int streamId;
+    // Clip the scheduler started that is still decoding.
+    private Clip awaitingLoad;
+
+    private static final class Clip {
+        final int resId;
+        final int soundId;
+        final long durationMs;
+        boolean loaded;
+
+        Clip(int resId, int soundId, long durationMs) {
+            this.resId = resId;
+            this.soundId = soundId;
+            this.durationMs = durationMs;
+        }
+    }
+
+    public SoundPoolPlayer(Context context) {
+        this.context = context;
+        thread = new HandlerThread("audio");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        soundPool = new SoundPool.Builder()
+                .setMaxStreams(1)
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_ASSISTANCE_NAVIGATION_GUIDANCE)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .build();
+        soundPool.setOnLoadCompleteListener((pool, soundId, status) ->
+                handler.post(() -> onLoaded(soundId, status)));
+    }
+
+    @Override
+    public void preload(@IdRes int... resIds) {
+        final int[] ids = resIds.clone();
+        handler.post(() -> {
+            for (int resId : ids) {
+                clip(resId);
+            }
+        });
+    }
+
+    @Override
+    public void loadMedia(@IdRes int resId) {
+        loadMedia(resId, resId == R.raw.speed_limit_exceeded
+                ? AnnouncementScheduler.PRIORITY_ALERT
+                : AnnouncementScheduler.PRIORITY_NORMAL);
+    }
+
+    @Override
+    public void loadMedia(@IdRes int resId, int priority) {
+        handler.post(() -> {
+            if (scheduler.offer(resId, priority, SystemClock.uptimeMillis())
+                    == AnnouncementScheduler.PLAY) {
+                play(clip(resId));
+            }
+        });
+    }
+
+    @Override
+    public void reset() {
+        handler.post(() -> {
+            scheduler.clear();
+            stop();
+        });
+    }
+
+    @Override
+    public void release() {
+        handler.post(() -> {
+            scheduler.clear();
+            stop();
+            soundPool.release();
+            thread.quitSafely();
+        });
+    }
+
+    @Override
+    public AnnouncementScheduler getScheduler() {
+        return scheduler;
+    }
+
+    private Clip clip(int resId) {
+        Clip clip = clips.get(resId);
+        if (clip == null) {
+            clip = new Clip(resId, soundPool.load(context, resId, 1), readDuration(resId));
+            clips.put(resId, clip);
+            clipsBySoundId.put(clip.soundId, clip);
+        }
+        return clip;
+    }
+
+    private long readDuration(int resId) {
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            final AssetFileDescriptor fd = context.getResources().openRawResourceFd(resId);
+            try {
+                retriever.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+            } finally {
+                fd.close();
+            }
+            return Long.parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+        } catch (Exception e) {
+            Log.w(TAG, "No duration for clip " + resId, e);
+            return DEFAULT_DURATION_MS;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private void onLoaded(int soundId, int status) {
+        final Clip clip = clipsBySoundId.get(soundId);
+        if (clip == null) {
+            return;
+        }
+        if (status != 0) {
+            Log.e(TAG, "Could not load clip " + clip.resId);
+            clips.remove(clip.resId);
+            clipsBySoundId.remove(soundId);
+        } else {
+            clip.loaded = true;
+        }
+        if (awaitingLoad == clip) {
+            awaitingLoad = null;
+            if (clip.loaded) {
+                play(clip);
+            } else {
+                playNext();
+            }
+        }
+    }
+
+    private void play(Clip clip) {
+        stop();
+        if (!clip.loaded) {
+            // Still decoding, it starts as soon as it is loaded.
+            awaitingLoad = clip;
+            return;
+        }
+        streamId = soundPool.play(clip.soundId, 1f, 1f, 1, 0, 1f);
+        handler.postDelayed(playNext, clip.durationMs);
+    }
+
+    private void stop() {
+        handler.removeCallbacks(playNext);
+        awaitingLoad = null;
+        if (streamId != 0) {
+            soundPool.stop(streamId);
+            streamId = 0;
+        }
+    }
+
+    private void playNext() {
+        streamId = 0;
+        scheduler.finished();
+        final int next = scheduler.next(SystemClock.uptimeMillis());
+        if (next != 0) {
+            play(clip(next));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single slot, latest wins handoff between a producer and a consumer thread.
+ *
+ * <p>{@link #post} swaps the new frame into the slot and hands back the one it replaced, which
+ * the producer recycles, so a slow consumer never makes the producer wait and always gets the
+ * freshest frame from {@link #take()}. Both are a single atomic swap.
+ *
+ * @param <T> The frame type.
+ */
+public class FrameMailbox<T> {
+  private final AtomicReference<T> slot = new AtomicReference<>();
+  private final AtomicLong posted = new AtomicLong();
+  private final AtomicLong replaced = new AtomicLong();
+  private final AtomicLong taken = new AtomicLong();
+
+  /**
+   * Puts a frame in the slot.
+   *
+   * @return The frame that was waiting and is now replaced, to be recycled by the caller, or null.
+   */
+  public T post(final T frame) {
+    posted.incrementAndGet();
+    final T previous = slot.getAndSet(frame);
+    if (previous != null) {
+      replaced.incrementAndGet();
+    }
+    return previous;
+  }
+
+  /** Takes the latest frame out of the slot, or returns null if there is none. */
+  public T take() {
+    final T frame = slot.getAndSet(null);
+    if (frame != null) {
+      taken.incrementAndGet();
+    }
+    return frame;
+  }
+
+  /** Empties the slot without counting a take, for shutdown. */
+  public T clear() {
+    return slot.getAndSet(null);
+  }
+
+  public boolean isEmpty() {
+    return slot.get() == null;
+  }
+
+  /** Frames posted. */
+  public long getPostedCount() {
+    return posted.get();
+  }
+
+  /** Frames replaced by a newer one before the consumer took them. */
+  public long getReplacedCount() {
+    return replaced.get();
+  }
+
+  /** Frames taken by the consumer. */
+  public long getTakenCount() {
+    return taken.get();
+  }
+}
@@ -0,0 +1,375 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.pipeline;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every frame through a fixed sequence of stages, each on its own thread.
+ *
+ * <p>Stages are connected by bounded queues, so while one frame is in a later stage the next one
+ * can already be in an earlier stage. A stage can also run on several threads, which take
+ * consecutive frames in turn; frames leave such a stage in the order they entered it, so later
+ * stages still see them in sequence. The frames themselves come from a {@link FramePool}:
+ * {@link #acquire()} returns null while all of them are in use, which is where the producer drops
+ * frames, and the pipeline releases its reference after the last stage or when the frame is
+ * dropped. A stage that hands the frame to someone else (the UI thread, say) retains it for them.
+ * The pool size therefore bounds both the queues and the number of frames in flight.
+ *
+ * @param <T> Per frame state handed from stage to stage.
+ */
+public class FramePipeline<T extends RefCountedFrame> {
+  private static final String TAG = "FramePipeline";
+
+  /** Work done on one frame by one stage. */
+  public interface Stage<T> {
+    /**
+     * @return false to end the frame here, it then goes back to the pool without running the
+     *     later stages.
+     */
+    boolean process(T frame) throws Exception;
+  }
+
+  /** Called for frames that leave the pipeline without passing the last stage. */
+  public interface DropListener<T> {
+    void onDropped(T frame);
+  }
+
+  private final FramePool<T> pool;
+  private final int capacity;
+  private final List<Worker> workers = new ArrayList<>();
+  private DropListener<T> dropListener;
+  private volatile boolean running = false;
+
+  private volatile long submitted;
+  private volatile long rejected;
+  private volatile long completed;
+  private final AtomicLong skipped = new AtomicLong();
+  // Frames are dropped from any stage thread and from stop().
+  private final AtomicLong dropped = new AtomicLong();
+
+  public FramePipeline(final FramePool<T> pool) {
+    this.pool = pool;
+    this.capacity = pool.getCapacity();
+  }
+
+  /** Appends a stage, stages run in the order they were added. Only allowed while stopped. */
+  public FramePipeline<T> addStage(final String name, final Stage<T> stage) {
+    return addStage(name, stage, 1);
+  }
+
+  /**
+   * Appends a stage run by {@code parallelism} threads. The stage has to be safe to call from all
+   * of them at once.
+   */
+  public synchronized FramePipeline<T> addStage(
+      final String name, final Stage<T> stage, final int parallelism) {
+    if (running) {
+      throw new IllegalStateException("Pipeline is running");
+    }
+    workers.add(new Worker(name, stage, Math.max(1, parallelism)));
+    return this;
+  }
+
+  public synchronized void setDropListener(final DropListener<T> dropListener) {
+    this.dropListener = dropListener;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** Starts the stage threads, does nothing if already running. */
+  public synchronized void start() {
+    if (running || workers.isEmpty()) {
+      return;
+    }
+    submitted = rejected = completed = 0;
+    dropped.set(0);
+    skipped.set(0);
+    running = true;
+    for (Worker worker : workers) {
+      worker.start();
+    }
+  }
+
+  /**
+   * Stops the stage threads and waits for them to exit. Frames still queued are dropped and
+   * returned to the pool.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    for (Worker worker : workers) {
+      for (Thread thread : worker.threads) {
+        thread.interrupt();
+      }
+    }
+    for (Worker worker : workers) {
+      for (Thread thread : worker.threads) {
+        try {
+          thread.join();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    for (Worker worker : workers) {
+      T frame;
+      while ((frame = worker.queue.poll()) != null) {
+        drop(frame);
+      }
+    }
+  }
+
+  /**
+   * Takes a free frame to fill and {@link #submit}, or returns null if every frame is in use or
+   * the pipeline is stopped.
+   */
+  public T acquire() {
+    final T frame = running ? pool.acquire() : null;
+    if (frame == null) {
+      rejected++;
+    }
+    return frame;
+  }
+
+  /** Returns a frame taken with {@link #acquire()} without running it. */
+  public void release(final T frame) {
+    frame.release();
+  }
+
+  /** Queues a frame taken with {@link #acquire()} for the first stage. */
+  public void submit(final T frame) {
+    submitted++;
+    workers.get(0).enqueue(frame);
+    if (!running && workers.get(0).queue.remove(frame)) {
+      // Raced with stop(), which may already have drained the queue.
+      drop(frame);
+    }
+  }
+
+  /** A snapshot of every stage, in pipeline order. */
+  public List<StageStats> getStageStats() {
+    final List<StageStats> stats = new ArrayList<>(workers.size());
+    final long now = System.nanoTime();
+    for (Worker worker : workers) {
+      stats.add(new StageStats(
+          worker.name,
+          worker.queue.size(),
+          capacity,
+          worker.processed.get(),
+          worker.startNanos == 0
+              ? 0
+              : (float) worker.busyNanos.get()
+                  / Math.max(1, (now - worker.startNanos) * worker.threads.length)));
+    }
+    return stats;
+  }
+
+  /** Frames submitted since start. */
+  public long getSubmittedCount() {
+    return submitted;
+  }
+
+  /** {@link #acquire()} calls that found no free frame since start. */
+  public long getRejectedCount() {
+    return rejected;
+  }
+
+  /** Frames that passed the last stage since start. */
+  public long getCompletedCount() {
+    return completed;
+  }
+
+  /** Frames a stage ended early by returning false since start. */
+  public long getSkippedCount() {
+    return skipped.get();
+  }
+
+  /** Frames dropped by a failing stage or by {@link #stop()} since start. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /** Frames currently in the pool, not in use. */
+  public int getFreeCount() {
+    return pool.getAvailableCount();
+  }
+
+  private void drop(final T frame) {
+    dropped.incrementAndGet();
+    final DropListener<T> listener = dropListener;
+    if (listener != null) {
+      try {
+        listener.onDropped(frame);
+      } catch (final RuntimeException e) {
+        Log.e(TAG, "Drop listener failed", e);
+      }
+    }
+    frame.release();
+  }
+
+  /** Queue depth and occupancy of one stage. */
+  public static class StageStats {
+    public final String name;
+    /** Frames waiting for the stage. */
+    public final int queueDepth;
+    public final int queueCapacity;
+    /** Frames processed since start. */
+    public final long processed;
+    /** Fraction of the thread time since start the stage spent processing, 0 to 1. */
+    public final float occupancy;
+
+    StageStats(String name, int queueDepth, int queueCapacity, long processed, float occupancy) {
+      this.name = name;
+      this.queueDepth = queueDepth;
+      this.queueCapacity = queueCapacity;
+      this.processed = processed;
+      this.occupancy = occupancy;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s %d/%d %.0f%%", name, queueDepth, queueCapacity, occupancy * 100);
+    }
+  }
+
+  private class Worker implements Runnable {
+    private static final int FORWARD = 0;
+    private static final int SKIP = 1;
+    private static final int DROP = 2;
+
+    private final String name;
+    private final Stage<T> stage;
+    private final BlockingQueue<T> queue;
+    private final Thread[] threads;
+    private Worker next;
+
+    // Frames get a ticket when they enter the stage and are handed on in ticket order, indexed
+    // by pool slot and by ticket modulo capacity. Guarded by order.
+    private final Object order = new Object();
+    private final long[] tickets;
+    private final Object[] finished;
+    private final int[] outcomes;
+    private long nextTicket;
+    private long nextOut;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long startNanos;
+
+    Worker(final String name, final Stage<T> stage, final int parallelism) {
+      this.name = name;
+      this.stage = stage;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.threads = new Thread[parallelism];
+      this.tickets = new long[capacity];
+      this.finished = new Object[capacity];
+      this.outcomes = new int[capacity];
+    }
+
+    void start() {
+      final int index = workers.indexOf(this);
+      next = index + 1 < workers.size() ? workers.get(index + 1) : null;
+      synchronized (order) {
+        nextTicket = nextOut = 0;
+        Arrays.fill(finished, null);
+      }
+      processed.set(0);
+      busyNanos.set(0);
+      startNanos = System.nanoTime();
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread(this, threads.length == 1 ? name : name + "-" + i);
+        threads[i].start();
+      }
+    }
+
+    void enqueue(final T frame) {
+      synchronized (order) {
+        tickets[frame.getSlot()] = nextTicket++;
+        queue.add(frame);
+      }
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        final T frame;
+        try {
+          frame = queue.take();
+        } catch (final InterruptedException e) {
+          break;
+        }
+
+        final long start = System.nanoTime();
+        int outcome = DROP;
+        try {
+          outcome = stage.process(frame) ? FORWARD : SKIP;
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (final Exception e) {
+          Log.e(TAG, "Stage " + name + " failed", e);
+        }
+        busyNanos.addAndGet(System.nanoTime() - start);
+        processed.incrementAndGet();
+
+        // Frames are always finished, never kept, so stop() finds them all.
+        finish(frame, outcome);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish(final T frame, final int outcome) {
+      synchronized (order) {
+        final int index = (int) (tickets[frame.getSlot()] % capacity);
+        finished[index] = frame;
+        outcomes[index] = outcome;
+        // Hand on every frame whose predecessors are done, in the order they entered.
+        int head;
+        while (finished[head = (int) (nextOut % capacity)] != null) {
+          final T done = (T) finished[head];
+          finished[head] = null;
+          nextOut++;
+          handOn(done, outcomes[head]);
+        }
+      }
+    }
+
+    private void handOn(final T frame, final int outcome) {
+      if (outcome == DROP) {
+        drop(frame);
+      } else if (outcome == SKIP) {
+        skipped.incrementAndGet();
+        frame.release();
+      } else if (next != null) {
+        next.enqueue(frame);
+      } else {
+        completed++;
+        frame.release();
+      }
+    }
+  }
+}
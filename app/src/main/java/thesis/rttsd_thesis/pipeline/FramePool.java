@@ -0,0 +1,97 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.pipeline;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed ring of preallocated, reference counted frame slots.
+ *
+ * <p>Slots are claimed with a compare and set on their reference count, starting after the last
+ * slot handed out, so acquiring and releasing never lock or allocate and any thread may do
+ * either. When every slot is in use {@link #acquire()} returns null and the caller drops its
+ * frame.
+ *
+ * @param <T> The slot type.
+ */
+public class FramePool<T extends RefCountedFrame> {
+  private final List<T> frames;
+  private final AtomicInteger cursor = new AtomicInteger();
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong exhausted = new AtomicLong();
+  private final AtomicLong returned = new AtomicLong();
+
+  public FramePool(final List<T> frames) {
+    if (frames.isEmpty()) {
+      throw new IllegalArgumentException("Pool needs at least one frame");
+    }
+    this.frames = frames;
+    for (int i = 0; i < frames.size(); i++) {
+      frames.get(i).attach(this, i);
+    }
+  }
+
+  /** Claims a free slot with one reference, or returns null if all of them are in use. */
+  public T acquire() {
+    final int size = frames.size();
+    final int start = Math.abs(cursor.getAndIncrement() % size);
+    for (int i = 0; i < size; i++) {
+      final T frame = frames.get((start + i) % size);
+      if (frame.claim()) {
+        acquired.incrementAndGet();
+        return frame;
+      }
+    }
+    exhausted.incrementAndGet();
+    return null;
+  }
+
+  void onReturned() {
+    returned.incrementAndGet();
+  }
+
+  public int getCapacity() {
+    return frames.size();
+  }
+
+  /** Slots not held by anyone. */
+  public int getAvailableCount() {
+    int available = 0;
+    for (T frame : frames) {
+      if (frame.isFree()) {
+        available++;
+      }
+    }
+    return available;
+  }
+
+  /** Successful {@link #acquire()} calls. */
+  public long getAcquiredCount() {
+    return acquired.get();
+  }
+
+  /** {@link #acquire()} calls that found every slot in use. */
+  public long getExhaustedCount() {
+    return exhausted.get();
+  }
+
+  /** Slots recycled by their last release. */
+  public long getReturnedCount() {
+    return returned.get();
+  }
+}
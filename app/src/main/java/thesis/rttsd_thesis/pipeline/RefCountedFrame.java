@@ -0,0 +1,99 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A preallocated frame slot owned by a {@link FramePool}.
+ *
+ * <p>{@link FramePool#acquire()} hands the slot out with one reference. Every holder that keeps
+ * it past the current call {@link #retain()}s it and {@link #release()}s it when done, and the
+ * last release recycles the slot through {@link #onRecycle()} before it can be acquired again.
+ */
+public abstract class RefCountedFrame {
+  // -1 while recycling, so the slot can not be claimed before onRecycle() has finished.
+  private static final int RECYCLING = -1;
+
+  private final AtomicInteger refCount = new AtomicInteger();
+  private volatile FramePool<?> pool;
+  private int slot;
+
+  void attach(final FramePool<?> pool, final int slot) {
+    this.pool = pool;
+    this.slot = slot;
+  }
+
+  /** Index of the slot in its pool, fixed for the life of the pool. */
+  public int getSlot() {
+    return slot;
+  }
+
+  /** Claims a free slot with one reference. */
+  boolean claim() {
+    return refCount.compareAndSet(0, 1);
+  }
+
+  boolean isFree() {
+    return refCount.get() == 0;
+  }
+
+  public int getRefCount() {
+    return Math.max(0, refCount.get());
+  }
+
+  /** Adds a reference for another holder. */
+  public void retain() {
+    while (true) {
+      final int count = refCount.get();
+      if (count <= 0) {
+        throw new IllegalStateException("Frame is not in use");
+      }
+      if (refCount.compareAndSet(count, count + 1)) {
+        return;
+      }
+    }
+  }
+
+  /** Drops a reference, the last one recycles the frame and returns it to its pool. */
+  public void release() {
+    while (true) {
+      final int count = refCount.get();
+      if (count <= 0) {
+        throw new IllegalStateException("Frame is not in use");
+      }
+      if (count == 1) {
+        if (refCount.compareAndSet(1, RECYCLING)) {
+          try {
+            onRecycle();
+          } finally {
+            refCount.set(0);
+            final FramePool<?> owner = pool;
+            if (owner != null) {
+              owner.onReturned();
+            }
+          }
+          return;
+        }
+      } else if (refCount.compareAndSet(count, count - 1)) {
+        return;
+      }
+    }
+  }
+
+  /** Called once the last reference is released, before the slot can be acquired again. */
+  protected void onRecycle() {}
+}
@@ -0,0 +1,166 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Classification results per track id, so a sign that stays in view is classified a few times
+ * instead of on every frame.
+ *
+ * <p>A cached result is used again until it is older than the time to live, or the box has grown
+ * by more than the growth factor since, as a sign gets closer its crop shows more detail. Results
+ * below the minimum score are not cached at all, an unsure sign is classified again on the next
+ * frame.
+ *
+ * <p>Track ids are never reused, entries of tracks that ended are pushed out by the least recently
+ * used order. Entries live in a fixed number of slots that are reused, so the cache allocates
+ * nothing per frame. Not thread safe, the classify stage calls it from one thread. The counters can
+ * be read from any thread.
+ */
+public class ClassificationCache {
+  private final long ttlMs;
+  private final float minScore;
+  private final float maxGrowth;
+  private final int[] trackIds;
+  private final long[] lastUsed;
+  private final Entry[] entries;
+  private long useCount;
+
+  private volatile long hits;
+  private volatile long misses;
+
+  /** A cached classification, only valid until the next call to the cache. */
+  public static final class Entry {
+    String label;
+    float score;
+    int signId;
+    float area;
+    long time;
+
+    public String getLabel() {
+      return label;
+    }
+
+    public float getScore() {
+      return score;
+    }
+
+    public int getSignId() {
+      return signId;
+    }
+  }
+
+  /**
+   * @param capacity tracks remembered at once.
+   * @param ttlMs age at which a result is classified again.
+   * @param minScore lowest score that is cached.
+   * @param maxGrowth box area, relative to the classified one, at which it is classified again.
+   */
+  public ClassificationCache(int capacity, long ttlMs, float minScore, float maxGrowth) {
+    this.ttlMs = ttlMs;
+    this.minScore = minScore;
+    this.maxGrowth = maxGrowth;
+    trackIds = new int[capacity];
+    Arrays.fill(trackIds, SortTracker.NO_TRACK);
+    lastUsed = new long[capacity];
+    entries = new Entry[capacity];
+    for (int i = 0; i < capacity; i++) {
+      entries[i] = new Entry();
+    }
+  }
+
+  /**
+   * The result to use for this track, or null if the box has to be classified.
+   *
+   * @param trackId the track, {@link SortTracker#NO_TRACK} always misses.
+   * @param area area of the box now.
+   */
+  public Entry get(int trackId, float area, long now) {
+    final int slot = find(trackId);
+    final Entry entry = slot >= 0 ? entries[slot] : null;
+    if (entry == null || now - entry.time >= ttlMs || area > entry.area * maxGrowth) {
+      misses++;
+      return null;
+    }
+    lastUsed[slot] = ++useCount;
+    hits++;
+    return entry;
+  }
+
+  /** Stores the classification of a box of this track, unless its score is too low. */
+  public void put(int trackId, String label, float score, int signId, float area, long now) {
+    if (trackId == SortTracker.NO_TRACK) {
+      return;
+    }
+    int slot = find(trackId);
+    if (score < minScore) {
+      if (slot >= 0) {
+        trackIds[slot] = SortTracker.NO_TRACK;
+      }
+      return;
+    }
+    if (slot < 0) {
+      // A free slot has never been used or was emptied, so it is also the least recently used.
+      slot = 0;
+      for (int i = 1; i < trackIds.length; i++) {
+        if (trackIds[slot] != SortTracker.NO_TRACK
+            && (trackIds[i] == SortTracker.NO_TRACK || lastUsed[i] < lastUsed[slot])) {
+          slot = i;
+        }
+      }
+      trackIds[slot] = trackId;
+    }
+    lastUsed[slot] = ++useCount;
+    final Entry entry = entries[slot];
+    entry.label = label;
+    entry.score = score;
+    entry.signId = signId;
+    entry.area = area;
+    entry.time = now;
+  }
+
+  public void clear() {
+    Arrays.fill(trackIds, SortTracker.NO_TRACK);
+  }
+
+  private int find(int trackId) {
+    if (trackId == SortTracker.NO_TRACK) {
+      return -1;
+    }
+    for (int i = 0; i < trackIds.length; i++) {
+      if (trackIds[i] == trackId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public long getHitCount() {
+    return hits;
+  }
+
+  public long getMissCount() {
+    return misses;
+  }
+
+  /** Share of boxes that were not classified again, 0 before the first. */
+  public float getHitRate() {
+    final long hits = this.hits;
+    final long total = hits + misses;
+    return total > 0 ? hits / (float) total : 0;
+  }
+}
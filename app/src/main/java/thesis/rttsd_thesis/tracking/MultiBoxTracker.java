@@ -26,19 +26,31 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
-import java.util.LinkedList;
-import java.util.List;
+
+import java.util.Arrays;
 
 import thesis.rttsd_thesis.env.BorderedText;
 import thesis.rttsd_thesis.env.ImageUtils;
-import thesis.rttsd_thesis.detection.Classifier.Recognition;
+import thesis.rttsd_thesis.detection.DetectionBuffer;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that matches existing objects to new detections with a {@link SortTracker}, so a sign
+ * keeps its track id, its color and its classified label for as long as it stays in view. Only
+ * {@link #updateLabels} changes the label of a track once it has one.
+ *
+ * <p>Boxes, tracked objects and their labels are kept in arrays that are reused from frame to
+ * frame, tracking and drawing only allocate when more objects are in view than ever before or a
+ * label changes.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 16;
   private static final float MIN_SIZE = 16.0f;
+  private static final int MAX_TRACKS = 32;
+  // A track is reported after this many matches in a row, and forgotten after this many misses.
+  private static final int MIN_HITS = 2;
+  private static final int MAX_AGE = 3;
+  private static final float MIN_IOU = 0.3f;
   private static final int[] COLORS = {
           Color.BLUE,
           Color.RED,
@@ -56,11 +68,25 @@ public class MultiBoxTracker {
           Color.parseColor("#AA33AA"),
           Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<>();
+  private RectF[] screenRects = new RectF[0];
+  private float[] screenConfidences = new float[0];
+  private int screenRectCount;
+  // Indexed by the slots, which list the objects tracked in the current frame first.
+  private TrackedRecognition[] trackedObjects = new TrackedRecognition[0];
+  private final TrackSlots slots = new TrackSlots();
+  private final SortTracker sortTracker = new SortTracker(MAX_TRACKS, MAX_AGE, MIN_HITS, MIN_IOU);
+  private int[] rectsToTrack = new int[0];
+  private int[] newTracks = new int[0];
+  private float[] boxes = new float[0];
+  private int[] trackIds = new int[0];
+  private int[] candidateIds = new int[0];
+  private final RectF location = new RectF();
+  private final RectF trackedPos = new RectF();
   private final Paint boxPaint = new Paint();
   private final BorderedText borderedText;
   private Matrix frameToCanvasMatrix;
+  private int canvasWidth;
+  private int canvasHeight;
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
@@ -83,6 +109,7 @@ public class MultiBoxTracker {
     frameWidth = width;
     frameHeight = height;
     this.sensorOrientation = sensorOrientation;
+    frameToCanvasMatrix = null;
   }
 
   public synchronized void drawDebug(final Canvas canvas) {
@@ -95,16 +122,40 @@ public class MultiBoxTracker {
     boxPaint.setAlpha(200);
     boxPaint.setStyle(Style.STROKE);
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
+    for (int i = 0; i < screenRectCount; i++) {
+      final RectF rect = screenRects[i];
       canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+      canvas.drawText("" + screenConfidences[i], rect.left, rect.top, textPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + screenConfidences[i]);
+    }
+  }
+
+  /**
+   * Matches the detections, in frame coordinates, to the tracked objects and sets their track id,
+   * or {@link SortTracker#NO_TRACK} while their track is not yet confirmed, and their candidate
+   * track id, which tentative tracks have too.
+   */
+  public synchronized void trackResults(final DetectionBuffer detections) {
+    processResults(detections);
+  }
+
+  /** Takes the titles and scores of the tracked objects from their classified detections. */
+  public synchronized void updateLabels(final DetectionBuffer detections) {
+    for (int i = 0; i < slots.size(); i++) {
+      final TrackedRecognition trackedRecognition = trackedObjects[slots.get(i)];
+      for (int d = 0; d < detections.size(); d++) {
+        if (detections.getTrackId(d) == trackedRecognition.trackId) {
+          trackedRecognition.title = detections.getTitle(d);
+          trackedRecognition.confidence = detections.getScore(d);
+          break;
+        }
+      }
     }
   }
 
-  public synchronized void trackResults(final List<Recognition> results) {
-    processResults(results);
+  /** Whether the object with this track id is still tracked, in view or briefly missed. */
+  public synchronized boolean isTracked(final int trackId) {
+    return sortTracker.isAlive(trackId);
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -112,21 +163,28 @@ public class MultiBoxTracker {
   }
 
   public synchronized void draw(final Canvas canvas) {
-    final boolean rotated = sensorOrientation % 180 == 90;
-    final float multiplier =
-            Math.min(
-                    canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-                    canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
-    frameToCanvasMatrix =
-            ImageUtils.getTransformationMatrix(
-                    frameWidth,
-                    frameHeight,
-                    (int) (multiplier * (rotated ? frameHeight : frameWidth)),
-                    (int) (multiplier * (rotated ? frameWidth : frameHeight)),
-                    sensorOrientation,
-                    false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+    // Only changes with the canvas size or the frame configuration.
+    if (frameToCanvasMatrix == null
+        || canvas.getWidth() != canvasWidth || canvas.getHeight() != canvasHeight) {
+      canvasWidth = canvas.getWidth();
+      canvasHeight = canvas.getHeight();
+      final boolean rotated = sensorOrientation % 180 == 90;
+      final float multiplier =
+              Math.min(
+                      canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
+                      canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
+      frameToCanvasMatrix =
+              ImageUtils.getTransformationMatrix(
+                      frameWidth,
+                      frameHeight,
+                      (int) (multiplier * (rotated ? frameHeight : frameWidth)),
+                      (int) (multiplier * (rotated ? frameWidth : frameHeight)),
+                      sensorOrientation,
+                      false);
+    }
+    for (int i = 0; i < slots.size(); i++) {
+      final TrackedRecognition recognition = trackedObjects[slots.get(i)];
+      trackedPos.set(recognition.location);
 
       getFrameToCanvasMatrix().mapRect(trackedPos);
       boxPaint.setColor(recognition.color);
@@ -134,60 +192,134 @@ public class MultiBoxTracker {
       float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
       canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
-      @SuppressLint("DefaultLocale") final String labelString =
-              !TextUtils.isEmpty(recognition.title)
-                      ? String.format("%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-                      : String.format("%.2f", (100 * recognition.detectionConfidence));
-                  borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top, labelString);
+      borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top, recognition.label());
       //borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
     }
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<>();
+  private void processResults(final DetectionBuffer detections) {
+    final int size = detections.size();
+    ensureCapacity(size);
+    final Matrix rgbFrameToScreen = getFrameToCanvasMatrix();
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+    screenRectCount = 0;
+    int count = 0;
+    for (int d = 0; d < size; d++) {
+      detections.setTrackId(d, SortTracker.NO_TRACK);
+      detections.setCandidateTrackId(d, SortTracker.NO_TRACK);
+      detections.getBox(d, location);
 
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
-        continue;
+      final RectF detectionScreenRect = screenRects[screenRectCount];
+      if (rgbFrameToScreen != null) {
+        rgbFrameToScreen.mapRect(detectionScreenRect, location);
+      } else {
+        detectionScreenRect.set(location);
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+      screenConfidences[screenRectCount++] = detections.getScore(d);
 
+      if (location.width() < MIN_SIZE || location.height() < MIN_SIZE) {
+        continue;
+      }
 
-      screenRects.add(new Pair<>(result.getConfidence(), detectionScreenRect));
+      rectsToTrack[count] = d;
+      boxes[count * 4] = location.left;
+      boxes[count * 4 + 1] = location.top;
+      boxes[count * 4 + 2] = location.right;
+      boxes[count * 4 + 3] = location.bottom;
+      count++;
+    }
+    // Runs on empty frames too, so tracks age and die.
+    sortTracker.update(boxes, count, trackIds, candidateIds);
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
+    // Tracks seen before keep their object, and with it the title and score updateLabels gave
+    // them, so the label does not fall back to the detector's until the classify stage is done.
+    // Coasting tracks keep theirs too, new tracks only take the objects of dead ones.
+    slots.reset();
+    int newCount = 0;
+    for (int i = 0; i < count; i++) {
+      detections.setTrackId(rectsToTrack[i], trackIds[i]);
+      detections.setCandidateTrackId(rectsToTrack[i], candidateIds[i]);
+      if (trackIds[i] == SortTracker.NO_TRACK) {
         continue;
       }
-
-      rectsToTrack.add(new Pair<>(result.getConfidence(), result));
+      final int slot = slots.take(trackIds[i]);
+      if (slot < 0) {
+        newTracks[newCount++] = i;
+        continue;
+      }
+      setLocation(trackedObjects[slot], i);
+    }
+    // New tracks show the detector's label until they are classified.
+    for (int n = 0; n < newCount; n++) {
+      final int i = newTracks[n];
+      final int d = rectsToTrack[i];
+      final int slot = slots.takeFree(trackIds[i], sortTracker);
+      if (slot >= trackedObjects.length) {
+        growTrackedObjects();
+      }
+      final TrackedRecognition trackedRecognition = trackedObjects[slot];
+      setLocation(trackedRecognition, i);
+      trackedRecognition.trackId = trackIds[i];
+      trackedRecognition.title = detections.getTitle(d);
+      trackedRecognition.confidence = detections.getScore(d);
+      trackedRecognition.color = COLORS[trackIds[i] % COLORS.length];
     }
+  }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      return;
+  private void growTrackedObjects() {
+    final int previous = trackedObjects.length;
+    trackedObjects = Arrays.copyOf(trackedObjects, slots.capacity());
+    for (int i = previous; i < trackedObjects.length; i++) {
+      trackedObjects[i] = new TrackedRecognition();
     }
+  }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size() % COLORS.length];
-      trackedObjects.add(trackedRecognition);
+  private void setLocation(final TrackedRecognition trackedRecognition, final int i) {
+    trackedRecognition.location.set(
+            boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+  }
 
+  private void ensureCapacity(int count) {
+    if (screenRects.length >= count) {
+      return;
+    }
+    final int capacity = Math.max(count, screenRects.length * 2);
+    final RectF[] rects = new RectF[capacity];
+    for (int i = 0; i < capacity; i++) {
+      rects[i] = i < screenRects.length ? screenRects[i] : new RectF();
     }
+    screenRects = rects;
+    screenConfidences = new float[capacity];
+    rectsToTrack = new int[capacity];
+    newTracks = new int[capacity];
+    boxes = new float[capacity * 4];
+    trackIds = new int[capacity];
+    candidateIds = new int[capacity];
   }
 
   private static class TrackedRecognition {
-    RectF location;
-    float detectionConfidence;
-    int color;
+    final RectF location = new RectF();
+    int trackId = SortTracker.NO_TRACK;
+    // Copied, the detections belong to a frame that is reused. Set by updateLabels once the track
+    // is classified, kept while it stays tracked.
     String title;
+    float confidence;
+    int color;
+    // The label as last drawn, rebuilt only when the title or confidence change.
+    private String label;
+    private String labelTitle;
+    private float labelConfidence = Float.NaN;
+
+    @SuppressLint("DefaultLocale")
+    String label() {
+      if (label == null || !TextUtils.equals(title, labelTitle) || confidence != labelConfidence) {
+        labelTitle = title;
+        labelConfidence = confidence;
+        label = !TextUtils.isEmpty(title)
+                ? String.format("%s %.2f", title, (100 * confidence))
+                : String.format("%.2f", (100 * confidence));
+      }
+      return label;
+    }
   }
 }
@@ -0,0 +1,204 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Decides what sign a tracked object is from the classifications of several frames instead of
+ * one.
+ *
+ * <p>Each classification adds its score to its sign's evidence for the track, and all evidence of
+ * the track decays exponentially with the given half life, counted in votes on the track rather
+ * than in time. How fast a sign is committed so does not depend on the frame rate, at a few frames
+ * per second two agreeing frames commit it as they do at thirty. A sign is committed once its evidence
+ * reaches the commit threshold and leads the runner up by the margin, so one misclassified frame
+ * can neither commit a sign nor replace a committed one. A committed sign stays until another one
+ * passes the same test.
+ *
+ * <p>Every track keeps the evidence of a few candidate signs, the weakest is replaced when a new
+ * sign comes up. Tracks live in a fixed number of slots that are reused, the least recently voted
+ * on is replaced first, so voting allocates nothing. Not thread safe, the classify stage calls it
+ * from one thread.
+ */
+public class SignVoter {
+  /** Result for tracks with no committed sign. */
+  public static final int NONE = -1;
+
+  private static final int CANDIDATES = 4;
+
+  private final float decay;
+  private final float commitScore;
+  private final float margin;
+  private final int[] trackIds;
+  private final long[] lastUsed;
+  private final Votes[] tracks;
+  private long useCount;
+
+  private static final class Votes {
+    final int[] signs = new int[CANDIDATES];
+    final float[] evidence = new float[CANDIDATES];
+    int count;
+    int committed = NONE;
+    float confidence;
+
+    void reset() {
+      count = 0;
+      committed = NONE;
+      confidence = 0;
+    }
+  }
+
+  /**
+   * @param capacity tracks remembered at once, the least recently voted on is forgotten first.
+   * @param halfLifeVotes votes on a track in which its evidence halves.
+   * @param commitScore evidence a sign needs to be committed.
+   * @param margin lead over the runner up a sign needs to be committed.
+   */
+  public SignVoter(int capacity, float halfLifeVotes, float commitScore, float margin) {
+    this.decay = (float) Math.pow(0.5, 1 / halfLifeVotes);
+    this.commitScore = commitScore;
+    this.margin = margin;
+    trackIds = new int[capacity];
+    Arrays.fill(trackIds, SortTracker.NO_TRACK);
+    lastUsed = new long[capacity];
+    tracks = new Votes[capacity];
+    for (int i = 0; i < capacity; i++) {
+      tracks[i] = new Votes();
+    }
+  }
+
+  /**
+   * Adds a classification of a tracked object.
+   *
+   * @param signId the classified sign, negative ids only let the evidence decay.
+   * @param score the classifier's score for it.
+   * @return the committed sign of the track, or {@link #NONE}.
+   */
+  public int vote(int trackId, int signId, float score) {
+    if (trackId == SortTracker.NO_TRACK) {
+      return NONE;
+    }
+    int slot = find(trackId);
+    if (slot < 0) {
+      slot = 0;
+      for (int i = 1; i < trackIds.length; i++) {
+        if (trackIds[slot] != SortTracker.NO_TRACK
+            && (trackIds[i] == SortTracker.NO_TRACK || lastUsed[i] < lastUsed[slot])) {
+          slot = i;
+        }
+      }
+      trackIds[slot] = trackId;
+      tracks[slot].reset();
+    }
+    lastUsed[slot] = ++useCount;
+    final Votes votes = tracks[slot];
+
+    for (int i = 0; i < votes.count; i++) {
+      votes.evidence[i] *= decay;
+    }
+    if (signId >= 0) {
+      add(votes, signId, score);
+    }
+
+    int first = -1;
+    int second = -1;
+    float total = 0;
+    for (int i = 0; i < votes.count; i++) {
+      total += votes.evidence[i];
+      if (first < 0 || votes.evidence[i] > votes.evidence[first]) {
+        second = first;
+        first = i;
+      } else if (second < 0 || votes.evidence[i] > votes.evidence[second]) {
+        second = i;
+      }
+    }
+    if (first >= 0) {
+      final float lead = votes.evidence[first] - (second >= 0 ? votes.evidence[second] : 0);
+      if (votes.evidence[first] >= commitScore && lead >= margin) {
+        votes.committed = votes.signs[first];
+      }
+    }
+    votes.confidence = total > 0 ? evidenceOf(votes, votes.committed) / total : 0;
+    return votes.committed;
+  }
+
+  /** The committed sign of the track, or {@link #NONE}. */
+  public int getCommitted(int trackId) {
+    final int slot = find(trackId);
+    return slot >= 0 ? tracks[slot].committed : NONE;
+  }
+
+  /**
+   * The committed sign's share of the track's evidence as of the last vote, between 0 and 1, 0
+   * without a committed sign.
+   */
+  public float getConfidence(int trackId) {
+    final int slot = find(trackId);
+    return slot >= 0 ? tracks[slot].confidence : 0;
+  }
+
+  public void clear() {
+    Arrays.fill(trackIds, SortTracker.NO_TRACK);
+  }
+
+  private int find(int trackId) {
+    if (trackId == SortTracker.NO_TRACK) {
+      return -1;
+    }
+    for (int i = 0; i < trackIds.length; i++) {
+      if (trackIds[i] == trackId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void add(Votes votes, int signId, float score) {
+    int weakest = 0;
+    for (int i = 0; i < votes.count; i++) {
+      if (votes.signs[i] == signId) {
+        votes.evidence[i] += score;
+        return;
+      }
+      if (votes.evidence[i] < votes.evidence[weakest]) {
+        weakest = i;
+      }
+    }
+    if (votes.count < CANDIDATES) {
+      weakest = votes.count++;
+    } else if (votes.signs[weakest] == votes.committed) {
+      // The committed sign keeps its place, it is only replaced by being outvoted.
+      weakest = weakest == 0 ? 1 : 0;
+      for (int i = 0; i < votes.count; i++) {
+        if (votes.signs[i] != votes.committed && votes.evidence[i] < votes.evidence[weakest]) {
+          weakest = i;
+        }
+      }
+    }
+    votes.signs[weakest] = signId;
+    votes.evidence[weakest] = score;
+  }
+
+  private static float evidenceOf(Votes votes, int signId) {
+    for (int i = 0; i < votes.count; i++) {
+      if (votes.signs[i] == signId) {
+        return votes.evidence[i];
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,392 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Multi object tracker in the style of SORT: every track has a constant velocity Kalman filter,
+ * detections are matched to the predicted boxes by IoU with the Hungarian algorithm, and matched
+ * detections keep the id of their track from frame to frame.
+ *
+ * <p>A track is born tentative and only reported once it was matched {@code minHits} frames in a
+ * row, so a single false detection never gets an id. It survives {@code maxAge} frames without a
+ * match, coasting on its prediction, so a sign missed in one frame keeps its id.
+ *
+ * <p>The filter of each track is four independent position and velocity filters, for the center
+ * x, center y, width and height of the box. With SORT's diagonal noise matrices that is the same
+ * filter as the full one. All state lives in flat arrays indexed by track slot.
+ */
+public class SortTracker {
+  /** Id of detections that belong to no reported track. */
+  public static final int NO_TRACK = -1;
+
+  private static final int AXES = 4;
+  private static final float INITIAL_POSITION_VARIANCE = 10f;
+  private static final float INITIAL_VELOCITY_VARIANCE = 1000f;
+  private static final float POSITION_PROCESS_NOISE = 1f;
+  private static final float VELOCITY_PROCESS_NOISE = 0.01f;
+  private static final float CENTER_MEASUREMENT_NOISE = 1f;
+  private static final float SIZE_MEASUREMENT_NOISE = 10f;
+
+  private final int capacity;
+  private final int maxAge;
+  private final int minHits;
+  private final float minIou;
+
+  // Per slot, NO_TRACK for a free slot.
+  private final int[] ids;
+  private final int[] hitStreak;
+  private final int[] misses;
+  private final boolean[] confirmed;
+  // Per slot and axis: position and velocity, then the covariance entries p00, p01 and p11.
+  private final float[] state;
+  private final float[] covariance;
+  private int nextId;
+  private int trackCount;
+
+  // Scratch, grown on demand.
+  private int[] slots = new int[0];
+  private float[] cost = new float[0];
+  private int[] detectionTrack = new int[0];
+  private boolean[] trackMatched;
+  private final Hungarian hungarian = new Hungarian();
+
+  /**
+   * @param capacity most tracks alive at once, detections beyond that start no track.
+   * @param maxAge frames a track survives without a matching detection.
+   * @param minHits consecutive matches before a track is reported.
+   * @param minIou lowest IoU between a prediction and a detection that still counts as a match.
+   */
+  public SortTracker(int capacity, int maxAge, int minHits, float minIou) {
+    this.capacity = capacity;
+    this.maxAge = maxAge;
+    this.minHits = minHits;
+    this.minIou = minIou;
+    ids = new int[capacity];
+    Arrays.fill(ids, NO_TRACK);
+    hitStreak = new int[capacity];
+    misses = new int[capacity];
+    confirmed = new boolean[capacity];
+    state = new float[capacity * AXES * 2];
+    covariance = new float[capacity * AXES * 3];
+    trackMatched = new boolean[capacity];
+  }
+
+  /**
+   * Advances all tracks by one frame and matches them to the detections.
+   *
+   * @param boxes left, top, right and bottom of each detection.
+   * @param count number of detections in {@code boxes}.
+   * @param trackIds receives the id of the reported track of each detection, or {@link #NO_TRACK}
+   *     while its track is tentative.
+   */
+  public void update(float[] boxes, int count, int[] trackIds) {
+    update(boxes, count, trackIds, null);
+  }
+
+  /**
+   * Same as {@link #update(float[], int, int[])}, and also gives the ids of tentative tracks.
+   *
+   * @param candidateIds receives the id of the track of each detection, reported or tentative, or
+   *     {@link #NO_TRACK} if it started none. A tentative track keeps its id once it is reported.
+   */
+  public void update(float[] boxes, int count, int[] trackIds, int[] candidateIds) {
+    // Predict, and list the live slots.
+    int live = 0;
+    if (slots.length < capacity) {
+      slots = new int[capacity];
+    }
+    for (int slot = 0; slot < capacity; slot++) {
+      if (ids[slot] != NO_TRACK) {
+        predict(slot);
+        slots[live++] = slot;
+      }
+    }
+
+    // Associate, maximizing the total IoU.
+    if (detectionTrack.length < count) {
+      detectionTrack = new int[count];
+    }
+    Arrays.fill(detectionTrack, 0, count, -1);
+    Arrays.fill(trackMatched, false);
+    if (live > 0 && count > 0) {
+      if (cost.length < live * count) {
+        cost = new float[live * count];
+      }
+      for (int t = 0; t < live; t++) {
+        for (int d = 0; d < count; d++) {
+          cost[t * count + d] = 1f - iou(slots[t], boxes, d);
+        }
+      }
+      final int[] match = hungarian.solve(cost, live, count);
+      for (int t = 0; t < live; t++) {
+        final int d = match[t];
+        if (d >= 0 && 1f - cost[t * count + d] >= minIou) {
+          detectionTrack[d] = slots[t];
+          trackMatched[slots[t]] = true;
+        }
+      }
+    }
+
+    // Correct the matched tracks, age the others.
+    for (int t = 0; t < live; t++) {
+      final int slot = slots[t];
+      if (trackMatched[slot]) {
+        continue;
+      }
+      hitStreak[slot] = 0;
+      if (++misses[slot] > maxAge) {
+        ids[slot] = NO_TRACK;
+        trackCount--;
+      }
+    }
+    for (int d = 0; d < count; d++) {
+      int slot = detectionTrack[d];
+      if (slot >= 0) {
+        correct(slot, boxes, d);
+        misses[slot] = 0;
+        if (++hitStreak[slot] >= minHits) {
+          confirmed[slot] = true;
+        }
+      } else {
+        slot = start(boxes, d);
+      }
+      trackIds[d] = slot >= 0 && confirmed[slot] ? ids[slot] : NO_TRACK;
+      if (candidateIds != null) {
+        candidateIds[d] = slot >= 0 ? ids[slot] : NO_TRACK;
+      }
+    }
+  }
+
+  /** Whether a track with this id is still alive, matched or coasting. */
+  public boolean isAlive(int id) {
+    if (id == NO_TRACK) {
+      return false;
+    }
+    for (int slot = 0; slot < capacity; slot++) {
+      if (ids[slot] == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Tracks alive, tentative ones included. */
+  public int getTrackCount() {
+    return trackCount;
+  }
+
+  /** Forgets every track, ids keep increasing. */
+  public void clear() {
+    Arrays.fill(ids, NO_TRACK);
+    trackCount = 0;
+  }
+
+  private int start(float[] boxes, int d) {
+    int slot = 0;
+    while (slot < capacity && ids[slot] != NO_TRACK) {
+      slot++;
+    }
+    if (slot == capacity) {
+      return -1;
+    }
+    ids[slot] = nextId++;
+    hitStreak[slot] = 1;
+    misses[slot] = 0;
+    confirmed[slot] = minHits <= 1;
+    trackCount++;
+    for (int axis = 0; axis < AXES; axis++) {
+      final int s = (slot * AXES + axis) * 2;
+      final int c = (slot * AXES + axis) * 3;
+      state[s] = measure(boxes, d, axis);
+      state[s + 1] = 0;
+      covariance[c] = INITIAL_POSITION_VARIANCE;
+      covariance[c + 1] = 0;
+      covariance[c + 2] = INITIAL_VELOCITY_VARIANCE;
+    }
+    return slot;
+  }
+
+  private void predict(int slot) {
+    for (int axis = 0; axis < AXES; axis++) {
+      final int s = (slot * AXES + axis) * 2;
+      final int c = (slot * AXES + axis) * 3;
+      state[s] += state[s + 1];
+      final float p00 = covariance[c];
+      final float p01 = covariance[c + 1];
+      final float p11 = covariance[c + 2];
+      covariance[c] = p00 + 2 * p01 + p11 + POSITION_PROCESS_NOISE;
+      covariance[c + 1] = p01 + p11;
+      covariance[c + 2] = p11 + VELOCITY_PROCESS_NOISE;
+    }
+    // A shrinking box must not turn inside out.
+    for (int axis = 2; axis < AXES; axis++) {
+      final int s = (slot * AXES + axis) * 2;
+      if (state[s] < 1f) {
+        state[s] = 1f;
+        state[s + 1] = 0;
+      }
+    }
+  }
+
+  private void correct(int slot, float[] boxes, int d) {
+    for (int axis = 0; axis < AXES; axis++) {
+      final int s = (slot * AXES + axis) * 2;
+      final int c = (slot * AXES + axis) * 3;
+      final float p00 = covariance[c];
+      final float p01 = covariance[c + 1];
+      final float p11 = covariance[c + 2];
+      final float noise = axis < 2 ? CENTER_MEASUREMENT_NOISE : SIZE_MEASUREMENT_NOISE;
+      final float k0 = p00 / (p00 + noise);
+      final float k1 = p01 / (p00 + noise);
+      final float residual = measure(boxes, d, axis) - state[s];
+      state[s] += k0 * residual;
+      state[s + 1] += k1 * residual;
+      covariance[c] = (1 - k0) * p00;
+      covariance[c + 1] = (1 - k0) * p01;
+      covariance[c + 2] = p11 - k1 * p01;
+    }
+  }
+
+  /** Center x, center y, width or height of a detection. */
+  private static float measure(float[] boxes, int d, int axis) {
+    final int b = d * 4;
+    switch (axis) {
+      case 0:
+        return (boxes[b] + boxes[b + 2]) / 2;
+      case 1:
+        return (boxes[b + 1] + boxes[b + 3]) / 2;
+      case 2:
+        return boxes[b + 2] - boxes[b];
+      default:
+        return boxes[b + 3] - boxes[b + 1];
+    }
+  }
+
+  private float iou(int slot, float[] boxes, int d) {
+    final int s = slot * AXES * 2;
+    final float halfWidth = state[s + 4] / 2;
+    final float halfHeight = state[s + 6] / 2;
+    final float left = state[s] - halfWidth;
+    final float right = state[s] + halfWidth;
+    final float top = state[s + 2] - halfHeight;
+    final float bottom = state[s + 2] + halfHeight;
+    final int b = d * 4;
+    final float width = Math.min(right, boxes[b + 2]) - Math.max(left, boxes[b]);
+    final float height = Math.min(bottom, boxes[b + 3]) - Math.max(top, boxes[b + 1]);
+    if (width <= 0 || height <= 0) {
+      return 0;
+    }
+    final float intersection = width * height;
+    final float union = (right - left) * (bottom - top)
+        + (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1]) - intersection;
+    return union > 0 ? intersection / union : 0;
+  }
+
+  /**
+   * Minimum cost assignment of rows to columns, the O(n^3) Hungarian algorithm with potentials.
+   * Reuses its arrays between calls.
+   */
+  static final class Hungarian {
+    private float[] u = new float[0];
+    private float[] v = new float[0];
+    private float[] minTo = new float[0];
+    private int[] columnRow = new int[0];
+    private int[] way = new int[0];
+    private boolean[] used = new boolean[0];
+    private int[] rowColumn = new int[0];
+
+    /**
+     * @param cost rows x columns, row major.
+     * @return for every row its column, or -1 where there are more rows than columns.
+     */
+    int[] solve(float[] cost, int rows, int columns) {
+      final boolean transposed = rows > columns;
+      final int n = transposed ? columns : rows;
+      final int m = transposed ? rows : columns;
+      if (u.length < n + 1 || v.length < m + 1) {
+        final int size = Math.max(n, m) + 1;
+        u = new float[size];
+        v = new float[size];
+        minTo = new float[size];
+        columnRow = new int[size];
+        way = new int[size];
+        used = new boolean[size];
+      }
+      if (rowColumn.length < rows) {
+        rowColumn = new int[rows];
+      }
+      Arrays.fill(u, 0, n + 1, 0);
+      Arrays.fill(v, 0, m + 1, 0);
+      Arrays.fill(columnRow, 0, m + 1, 0);
+
+      // Rows and columns are 1-based, column 0 is the free row being placed.
+      for (int i = 1; i <= n; i++) {
+        columnRow[0] = i;
+        int j0 = 0;
+        Arrays.fill(minTo, 0, m + 1, Float.MAX_VALUE);
+        Arrays.fill(used, 0, m + 1, false);
+        do {
+          used[j0] = true;
+          final int i0 = columnRow[j0];
+          float delta = Float.MAX_VALUE;
+          int j1 = 0;
+          for (int j = 1; j <= m; j++) {
+            if (!used[j]) {
+              final float c = (transposed ? cost[(j - 1) * columns + i0 - 1]
+                  : cost[(i0 - 1) * columns + j - 1]) - u[i0] - v[j];
+              if (c < minTo[j]) {
+                minTo[j] = c;
+                way[j] = j0;
+              }
+              if (minTo[j] < delta) {
+                delta = minTo[j];
+                j1 = j;
+              }
+            }
+          }
+          for (int j = 0; j <= m; j++) {
+            if (used[j]) {
+              u[columnRow[j]] += delta;
+              v[j] -= delta;
+            } else {
+              minTo[j] -= delta;
+            }
+          }
+          j0 = j1;
+        } while (columnRow[j0] != 0);
+        do {
+          final int j1 = way[j0];
+          columnRow[j0] = columnRow[j1];
+          j0 = j1;
+        } while (j0 != 0);
+      }
+
+      Arrays.fill(rowColumn, 0, rows, -1);
+      for (int j = 1; j <= m; j++) {
+        if (columnRow[j] != 0) {
+          if (transposed) {
+            rowColumn[j - 1] = columnRow[j] - 1;
+          } else {
+            rowColumn[columnRow[j] - 1] = j - 1;
+          }
+        }
+      }
+      return rowColumn;
+    }
+  }
+}
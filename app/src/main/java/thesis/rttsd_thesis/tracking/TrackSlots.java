@@ -0,0 +1,110 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package thesis.rttsd_thesis.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Keeps which tracked object belongs to which track. An object stays with its track for as long
+ * as the {@link SortTracker} keeps the track alive, coasting included, so a track missed for a few
+ * frames comes back to the title and score it had. A new track takes the object of a track that
+ * died, or a new one.
+ *
+ * <p>Objects are referred to by index, the caller keeps them in an array of {@link #capacity()}.
+ * The objects taken in the current frame are listed first, in the order they were taken.
+ */
+final class TrackSlots {
+  // Track of each object, by object index.
+  private int[] trackIds = new int[0];
+  // Object indices, the ones taken this frame first.
+  private int[] order = new int[0];
+  private int count;
+
+  /** Starts a frame, no object is taken yet. */
+  void reset() {
+    count = 0;
+  }
+
+  /** Objects taken this frame. */
+  int size() {
+    return count;
+  }
+
+  /** Index of the {@code i}-th object taken this frame. */
+  int get(int i) {
+    return order[i];
+  }
+
+  /** Objects there are, taken or not. */
+  int capacity() {
+    return order.length;
+  }
+
+  /**
+   * Takes the object of a track seen in an earlier frame. Call it for all of a frame's tracks
+   * before {@link #takeFree}, which may hand the object of a track not taken yet to another track.
+   *
+   * @return index of the object, or -1 if the track has none.
+   */
+  int take(int trackId) {
+    for (int i = count; i < order.length; i++) {
+      if (trackIds[order[i]] == trackId) {
+        return takeAt(i);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Takes an object for a new track, one whose track the tracker no longer keeps alive, or a new
+   * one if every object belongs to a live track.
+   *
+   * @return index of the object.
+   */
+  int takeFree(int trackId, SortTracker tracker) {
+    int free = -1;
+    for (int i = count; i < order.length && free < 0; i++) {
+      final int id = trackIds[order[i]];
+      if (id == SortTracker.NO_TRACK || !tracker.isAlive(id)) {
+        free = i;
+      }
+    }
+    if (free < 0) {
+      free = order.length;
+      grow();
+    }
+    trackIds[order[free]] = trackId;
+    return takeAt(free);
+  }
+
+  private int takeAt(int i) {
+    final int object = order[i];
+    order[i] = order[count];
+    order[count++] = object;
+    return object;
+  }
+
+  private void grow() {
+    final int previous = order.length;
+    final int capacity = Math.max(4, previous * 2);
+    order = Arrays.copyOf(order, capacity);
+    trackIds = Arrays.copyOf(trackIds, capacity);
+    for (int i = previous; i < capacity; i++) {
+      order[i] = i;
+      trackIds[i] = SortTracker.NO_TRACK;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the intersection over union of a few box pairs and the score sort, on both sides of its
+ * insertion sort cut off.
+ */
+public class BoxesTest {
+    @Test
+    public void iouOfIdenticalDisjointAndOverlappingBoxes() {
+        final float[] boxes = {0, 0, 10, 10, 0, 0, 10, 10, 10, 0, 20, 10, 5, 5, 15, 15};
+        assertEquals(1f, Boxes.iou(boxes, 0, 1), 0f);
+        // Touching edges do not overlap.
+        assertEquals(0f, Boxes.iou(boxes, 0, 2), 0f);
+        assertEquals(25f / 175f, Boxes.iou(boxes, 0, 3), 1e-6f);
+        assertEquals(Boxes.iou(boxes, 0, 3), Boxes.iou(boxes, 3, 0), 0f);
+        assertEquals(Boxes.iou(boxes, 0, 3), Boxes.iou(0, 0, 10, 10, 5, 5, 15, 15), 0f);
+    }
+
+    @Test
+    public void invertedBoxesHaveNoArea() {
+        final float[] boxes = {10, 10, 0, 0};
+        assertEquals(0f, Boxes.area(boxes, 0), 0f);
+    }
+
+    @Test
+    public void sortByScoreOrdersByDescendingScore() {
+        final Random random = new Random(7);
+        for (int count : new int[] {1, 5, 16, 17, 200}) {
+            final float[] scores = new float[count];
+            for (int i = 0; i < count; i++) {
+                // Few distinct values, so there are many ties.
+                scores[i] = random.nextInt(10) / 10f;
+            }
+            final int[] order = new int[count];
+            Boxes.sortByScore(order, scores, count);
+
+            final boolean[] seen = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                assertTrue(!seen[order[i]]);
+                seen[order[i]] = true;
+                if (i > 0) {
+                    assertTrue(scores[order[i - 1]] >= scores[order[i]]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import thesis.rttsd_thesis.tracking.SortTracker;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fills a buffer past its initial capacity and checks filtering and clearing.
+ */
+public class DetectionBufferTest {
+    private final DetectionBuffer buffer = new DetectionBuffer(2);
+
+    private void add(float score, int detectedClass) {
+        buffer.add(detectedClass, 0, detectedClass + 10, 20, score, detectedClass, "c" + detectedClass);
+    }
+
+    @Test
+    public void growsAndStartsDetectionsUntrackedAndUnknown() {
+        for (int i = 0; i < 5; i++) {
+            add(0.9f, i);
+        }
+        assertEquals(5, buffer.size());
+        assertEquals(4f, buffer.getLeft(4), 0f);
+        assertEquals(200f, buffer.getArea(4), 0f);
+        assertEquals("c4", buffer.getTitle(4));
+        assertEquals(SortTracker.NO_TRACK, buffer.getTrackId(4));
+        assertEquals(SortTracker.NO_TRACK, buffer.getCandidateTrackId(4));
+        assertEquals(SignTable.UNKNOWN, buffer.getSignId(4));
+    }
+
+    @Test
+    public void retainKeepsTheOrderOfTheConfidentOnes() {
+        add(0.9f, 0);
+        add(0.3f, 1);
+        add(0.8f, 2);
+        buffer.setTrackId(2, 7);
+        add(0.7f, 3);
+        add(0.95f, 4);
+
+        buffer.retain(0.6f, 3);
+        assertEquals(3, buffer.size());
+        assertEquals(0, buffer.getDetectedClass(0));
+        assertEquals(2, buffer.getDetectedClass(1));
+        assertEquals(7, buffer.getTrackId(1));
+        assertEquals("c2", buffer.getTitle(1));
+        assertEquals(3, buffer.getDetectedClass(2));
+        assertEquals(0.7f, buffer.getScore(2), 0f);
+    }
+
+    @Test
+    public void clearedBuffersStartOver() {
+        add(0.9f, 0);
+        buffer.setTrackId(0, 3);
+        buffer.setSignId(0, 43);
+        buffer.setVoteShare(0, 0.75f);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        add(0.8f, 1);
+        assertEquals(1, buffer.size());
+        assertEquals("c1", buffer.getTitle(0));
+        assertEquals(SortTracker.NO_TRACK, buffer.getTrackId(0));
+        assertEquals(SignTable.UNKNOWN, buffer.getSignId(0));
+        assertEquals(0f, buffer.getVoteShare(0), 0f);
+    }
+}
@@ -0,0 +1,233 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.label.Category;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import thesis.rttsd_thesis.env.CropResampler;
+import thesis.rttsd_thesis.tracking.ClassificationCache;
+import thesis.rttsd_thesis.tracking.SignVoter;
+import thesis.rttsd_thesis.tracking.SortTracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the per frame work after inference, decoding, suppression into a {@link DetectionBuffer},
+ * filtering, tracking, the classification cache, cropping, the {@link SignClassifier} and the sign
+ * vote, on a few signs moving through the view, and checks that once warmed up a frame allocates
+ * nothing on the heap. Only the pooled classifiers are stand-ins, they name the sign from the
+ * crop's pixels.
+ *
+ * <p>The JIT can allocate on the measured thread once in a while, so the frames are measured in a
+ * few rounds and the cleanest counts. Allocations of the frame loop itself show in every round.
+ */
+public class FrameLoopAllocationTest {
+    private static final int INPUT_SIZE = 320;
+    private static final int NUM_BOXES = 200;
+    private static final int NUM_CLASS = 4;
+    private static final int SIGNS = 3;
+    private static final String[] LABELS = {"stop", "yield", "no entry", "50"};
+    private static final int WARM_UP_FRAMES = 1000;
+    private static final int MEASURED_FRAMES = 2000;
+    private static final int ROUNDS = 3;
+    private static final int CROP_SIZE = 64;
+
+    private final ByteBuffer output = ByteBuffer.allocateDirect(NUM_BOXES * (NUM_CLASS + 5) * 4)
+            .order(ByteOrder.nativeOrder());
+    private final YoloOutputDecoder decoder =
+            new YoloOutputDecoder(NUM_BOXES, NUM_CLASS, INPUT_SIZE, false, 0, 0);
+    private final NonMaxSuppression nms = new GreedyNonMaxSuppression(0.8f, 100, false);
+    private final SortTracker tracker = new SortTracker(32, 3, 2, 0.3f);
+    private final ClassificationCache cache = new ClassificationCache(32, 1000, 0.8f, 1.5f);
+    private final SignVoter voter = new SignVoter(32, 4, 1.5f, 0.5f);
+    private final int[] keep = new int[NUM_BOXES];
+    private final DetectionBuffer detections = new DetectionBuffer();
+    private final float[] boxes = new float[NUM_BOXES * 4];
+    private final int[] trackIds = new int[NUM_BOXES];
+    private final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+    private final CropResampler resampler = new CropResampler(CROP_SIZE, CROP_SIZE);
+    private final int[] crops = new int[NUM_BOXES * CROP_SIZE * CROP_SIZE];
+    private final int[] misses = new int[NUM_BOXES];
+    private final String[] labels = new String[NUM_BOXES];
+    private final float[] scores = new float[NUM_BOXES];
+    private final SignClassifier classifier = new SignClassifier(standIns(3));
+    private int committed;
+    private int batches;
+
+    public FrameLoopAllocationTest() {
+        // Each sign has its own third of the view, the red channel tells which.
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | (i % INPUT_SIZE * SIGNS / INPUT_SIZE) << 16;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        classifier.close();
+    }
+
+    @Test
+    public void steadyStateFramesAllocateNothing() {
+        final com.sun.management.ThreadMXBean threads = threadBean();
+        final long thread = Thread.currentThread().getId();
+
+        for (int frame = 0; frame < WARM_UP_FRAMES; frame++) {
+            runFrame(frame);
+        }
+        assertTrue("Signs were never committed", committed > 0);
+
+        // Reading the counter may allocate itself, measure that first.
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            final long before = threads.getThreadAllocatedBytes(thread);
+            overhead = Math.min(overhead, threads.getThreadAllocatedBytes(thread) - before);
+        }
+
+        long allocated = Long.MAX_VALUE;
+        int frame = WARM_UP_FRAMES;
+        batches = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long before = threads.getThreadAllocatedBytes(thread);
+            for (int end = frame + MEASURED_FRAMES; frame < end; frame++) {
+                runFrame(frame);
+            }
+            allocated = Math.min(allocated,
+                    threads.getThreadAllocatedBytes(thread) - before - overhead);
+        }
+
+        assertEquals("Bytes allocated over " + MEASURED_FRAMES + " frames", 0, allocated);
+        assertTrue(cache.getHitRate() > 0.9f);
+        assertTrue("No frame had several crops", batches > 0);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private void runFrame(int frame) {
+        writeOutput(frame);
+        final int count = decoder.decode(output, 0.5f, NUM_CLASS, INPUT_SIZE - 1, INPUT_SIZE - 1);
+        final int kept = nms.apply(decoder.boxes, decoder.scores, decoder.classes, count, keep);
+        detections.clear();
+        for (int k = 0; k < kept; k++) {
+            final int i = keep[k];
+            detections.add(decoder.boxes[i * 4], decoder.boxes[i * 4 + 1], decoder.boxes[i * 4 + 2],
+                    decoder.boxes[i * 4 + 3], decoder.scores[i], decoder.classes[i],
+                    LABELS[decoder.classes[i]]);
+        }
+        detections.retain(0.6f, 5);
+
+        for (int d = 0; d < detections.size(); d++) {
+            boxes[d * 4] = detections.getLeft(d);
+            boxes[d * 4 + 1] = detections.getTop(d);
+            boxes[d * 4 + 2] = detections.getRight(d);
+            boxes[d * 4 + 3] = detections.getBottom(d);
+        }
+        tracker.update(boxes, detections.size(), trackIds);
+
+        final long now = frame * 66L;
+        committed = 0;
+        int missCount = 0;
+        for (int d = 0; d < detections.size(); d++) {
+            detections.setTrackId(d, trackIds[d]);
+            final ClassificationCache.Entry cached =
+                    cache.get(detections.getTrackId(d), detections.getArea(d), now);
+            if (cached != null) {
+                detections.setTitle(d, cached.getLabel());
+                detections.setSignId(d, cached.getSignId());
+                committed++;
+                continue;
+            }
+            resampler.resample(pixels, INPUT_SIZE, INPUT_SIZE, detections.getLeft(d),
+                    detections.getTop(d), detections.getRight(d), detections.getBottom(d),
+                    crops, missCount * CROP_SIZE * CROP_SIZE);
+            misses[missCount++] = d;
+        }
+        if (missCount == 0) return;
+        if (missCount > 1) batches++;
+
+        classifier.classifyAll(crops, CROP_SIZE, CROP_SIZE, missCount, 0.5f, labels, scores);
+        for (int m = 0; m < missCount; m++) {
+            final int d = misses[m];
+            final int signId = signOf(labels[m]);
+            assertEquals(detections.getDetectedClass(d), signId);
+            final int sign = voter.vote(detections.getTrackId(d), signId, scores[m]);
+            detections.setSignId(d, sign);
+            if (sign == signId) {
+                detections.setVoteShare(d, voter.getConfidence(detections.getTrackId(d)));
+                cache.put(detections.getTrackId(d), labels[m], scores[m], sign,
+                        detections.getArea(d), now);
+                committed++;
+            }
+        }
+    }
+
+    private static int signOf(String label) {
+        for (int i = 0; i < LABELS.length; i++) {
+            if (LABELS[i].equals(label)) return i;
+        }
+        return -1;
+    }
+
+    /** Classifiers naming the sign from the red channel of the crop's center pixel. */
+    private static List<SignClassifier.CropClassifier> standIns(int count) {
+        final Category[] categories = new Category[LABELS.length];
+        for (int i = 0; i < LABELS.length; i++) {
+            categories[i] = new Category(LABELS[i], 0.9f);
+        }
+        final List<SignClassifier.CropClassifier> classifiers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            classifiers.add(new SignClassifier.CropClassifier() {
+                @Override
+                public Category classify(TensorImage image) {
+                    final int center = (CROP_SIZE / 2 * CROP_SIZE + CROP_SIZE / 2) * 3;
+                    return categories[image.getBuffer().get(center)];
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+        return classifiers;
+    }
+
+    /** Each sign is seen by two neighbouring anchors, the rest of the anchors see nothing. */
+    private void writeOutput(int frame) {
+        final int stride = (NUM_CLASS + 5) * 4;
+        for (int i = 0; i < NUM_BOXES; i++) {
+            output.putFloat(i * stride + 16, 0f);
+        }
+        for (int sign = 0; sign < SIGNS; sign++) {
+            // Drifting and growing, as signs do while the car approaches, and starting over every
+            // 200 frames, so tracks are born and die during the warm-up as well.
+            final float x = 0.2f + 0.3f * sign + 0.0005f * (frame % 200);
+            final float size = 0.08f + 0.0001f * (frame % 200);
+            for (int anchor = 0; anchor < 2; anchor++) {
+                final int base = (sign * 10 + anchor) * stride;
+                output.putFloat(base, x + anchor * 0.001f);
+                output.putFloat(base + 4, 0.5f);
+                output.putFloat(base + 8, size);
+                output.putFloat(base + 12, size);
+                output.putFloat(base + 16, 0.95f - anchor * 0.05f);
+                for (int c = 0; c < NUM_CLASS; c++) {
+                    output.putFloat(base + 20 + c * 4, c == sign ? 0.9f : 0.05f);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes two different images into the inputs of two interpreters from two threads at once, as
+ * concurrent {@link YoloV5Classifier#recognizeImage} calls do, and checks that neither input
+ * picks up rows of the other.
+ */
+public class ImageInputTest {
+    private static final int INPUT_SIZE = 64;
+    private static final int ROUNDS = 500;
+
+    @Test
+    public void quantizedInputsOfConcurrentEnginesStaySeparate() throws Exception {
+        runConcurrently(true);
+    }
+
+    @Test
+    public void floatInputsOfConcurrentEnginesStaySeparate() throws Exception {
+        runConcurrently(false);
+    }
+
+    private void runConcurrently(boolean isQuantized) throws Exception {
+        final int[] first = randomPixels(1);
+        final int[] second = randomPixels(2);
+        final byte[] firstExpected = expected(first, isQuantized);
+        final byte[] secondExpected = expected(second, isQuantized);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final Future<Integer> a = executor.submit(
+                    engine(first, firstExpected, isQuantized, start));
+            final Future<Integer> b = executor.submit(
+                    engine(second, secondExpected, isQuantized, start));
+            start.countDown();
+            assertEquals("Mixed up inputs", 0, (int) a.get());
+            assertEquals("Mixed up inputs", 0, (int) b.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Writes the image ROUNDS times and counts the inputs that differ from the expected bytes. */
+    private static Callable<Integer> engine(final int[] image, final byte[] expected,
+                                            final boolean isQuantized, final CountDownLatch start) {
+        return () -> {
+            final YoloV5Classifier.ImageInput input = newInput(isQuantized);
+            final byte[] actual = new byte[expected.length];
+            start.await();
+            int mismatches = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                System.arraycopy(image, 0, input.pixels, 0, image.length);
+                input.write().get(actual);
+                if (!Arrays.equals(expected, actual)) {
+                    mismatches++;
+                }
+            }
+            return mismatches;
+        };
+    }
+
+    private static byte[] expected(int[] image, boolean isQuantized) {
+        final YoloV5Classifier.ImageInput input = newInput(isQuantized);
+        System.arraycopy(image, 0, input.pixels, 0, image.length);
+        final ByteBuffer buffer = input.write();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static YoloV5Classifier.ImageInput newInput(boolean isQuantized) {
+        return new YoloV5Classifier.ImageInput(INPUT_SIZE, isQuantized, 0.003921569f, 0);
+    }
+
+    private static int[] randomPixels(long seed) {
+        final Random random = new Random(seed);
+        final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+}
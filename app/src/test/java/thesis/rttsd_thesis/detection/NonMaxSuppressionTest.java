@@ -0,0 +1,210 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the greedy and the soft non maximum suppression on small sets of candidates, and compares
+ * the greedy one with the per class priority queue suppression the detector used before.
+ */
+public class NonMaxSuppressionTest {
+    private static final float IOU_THRESHOLD = 0.5f;
+
+    @Test
+    public void greedyMatchesThePerClassPriorityQueue() {
+        final Random random = new Random(11);
+        for (int round = 0; round < 50; round++) {
+            final int count = 1 + random.nextInt(60);
+            final float[] boxes = new float[count * 4];
+            final float[] scores = new float[count];
+            final int[] classes = new int[count];
+            for (int i = 0; i < count; i++) {
+                // A few clusters, so boxes overlap within and across classes.
+                final float x = 100 * random.nextInt(3) + 20 * random.nextFloat();
+                final float y = 100 * random.nextInt(2) + 20 * random.nextFloat();
+                final float size = 30 + 30 * random.nextFloat();
+                boxes[i * 4] = x;
+                boxes[i * 4 + 1] = y;
+                boxes[i * 4 + 2] = x + size;
+                boxes[i * 4 + 3] = y + size;
+                scores[i] = random.nextFloat();
+                classes[i] = random.nextInt(3);
+            }
+
+            final int[] keep = new int[count];
+            final int kept = new GreedyNonMaxSuppression(IOU_THRESHOLD, count, false)
+                    .apply(boxes, scores, classes, count, keep);
+            final int[] actual = Arrays.copyOf(keep, kept);
+            final int[] expected = perClassPriorityQueue(boxes, scores, classes, count, 3);
+            Arrays.sort(actual);
+            Arrays.sort(expected);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void greedySuppressesOverlappingBoxesOfTheSameClass() {
+        final float[] boxes = {0, 0, 10, 10, 1, 0, 11, 10, 50, 50, 60, 60};
+        final float[] scores = {0.7f, 0.9f, 0.8f};
+        final int[] classes = {0, 0, 0};
+        final int[] keep = new int[3];
+
+        final int kept = new GreedyNonMaxSuppression(IOU_THRESHOLD, 10, false)
+                .apply(boxes, scores, classes, 3, keep);
+        assertEquals(2, kept);
+        // By descending score.
+        assertEquals(1, keep[0]);
+        assertEquals(2, keep[1]);
+    }
+
+    @Test
+    public void greedyKeepsOverlappingBoxesOfDifferentClasses() {
+        final float[] boxes = {0, 0, 10, 10, 0, 0, 10, 10};
+        final float[] scores = {0.9f, 0.8f};
+        final int[] keep = new int[2];
+
+        assertEquals(2, new GreedyNonMaxSuppression(IOU_THRESHOLD, 10, false)
+                .apply(boxes, scores, new int[] {0, 1}, 2, keep));
+        assertEquals(1, new GreedyNonMaxSuppression(IOU_THRESHOLD, 10, true)
+                .apply(boxes, scores, new int[] {0, 1}, 2, keep));
+    }
+
+    @Test
+    public void classOffsetSeparatesBoxesAtTheFarEdges() {
+        // Without a large enough offset the class 0 box at the largest coordinate would overlap
+        // the shifted class 1 box at the origin.
+        final float[] boxes = {310, 310, 320, 320, 0, 0, 10, 10, 0, 0, 10, 10};
+        final float[] scores = {0.9f, 0.8f, 0.7f};
+        final int[] keep = new int[3];
+
+        final int kept = new GreedyNonMaxSuppression(IOU_THRESHOLD, 10, false)
+                .apply(boxes, scores, new int[] {0, 1, 1}, 3, keep);
+        assertEquals(2, kept);
+        assertEquals(0, keep[0]);
+        assertEquals(1, keep[1]);
+        // The input boxes are not shifted.
+        assertEquals(0f, boxes[4], 0f);
+    }
+
+    @Test
+    public void greedyStopsAtMaxDetections() {
+        final float[] boxes = new float[10 * 4];
+        final float[] scores = new float[10];
+        for (int i = 0; i < 10; i++) {
+            boxes[i * 4] = i * 20;
+            boxes[i * 4 + 2] = i * 20 + 10;
+            boxes[i * 4 + 3] = 10;
+            scores[i] = i / 10f;
+        }
+        final int[] keep = new int[10];
+
+        assertEquals(3, new GreedyNonMaxSuppression(IOU_THRESHOLD, 3, false)
+                .apply(boxes, scores, new int[10], 10, keep));
+        assertEquals(9, keep[0]);
+        assertEquals(8, keep[1]);
+        assertEquals(7, keep[2]);
+        assertEquals(0, new GreedyNonMaxSuppression(IOU_THRESHOLD, 3, false)
+                .apply(boxes, scores, new int[10], 0, keep));
+    }
+
+    @Test
+    public void softDecaysOverlappingScoresOfTheSameClass() {
+        // Boxes 0 and 1 overlap by exactly one third, box 2 is of another class.
+        final float[] boxes = {0, 0, 10, 10, 5, 0, 15, 10, 0, 0, 10, 10};
+        final float[] scores = {0.9f, 0.8f, 0.7f};
+        final int[] keep = new int[3];
+        final float sigma = 0.5f;
+
+        final int kept = new SoftNonMaxSuppression(sigma, 0.1f, 10)
+                .apply(boxes, scores, new int[] {0, 0, 1}, 3, keep);
+        assertEquals(3, kept);
+        assertEquals(0.9f, scores[0], 0f);
+        assertEquals(0.8f * (float) Math.exp(-(1 / 9f) / sigma), scores[1], 1e-6f);
+        assertEquals(0.7f, scores[2], 0f);
+        assertEquals(0, keep[0]);
+        assertEquals(2, keep[1]);
+        assertEquals(1, keep[2]);
+    }
+
+    @Test
+    public void softDropsCandidatesDecayedBelowTheThreshold() {
+        final float[] boxes = {0, 0, 10, 10, 0, 0, 10, 10, 50, 50, 60, 60};
+        final float[] scores = {0.9f, 0.8f, 0.2f};
+        final int[] keep = new int[3];
+
+        // Identical boxes decay by exp(-2), below the threshold.
+        int kept = new SoftNonMaxSuppression(0.5f, 0.15f, 10)
+                .apply(boxes, scores, new int[3], 3, keep);
+        assertEquals(2, kept);
+        assertEquals(0, keep[0]);
+        assertEquals(2, keep[1]);
+        assertTrue(scores[1] < 0.15f);
+
+        scores[0] = 0.9f;
+        scores[1] = 0.8f;
+        scores[2] = 0.2f;
+        kept = new SoftNonMaxSuppression(0.5f, 0.01f, 1).apply(boxes, scores, new int[3], 3, keep);
+        assertEquals(1, kept);
+    }
+
+    // The suppression of YoloV5Classifier.nms before the single sort: one priority queue per class,
+    // keeping the best and requeueing the ones that overlap it by less than the threshold.
+    private static int[] perClassPriorityQueue(float[] boxes, final float[] scores, int[] classes,
+                                               int count, int numClass) {
+        final List<Integer> kept = new ArrayList<>();
+        for (int k = 0; k < numClass; k++) {
+            PriorityQueue<Integer> pq = new PriorityQueue<>(
+                    200, (lhs, rhs) -> Float.compare(scores[rhs], scores[lhs]));
+            for (int i = 0; i < count; i++) {
+                if (classes[i] == k) {
+                    pq.add(i);
+                }
+            }
+            while (pq.size() > 0) {
+                final Integer[] detections = pq.toArray(new Integer[0]);
+                final int max = detections[0];
+                kept.add(max);
+                pq.clear();
+                for (int j = 1; j < detections.length; j++) {
+                    if (boxIou(boxes, max, detections[j]) < IOU_THRESHOLD) {
+                        pq.add(detections[j]);
+                    }
+                }
+            }
+        }
+        final int[] result = new int[kept.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = kept.get(i);
+        }
+        return result;
+    }
+
+    // The old intersection over union, by box centers and sizes.
+    private static float boxIou(float[] boxes, int i, int j) {
+        final int a = i * 4;
+        final int b = j * 4;
+        final float w = overlap((boxes[a] + boxes[a + 2]) / 2, boxes[a + 2] - boxes[a],
+                (boxes[b] + boxes[b + 2]) / 2, boxes[b + 2] - boxes[b]);
+        final float h = overlap((boxes[a + 1] + boxes[a + 3]) / 2, boxes[a + 3] - boxes[a + 1],
+                (boxes[b + 1] + boxes[b + 3]) / 2, boxes[b + 3] - boxes[b + 1]);
+        final float intersection = w < 0 || h < 0 ? 0 : w * h;
+        final float union = (boxes[a + 2] - boxes[a]) * (boxes[a + 3] - boxes[a + 1])
+                + (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1]) - intersection;
+        return intersection / union;
+    }
+
+    private static float overlap(float x1, float w1, float x2, float w2) {
+        final float left = Math.max(x1 - w1 / 2, x2 - w2 / 2);
+        final float right = Math.min(x1 + w1 / 2, x2 + w2 / 2);
+        return right - left;
+    }
+}
@@ -0,0 +1,51 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads scores from float, UINT8 and INT8 batch outputs.
+ */
+public class SignClassifierTest {
+    @Test
+    public void floatScoresAreReadAsIs() {
+        ByteBuffer output = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        output.putFloat(0.25f).putFloat(0.75f);
+        assertEquals(0.25f, SignClassifier.score(output, 0, DataType.FLOAT32, 1f, 0), 0f);
+        assertEquals(0.75f, SignClassifier.score(output, 1, DataType.FLOAT32, 1f, 0), 0f);
+    }
+
+    @Test
+    public void uint8ScoresAreUnsigned() {
+        ByteBuffer output = ByteBuffer.wrap(new byte[] {0, (byte) 128, (byte) 255});
+        float scale = 1 / 256f;
+        assertEquals(0f, SignClassifier.score(output, 0, DataType.UINT8, scale, 0), 0f);
+        assertEquals(0.5f, SignClassifier.score(output, 1, DataType.UINT8, scale, 0), 0f);
+        assertEquals(255 / 256f, SignClassifier.score(output, 2, DataType.UINT8, scale, 0), 0f);
+    }
+
+    @Test
+    public void int8ScoresAreSignedAroundTheirZeroPoint() {
+        // The usual softmax quantization of an INT8 output, -128 is 0 and 127 is almost 1.
+        ByteBuffer output = ByteBuffer.wrap(new byte[] {-128, 0, 127});
+        float scale = 1 / 256f;
+        assertEquals(0f, SignClassifier.score(output, 0, DataType.INT8, scale, -128), 0f);
+        assertEquals(0.5f, SignClassifier.score(output, 1, DataType.INT8, scale, -128), 0f);
+        assertEquals(255 / 256f, SignClassifier.score(output, 2, DataType.INT8, scale, -128), 0f);
+    }
+
+    @Test
+    public void otherOutputTypesAreRejected() {
+        try {
+            SignClassifier.score(ByteBuffer.allocate(4), 0, DataType.INT32, 1f, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static thesis.rttsd_thesis.detection.StageSelector.SINGLE_STAGE;
+import static thesis.rttsd_thesis.detection.StageSelector.TWO_STAGE;
+
+/**
+ * Adds frames and checks of both modes and checks the latency figures, the agreement of the
+ * single stage and the report.
+ */
+public class StageModeReportTest {
+    private final StageModeReport report = new StageModeReport();
+
+    @Test
+    public void latencyIsKeptPerMode() {
+        for (int ms = 1; ms <= 10; ms++) {
+            report.addFrame(TWO_STAGE, ms * 10, 2000000, 2, 2);
+        }
+        report.addFrame(SINGLE_STAGE, 40, 500000, 4, 1);
+
+        assertEquals(10, report.getFrameCount(TWO_STAGE));
+        assertEquals(55f, report.getMeanLatencyMs(TWO_STAGE), 1e-4f);
+        assertEquals(90, report.getLatencyPercentileMs(TWO_STAGE, 0.9f));
+        assertEquals(100, report.getLatencyPercentileMs(TWO_STAGE, 1f));
+        assertEquals(2f, report.getMeanClassifyMs(TWO_STAGE), 1e-4f);
+        assertEquals(1f, report.getSecondStageShare(TWO_STAGE), 0f);
+
+        assertEquals(1, report.getFrameCount(SINGLE_STAGE));
+        assertEquals(40, report.getLatencyPercentileMs(SINGLE_STAGE, 0.9f));
+        assertEquals(0.25f, report.getSecondStageShare(SINGLE_STAGE), 0f);
+    }
+
+    @Test
+    public void slowFramesShareTheLastBucket() {
+        report.addFrame(TWO_STAGE, 5000, 0, 0, 0);
+        assertEquals(StageModeReport.MAX_LATENCY_MS, report.getLatencyPercentileMs(TWO_STAGE, 0.9f));
+        assertEquals(5000f, report.getMeanLatencyMs(TWO_STAGE), 0f);
+    }
+
+    @Test
+    public void onlyConfidentDisagreementsCostTheSingleStage() {
+        // Two boxes the head was not sure about, they go to the second stage in both modes.
+        report.addCheck(SignTable.UNKNOWN, 13);
+        report.addCheck(SignTable.UNKNOWN, SignTable.UNKNOWN);
+        // Three confident boxes, one of them named the wrong sign.
+        report.addCheck(13, 13);
+        report.addCheck(27, 27);
+        report.addCheck(13, 14);
+
+        assertEquals(0.6f, report.getConfidentShare(), 1e-6f);
+        assertEquals(2 / 3f, report.getHeadAgreement(), 1e-6f);
+        assertEquals(0.8f, report.getSingleStageAgreement(), 1e-6f);
+    }
+
+    @Test
+    public void reportListsBothModes() {
+        report.addFrame(TWO_STAGE, 80, 12000000, 1, 1);
+        report.addFrame(SINGLE_STAGE, 60, 1000000, 1, 0);
+        String text = report.report();
+        assertTrue(text, text.contains("two stage"));
+        assertTrue(text, text.contains("single stage"));
+        assertTrue(text, text.contains("No boxes were checked"));
+
+        report.addCheck(13, 13);
+        text = report.report();
+        assertTrue(text, text.contains("confident on 100% of 1 boxes"));
+    }
+}
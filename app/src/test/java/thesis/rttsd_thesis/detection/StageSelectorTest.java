@@ -0,0 +1,51 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which boxes keep the detector's class, the per frame modes and the fallback to two stage
+ * for labels that name no sign.
+ */
+public class StageSelectorTest {
+    private static final float MIN_SCORE = 0.8f;
+    // Class 1 is not in the sign table.
+    private static final int[] CLASS_TO_SIGN = {13, SignTable.UNKNOWN, 27};
+
+    @Test
+    public void confidentBoxesOfKnownSignsSkipTheSecondStage() {
+        final StageSelector selector = new StageSelector(StageSelector.SINGLE_STAGE, CLASS_TO_SIGN, MIN_SCORE);
+        assertTrue(selector.isSingleStageAvailable());
+        assertEquals(13, selector.signOf(0, 0.9f));
+        assertEquals(27, selector.signOf(2, MIN_SCORE));
+        assertEquals(SignTable.UNKNOWN, selector.signOf(0, 0.79f));
+        assertEquals(SignTable.UNKNOWN, selector.signOf(1, 0.99f));
+        assertEquals(SignTable.UNKNOWN, selector.signOf(3, 0.99f));
+    }
+
+    @Test
+    public void compareAlternatesTheModes() {
+        final StageSelector selector = new StageSelector(StageSelector.COMPARE, CLASS_TO_SIGN, MIN_SCORE);
+        assertEquals(StageSelector.TWO_STAGE, selector.modeOf(0));
+        assertEquals(StageSelector.SINGLE_STAGE, selector.modeOf(1));
+        assertEquals(StageSelector.TWO_STAGE, selector.modeOf(2));
+
+        final StageSelector single = new StageSelector(StageSelector.SINGLE_STAGE, CLASS_TO_SIGN, MIN_SCORE);
+        assertEquals(StageSelector.SINGLE_STAGE, single.modeOf(0));
+        assertEquals(StageSelector.SINGLE_STAGE, single.modeOf(1));
+    }
+
+    @Test
+    public void labelsWithoutSignsFallBackToTwoStage() {
+        // The single "sign" class of the shipped detector.
+        final StageSelector selector =
+                new StageSelector(StageSelector.COMPARE, new int[] {SignTable.UNKNOWN}, MIN_SCORE);
+        assertFalse(selector.isSingleStageAvailable());
+        assertEquals(StageSelector.TWO_STAGE, selector.getMode());
+        assertEquals(StageSelector.TWO_STAGE, selector.modeOf(1));
+        assertEquals(SignTable.UNKNOWN, selector.signOf(0, 1f));
+    }
+}
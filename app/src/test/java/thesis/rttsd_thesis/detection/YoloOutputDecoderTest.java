@@ -0,0 +1,198 @@
+package thesis.rttsd_thesis.detection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes small uint8 and float outputs and compares the candidates with the decode loop the
+ * detector used before, which dequantized the whole tensor first, also for anchors right at the
+ * threshold.
+ */
+public class YoloOutputDecoderTest {
+    private static final int NUM_CLASS = 3;
+    private static final int STRIDE = NUM_CLASS + 5;
+    private static final int INPUT_SIZE = 320;
+    private static final float MAX = INPUT_SIZE - 1;
+    private static final float THRESHOLD = 0.25f;
+
+    @Test
+    public void quantizedOutputMatchesTheBaseline() {
+        final Random random = new Random(3);
+        final byte[] raw = new byte[200 * STRIDE];
+        random.nextBytes(raw);
+        for (int zeroPoint : new int[] {0, 7}) {
+            for (float threshold : new float[] {0.1f, THRESHOLD, 0.6f}) {
+                assertQuantizedMatches(raw, 0.00390625f, zeroPoint, threshold, NUM_CLASS);
+                // Fewer labels than classes in the output.
+                assertQuantizedMatches(raw, 0.00390625f, zeroPoint, threshold, 2);
+            }
+        }
+        // A scale that can represent scores above 1.
+        assertQuantizedMatches(raw, 0.0078125f, 3, THRESHOLD, NUM_CLASS);
+    }
+
+    @Test
+    public void quantizedAnchorsAtTheThresholdMatchTheBaseline() {
+        // With a scale of 1/256 and no zero point the products are exact: 128 * 128 / 256^2 is
+        // exactly the threshold and must be rejected, one step more on either factor passes.
+        final float scale = 0.00390625f;
+        final byte[] raw = new byte[6 * STRIDE];
+        anchor(raw, 0, 128, 128, 0);
+        anchor(raw, 1, 129, 128, 0);
+        anchor(raw, 2, 128, 129, 0);
+        // The largest objectness the early rejection skips, with the largest class score.
+        anchor(raw, 3, 64, 255, 0);
+        anchor(raw, 4, 65, 255, 0);
+        // No class above the zero point.
+        anchor(raw, 5, 255, 0, 0);
+
+        final YoloOutputDecoder decoder = quantized(raw.length / STRIDE, scale, 0);
+        assertEquals(3, decoder.decode(ByteBuffer.wrap(raw), THRESHOLD, NUM_CLASS, MAX, MAX));
+        assertQuantizedMatches(raw, scale, 0, THRESHOLD, NUM_CLASS);
+    }
+
+    @Test
+    public void argMaxOnRawBytesKeepsTheFirstOfEqualScores() {
+        final byte[] raw = new byte[2 * STRIDE];
+        anchor(raw, 0, 255, 200, 1);
+        raw[5 + 2] = (byte) 200;
+        anchor(raw, 1, 255, 200, 2);
+        raw[STRIDE + 5] = (byte) 100;
+
+        final YoloOutputDecoder decoder = quantized(2, 0.00390625f, 0);
+        assertEquals(2, decoder.decode(ByteBuffer.wrap(raw), THRESHOLD, NUM_CLASS, MAX, MAX));
+        assertEquals(1, decoder.classes[0]);
+        assertEquals(2, decoder.classes[1]);
+        assertQuantizedMatches(raw, 0.00390625f, 0, THRESHOLD, NUM_CLASS);
+    }
+
+    @Test
+    public void floatOutputMatchesTheBaseline() {
+        final Random random = new Random(5);
+        final float[] values = new float[200 * STRIDE];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextFloat();
+        }
+        // Anchors right at the threshold, on the objectness alone and on the product.
+        values[4] = THRESHOLD;
+        values[5] = 1f;
+        values[STRIDE + 4] = 0.5f;
+        values[STRIDE + 5] = 0.5f;
+        values[STRIDE + 6] = 0.25f;
+        values[STRIDE + 7] = 0.5f;
+        for (float threshold : new float[] {0.1f, THRESHOLD, 0.6f}) {
+            assertFloatMatches(values, threshold, NUM_CLASS);
+            assertFloatMatches(values, threshold, 1);
+        }
+    }
+
+    @Test
+    public void decodingDoesNotMoveTheOutputPosition() {
+        final byte[] raw = new byte[STRIDE];
+        anchor(raw, 0, 255, 255, 0);
+        final ByteBuffer output = ByteBuffer.wrap(raw);
+        output.position(3);
+        quantized(1, 0.00390625f, 0).decode(output, THRESHOLD, NUM_CLASS, MAX, MAX);
+        assertEquals(3, output.position());
+    }
+
+    private static void anchor(byte[] raw, int anchor, int obj, int classScore, int detectedClass) {
+        final int base = anchor * STRIDE;
+        raw[base] = (byte) 128;
+        raw[base + 1] = (byte) 128;
+        raw[base + 2] = (byte) 64;
+        raw[base + 3] = (byte) 32;
+        raw[base + 4] = (byte) obj;
+        raw[base + 5 + detectedClass] = (byte) classScore;
+    }
+
+    private static YoloOutputDecoder quantized(int numBoxes, float scale, int zeroPoint) {
+        return new YoloOutputDecoder(numBoxes, NUM_CLASS, INPUT_SIZE, true, scale, zeroPoint);
+    }
+
+    private static void assertQuantizedMatches(byte[] raw, float scale, int zeroPoint,
+                                               float threshold, int labelCount) {
+        final int numBoxes = raw.length / STRIDE;
+        final float[][] out = new float[numBoxes][STRIDE];
+        for (int i = 0; i < numBoxes; i++) {
+            for (int j = 0; j < STRIDE; j++) {
+                out[i][j] = scale * ((raw[i * STRIDE + j] & 0xFF) - zeroPoint);
+            }
+        }
+        final YoloOutputDecoder decoder = quantized(numBoxes, scale, zeroPoint);
+        decoder.decode(ByteBuffer.wrap(raw), threshold, labelCount, MAX, MAX);
+        assertMatches(baseline(out, threshold, labelCount), decoder);
+    }
+
+    private static void assertFloatMatches(float[] values, float threshold, int labelCount) {
+        final int numBoxes = values.length / STRIDE;
+        final ByteBuffer output = ByteBuffer.allocateDirect(values.length * 4);
+        output.order(ByteOrder.nativeOrder());
+        final float[][] out = new float[numBoxes][STRIDE];
+        for (int i = 0; i < numBoxes; i++) {
+            for (int j = 0; j < STRIDE; j++) {
+                out[i][j] = values[i * STRIDE + j];
+                output.putFloat(values[i * STRIDE + j]);
+            }
+        }
+        final YoloOutputDecoder decoder =
+                new YoloOutputDecoder(numBoxes, NUM_CLASS, INPUT_SIZE, false, 1f, 0);
+        decoder.decode(output, threshold, labelCount, MAX, MAX);
+        assertMatches(baseline(out, threshold, labelCount), decoder);
+    }
+
+    private static void assertMatches(List<float[]> expected, YoloOutputDecoder decoder) {
+        assertEquals(expected.size(), decoder.getCount());
+        for (int i = 0; i < expected.size(); i++) {
+            final float[] candidate = expected.get(i);
+            for (int k = 0; k < 4; k++) {
+                assertEquals(candidate[k], decoder.boxes[i * 4 + k], 0f);
+            }
+            assertEquals(candidate[4], decoder.scores[i], 1e-6f);
+            assertEquals((int) candidate[5], decoder.classes[i]);
+        }
+    }
+
+    // The decode loop of YoloV5Classifier.recognizeImage before the streaming decoder, on the
+    // dequantized output: left, top, right, bottom, confidence and class of each candidate.
+    private static List<float[]> baseline(float[][] out, float threshold, int labelCount) {
+        final List<float[]> candidates = new ArrayList<>();
+        for (float[] anchor : out) {
+            final float[] values = anchor.clone();
+            for (int j = 0; j < 4; ++j) {
+                values[j] *= INPUT_SIZE;
+            }
+            final float confidence = values[4];
+            int detectedClass = -1;
+            float maxClass = 0;
+            for (int c = 0; c < labelCount; ++c) {
+                if (values[5 + c] > maxClass) {
+                    detectedClass = c;
+                    maxClass = values[5 + c];
+                }
+            }
+            final float confidenceInClass = maxClass * confidence;
+            if (confidenceInClass > threshold) {
+                final float xPos = values[0];
+                final float yPos = values[1];
+                final float w = values[2];
+                final float h = values[3];
+                candidates.add(new float[] {
+                        Math.max(0, xPos - w / 2),
+                        Math.max(0, yPos - h / 2),
+                        Math.min(MAX, xPos + w / 2),
+                        Math.min(MAX, yPos + h / 2),
+                        confidenceInClass,
+                        detectedClass});
+            }
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,83 @@
+package thesis.rttsd_thesis.env;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Resamples boxes of small synthetic images and checks copies, interpolation, edge clamping and
+ * the destination offset.
+ */
+public class CropResamplerTest {
+    private static final int SIZE = 8;
+
+    @Test
+    public void sameSizeBoxIsCopied() {
+        final int[] src = gradient();
+        final int[] dst = new int[SIZE * SIZE];
+        new CropResampler(SIZE, SIZE).resample(src, SIZE, SIZE, 0, 0, SIZE, SIZE, dst, 0);
+        for (int i = 0; i < src.length; i++) {
+            assertEquals(src[i], dst[i]);
+        }
+    }
+
+    @Test
+    public void upscaledBoxIsInterpolated() {
+        // Two pixels, black and white, stretched over four.
+        final int[] src = {0xff000000, 0xffffffff};
+        final int[] dst = new int[4];
+        new CropResampler(4, 1).resample(src, 2, 1, 0, 0, 2, 1, dst, 0);
+        assertEquals(0xff000000, dst[0]);
+        assertEquals(0xff3f3f3f, dst[1]);
+        assertEquals(0xffbfbfbf, dst[2]);
+        assertEquals(0xffffffff, dst[3]);
+    }
+
+    @Test
+    public void channelsAreBlendedSeparately() {
+        final int[] src = {0xffff0000, 0xff0000ff, 0xff00ff00, 0xff000000};
+        final int[] dst = new int[1];
+        // The center of the 2x2 image is a quarter of each pixel.
+        new CropResampler(1, 1).resample(src, 2, 2, 0.5f, 0.5f, 1.5f, 1.5f, dst, 0);
+        assertEquals(0xff3f3f3f, dst[0]);
+    }
+
+    @Test
+    public void boxesOutsideTheImageAreClamped() {
+        final int[] src = gradient();
+        final int[] dst = new int[4];
+        new CropResampler(2, 2).resample(src, SIZE, SIZE, -10, -10, -2, -2, dst, 0);
+        for (int pixel : dst) {
+            assertEquals(src[0], pixel);
+        }
+        new CropResampler(2, 2).resample(src, SIZE, SIZE, SIZE + 2, SIZE + 2, SIZE + 10, SIZE + 10, dst, 0);
+        for (int pixel : dst) {
+            assertEquals(src[SIZE * SIZE - 1], pixel);
+        }
+    }
+
+    @Test
+    public void cropsAreWrittenAtTheOffset() {
+        final int[] src = gradient();
+        final int[] dst = new int[3 * 4];
+        final CropResampler resampler = new CropResampler(2, 2);
+        resampler.resample(src, SIZE, SIZE, 0, 0, 2, 2, dst, 4);
+        assertEquals(0, dst[3]);
+        assertEquals(src[0], dst[4]);
+        assertEquals(src[1], dst[5]);
+        assertEquals(src[SIZE], dst[6]);
+        assertEquals(src[SIZE + 1], dst[7]);
+        assertEquals(0, dst[8]);
+    }
+
+    /** Red grows to the right and green downwards. */
+    private static int[] gradient() {
+        final int[] pixels = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                pixels[y * SIZE + x] = 0xff000000 | (x * 32) << 16 | (y * 32) << 8 | 0x80;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,135 @@
+package thesis.rttsd_thesis.env;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the lookup table input normalization with the per channel arithmetic it replaced, for
+ * whole images, other quantization parameters and rows written at an offset.
+ */
+public class InputNormalizerTest {
+    private static final int INPUT_SIZE = 640;
+    private static final float INPUT_SCALE = 0.003921569f;
+    private static final int INPUT_ZERO_POINT = 0;
+
+    @Test
+    public void quantizedOutputMatchesPerPixelConversion() {
+        int[] pixels = randomPixels();
+        ByteBuffer expected = allocate(1);
+        ByteBuffer actual = allocate(1);
+
+        perPixel(pixels, expected, true);
+        new InputNormalizer(true, INPUT_SCALE, INPUT_ZERO_POINT).write(pixels, INPUT_SIZE, INPUT_SIZE, actual);
+
+        assertEquals(expected.rewind(), actual.rewind());
+    }
+
+    @Test
+    public void floatOutputMatchesPerPixelConversion() {
+        int[] pixels = randomPixels();
+        ByteBuffer expected = allocate(4);
+        ByteBuffer actual = allocate(4);
+
+        perPixel(pixels, expected, false);
+        new InputNormalizer(false, 0, 0).write(pixels, INPUT_SIZE, INPUT_SIZE, actual);
+
+        assertEquals(expected.rewind(), actual.rewind());
+    }
+
+    @Test
+    public void quantizedOutputMatchesWithAZeroPoint() {
+        int[] pixels = randomPixels();
+        ByteBuffer expected = allocate(1);
+        ByteBuffer actual = allocate(1);
+
+        perPixel(pixels, expected, true, 0.0078125f, 128);
+        new InputNormalizer(true, 0.0078125f, 128).write(pixels, INPUT_SIZE, INPUT_SIZE, actual);
+
+        assertEquals(expected.rewind(), actual.rewind());
+    }
+
+    @Test
+    public void rowsWrittenOneByOneMatchTheWholeImage() {
+        int[] pixels = randomPixels();
+        for (boolean quantized : new boolean[] {true, false}) {
+            ByteBuffer expected = allocate(quantized ? 1 : 4);
+            ByteBuffer actual = allocate(quantized ? 1 : 4);
+            InputNormalizer normalizer = new InputNormalizer(quantized, INPUT_SCALE, INPUT_ZERO_POINT);
+
+            perPixel(pixels, expected, quantized);
+            // Bottom half first, the rows go to the buffer position.
+            for (int half : new int[] {1, 0}) {
+                actual.position(half * INPUT_SIZE / 2 * INPUT_SIZE * 3 * (quantized ? 1 : 4));
+                for (int y = half * INPUT_SIZE / 2; y < (half + 1) * INPUT_SIZE / 2; y++) {
+                    normalizer.writeRow(pixels, y * INPUT_SIZE, INPUT_SIZE, actual);
+                }
+            }
+
+            assertEquals(expected.rewind(), actual.rewind());
+        }
+    }
+
+    @Test
+    public void floatBuffersTakingTurnsKeepTheirViews() {
+        int[] pixels = randomPixels();
+        ByteBuffer expected = allocate(4);
+        perPixel(pixels, expected, false);
+        InputNormalizer normalizer = new InputNormalizer(false, INPUT_SCALE, INPUT_ZERO_POINT);
+        ByteBuffer[] inputs = {allocate(4), allocate(4), allocate(4)};
+
+        for (int frame = 0; frame < 6; frame++) {
+            ByteBuffer input = inputs[frame % inputs.length];
+            input.rewind();
+            normalizer.write(pixels, INPUT_SIZE, INPUT_SIZE, input);
+            assertEquals(expected.rewind(), input.rewind());
+        }
+
+        assertEquals(inputs.length, normalizer.getFloatViewCount());
+    }
+
+    private static int[] randomPixels() {
+        int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+
+    private static ByteBuffer allocate(int bytesPerChannel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * bytesPerChannel);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    private static void perPixel(int[] intValues, ByteBuffer imgData, boolean isModelQuantized) {
+        perPixel(intValues, imgData, isModelQuantized, INPUT_SCALE, INPUT_ZERO_POINT);
+    }
+
+    // The conversion the detector did per pixel before the lookup tables.
+    private static void perPixel(int[] intValues, ByteBuffer imgData, boolean isModelQuantized,
+                                 float inputScale, int inputZeroPoint) {
+        imgData.rewind();
+        for (int i = 0; i < INPUT_SIZE; ++i) {
+            for (int j = 0; j < INPUT_SIZE; ++j) {
+                int pixelValue = intValues[i * INPUT_SIZE + j];
+                float IMAGE_MEAN = 0;
+                float IMAGE_STD = 255.0f;
+                if (isModelQuantized) {
+                    imgData.put((byte) ((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD / inputScale + inputZeroPoint));
+                    imgData.put((byte) ((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD / inputScale + inputZeroPoint));
+                    imgData.put((byte) (((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD / inputScale + inputZeroPoint));
+                } else {
+                    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+                    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+                    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+                }
+            }
+        }
+    }
+}
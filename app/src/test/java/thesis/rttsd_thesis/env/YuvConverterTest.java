@@ -0,0 +1,81 @@
+package thesis.rttsd_thesis.env;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Converts random planes with even and odd sizes, padded row strides and every chroma pixel
+ * stride, on one and on several threads, and compares the pixels with the per pixel conversion
+ * of {@link ImageUtils}.
+ */
+public class YuvConverterTest {
+    private final YuvConverter serial = new YuvConverter(1);
+    private final YuvConverter parallel = new YuvConverter(4);
+
+    @Test
+    public void planarChromaMatchesImageUtils() {
+        assertPlanesMatch(64, 48, 64, 32, 1);
+        assertPlanesMatch(63, 47, 70, 40, 1);
+        // Tall enough to be split into stripes.
+        assertPlanesMatch(97, 130, 104, 56, 1);
+    }
+
+    @Test
+    public void interleavedChromaMatchesImageUtils() {
+        assertPlanesMatch(64, 48, 64, 64, 2);
+        assertPlanesMatch(65, 81, 80, 80, 2);
+        assertPlanesMatch(128, 96, 128, 128, 2);
+    }
+
+    @Test
+    public void otherPixelStridesMatchImageUtils() {
+        assertPlanesMatch(31, 21, 40, 48, 3);
+        assertPlanesMatch(30, 70, 32, 64, 4);
+    }
+
+    @Test
+    public void nv21MatchesImageUtils() {
+        assertNv21Matches(64, 48);
+        assertNv21Matches(96, 71);
+        assertNv21Matches(160, 120);
+    }
+
+    private void assertPlanesMatch(int width, int height, int yRowStride, int uvRowStride,
+                                   int uvPixelStride) {
+        final Random random = new Random(width * 31 + height);
+        final byte[] y = new byte[yRowStride * height];
+        final byte[] u = new byte[uvRowStride * ((height + 1) / 2)];
+        final byte[] v = new byte[u.length];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+
+        final int[] expected = new int[width * height];
+        ImageUtils.convertYUV420ToARGB8888(
+                y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, expected);
+        for (YuvConverter converter : new YuvConverter[] {serial, parallel}) {
+            final int[] actual = new int[width * height];
+            converter.convertYUV420ToARGB8888(ByteBuffer.wrap(y), ByteBuffer.wrap(u),
+                    ByteBuffer.wrap(v), width, height, yRowStride, uvRowStride, uvPixelStride,
+                    actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    private void assertNv21Matches(int width, int height) {
+        final byte[] nv21 = new byte[ImageUtils.getYUVByteSize(width, height)];
+        new Random(width * 31 + height).nextBytes(nv21);
+
+        final int[] expected = new int[width * height];
+        ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, expected);
+        for (YuvConverter converter : new YuvConverter[] {serial, parallel}) {
+            final int[] actual = new int[width * height];
+            converter.convertYUV420SPToARGB8888(nv21, width, height, actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+}
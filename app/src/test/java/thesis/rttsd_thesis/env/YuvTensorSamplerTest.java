@@ -0,0 +1,101 @@
+package thesis.rttsd_thesis.env;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Samples random frames into the input and compares the pixels with the full frame conversion of
+ * {@link ImageUtils} at the sampled positions, for planar, interleaved and NV21 chroma.
+ */
+public class YuvTensorSamplerTest {
+    private static final float[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private static final float[] HALF = {2, 0, 0, 0, 2, 0, 0, 0, 1};
+
+    private final InputNormalizer normalizer = new InputNormalizer(true, 0.003921569f, 0);
+
+    @Test
+    public void planesSampledOneToOneMatchTheFullConversion() {
+        assertPlanesMatch(32, 32, 32, IDENTITY, 40, 24, 1);
+        assertPlanesMatch(33, 33, 33, IDENTITY, 36, 36, 2);
+    }
+
+    @Test
+    public void planesSampledAtHalfSizeMatchTheFullConversion() {
+        assertPlanesMatch(64, 64, 32, HALF, 64, 32, 1);
+        assertPlanesMatch(66, 66, 33, HALF, 72, 72, 2);
+    }
+
+    @Test
+    public void pixelsOutsideTheFrameAreBlack() {
+        // A frame shorter than the input, the rows below it stay black.
+        final int[] argb = assertPlanesMatch(40, 30, 40, IDENTITY, 40, 24, 1);
+        for (int i = 30 * 40; i < argb.length; i++) {
+            assertEquals(0xff000000, argb[i]);
+        }
+    }
+
+    @Test
+    public void nv21SampledAtHalfSizeMatchesTheFullConversion() {
+        final int width = 64;
+        final int height = 48;
+        final int dstSize = 32;
+        final byte[] nv21 = new byte[ImageUtils.getYUVByteSize(width, height)];
+        new Random(9).nextBytes(nv21);
+        final int[] frame = new int[width * height];
+        ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, frame);
+
+        final ByteBuffer input = ByteBuffer.allocateDirect(dstSize * dstSize * 3);
+        final int[] argb = new int[dstSize * dstSize];
+        new YuvTensorSampler(width, height, dstSize, HALF, normalizer).sampleNV21(nv21, input, argb);
+        assertArrayEquals(expected(frame, width, height, dstSize, 2), argb);
+        assertInputMatches(argb, input);
+    }
+
+    private int[] assertPlanesMatch(int width, int height, int dstSize, float[] cropToFrame,
+                                    int rowStride, int uvRowStride, int uvPixelStride) {
+        final Random random = new Random(width * 31 + height);
+        final byte[] y = new byte[rowStride * height];
+        final byte[] u = new byte[uvRowStride * ((height + 1) / 2)];
+        final byte[] v = new byte[u.length];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+        final int[] frame = new int[width * height];
+        ImageUtils.convertYUV420ToARGB8888(
+                y, u, v, width, height, rowStride, uvRowStride, uvPixelStride, frame);
+
+        final ByteBuffer input = ByteBuffer.allocateDirect(dstSize * dstSize * 3);
+        final int[] argb = new int[dstSize * dstSize];
+        new YuvTensorSampler(width, height, dstSize, cropToFrame, normalizer).sample(
+                ByteBuffer.wrap(y), ByteBuffer.wrap(u), ByteBuffer.wrap(v),
+                rowStride, uvRowStride, uvPixelStride, input, argb);
+        assertArrayEquals(expected(frame, width, height, dstSize, (int) cropToFrame[0]), argb);
+        assertInputMatches(argb, input);
+        return argb;
+    }
+
+    // The pixel under the center of each input pixel, the input is scaled down by an integer.
+    private static int[] expected(int[] frame, int width, int height, int dstSize, int scale) {
+        final int[] expected = new int[dstSize * dstSize];
+        for (int y = 0; y < dstSize; y++) {
+            for (int x = 0; x < dstSize; x++) {
+                final int sx = (int) ((x + 0.5f) * scale);
+                final int sy = (int) ((y + 0.5f) * scale);
+                expected[y * dstSize + x] =
+                        sx < width && sy < height ? frame[sy * width + sx] : 0xff000000;
+            }
+        }
+        return expected;
+    }
+
+    private void assertInputMatches(int[] argb, ByteBuffer input) {
+        final ByteBuffer expected = ByteBuffer.allocateDirect(input.capacity());
+        normalizer.write(argb, argb.length, 1, expected);
+        assertEquals(expected.rewind(), input.rewind());
+    }
+}
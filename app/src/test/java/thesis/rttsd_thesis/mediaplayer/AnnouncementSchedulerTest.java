@@ -0,0 +1,127 @@
+package thesis.rttsd_thesis.mediaplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.COALESCED;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.DROPPED;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.PLAY;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.PRIORITY_ALERT;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.PRIORITY_LOW;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.PRIORITY_NORMAL;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.PRIORITY_URGENT;
+import static thesis.rttsd_thesis.mediaplayer.AnnouncementScheduler.QUEUED;
+
+/**
+ * Offers clips to the scheduler at given times and checks cooldowns, coalescing, priorities,
+ * preemption and the drop counts.
+ */
+public class AnnouncementSchedulerTest {
+    private static final long COOLDOWN = 10000;
+    private static final long MAX_WAIT = 5000;
+
+    private final AnnouncementScheduler scheduler = new AnnouncementScheduler(COOLDOWN, MAX_WAIT, 3);
+
+    @Test
+    public void repeatsWithinTheCooldownAreDropped() {
+        assertEquals(PLAY, scheduler.offer(1, PRIORITY_NORMAL, 0));
+        scheduler.finished();
+        assertEquals(DROPPED, scheduler.offer(1, PRIORITY_NORMAL, 100));
+        assertEquals(DROPPED, scheduler.offer(1, PRIORITY_NORMAL, COOLDOWN - 1));
+        assertEquals(PLAY, scheduler.offer(1, PRIORITY_NORMAL, COOLDOWN));
+        assertEquals(2, scheduler.getDroppedCount());
+        assertEquals(2, scheduler.getPlayedCount());
+    }
+
+    @Test
+    public void otherClipsAreNotHeldBackByACooldown() {
+        assertEquals(PLAY, scheduler.offer(1, PRIORITY_NORMAL, 0));
+        scheduler.finished();
+        assertEquals(PLAY, scheduler.offer(2, PRIORITY_NORMAL, 100));
+    }
+
+    @Test
+    public void duplicatePendingClipsAreCoalesced() {
+        scheduler.offer(1, PRIORITY_NORMAL, 0);
+        assertEquals(QUEUED, scheduler.offer(2, PRIORITY_LOW, 10));
+        assertEquals(COALESCED, scheduler.offer(2, PRIORITY_LOW, 20));
+        assertEquals(COALESCED, scheduler.offer(2, PRIORITY_LOW, 30));
+        assertEquals(1, scheduler.getBacklog());
+        assertEquals(2, scheduler.getCoalescedCount());
+
+        scheduler.finished();
+        assertEquals(2, scheduler.next(100));
+        scheduler.finished();
+        assertEquals(0, scheduler.next(200));
+    }
+
+    @Test
+    public void higherPriorityPlaysFirstAndInArrivalOrderWithin() {
+        scheduler.offer(1, PRIORITY_URGENT, 0);
+        scheduler.offer(2, PRIORITY_LOW, 10);
+        scheduler.offer(3, PRIORITY_NORMAL, 20);
+        scheduler.offer(4, PRIORITY_NORMAL, 30);
+
+        scheduler.finished();
+        assertEquals(3, scheduler.next(100));
+        scheduler.finished();
+        assertEquals(4, scheduler.next(200));
+        scheduler.finished();
+        assertEquals(2, scheduler.next(300));
+    }
+
+    @Test
+    public void coalescingRaisesThePriority() {
+        scheduler.offer(1, PRIORITY_URGENT, 0);
+        scheduler.offer(2, PRIORITY_NORMAL, 10);
+        scheduler.offer(3, PRIORITY_LOW, 20);
+        assertEquals(COALESCED, scheduler.offer(3, PRIORITY_URGENT, 30));
+
+        scheduler.finished();
+        assertEquals(3, scheduler.next(100));
+    }
+
+    @Test
+    public void higherPriorityPreemptsThePlayingClip() {
+        assertEquals(PLAY, scheduler.offer(1, PRIORITY_NORMAL, 0));
+        assertEquals(QUEUED, scheduler.offer(2, PRIORITY_NORMAL, 10));
+        assertEquals(PLAY, scheduler.offer(3, PRIORITY_ALERT, 20));
+        assertEquals(1, scheduler.getPreemptedCount());
+        // An equal priority waits.
+        assertEquals(QUEUED, scheduler.offer(4, PRIORITY_ALERT, 30));
+        assertEquals(2, scheduler.getBacklog());
+    }
+
+    @Test
+    public void staleClipsAndBacklogOverflowAreDropped() {
+        scheduler.offer(1, PRIORITY_URGENT, 0);
+        scheduler.offer(2, PRIORITY_NORMAL, 0);
+        scheduler.offer(3, PRIORITY_NORMAL, MAX_WAIT);
+        scheduler.offer(4, PRIORITY_NORMAL, MAX_WAIT);
+        // The backlog of 3 is full, the lowest priority newcomer does not fit.
+        assertEquals(DROPPED, scheduler.offer(5, PRIORITY_LOW, MAX_WAIT));
+        // A higher priority one pushes out the newest of the lowest.
+        assertEquals(QUEUED, scheduler.offer(6, PRIORITY_URGENT, MAX_WAIT));
+        assertEquals(3, scheduler.getBacklog());
+        assertEquals(2, scheduler.getDroppedCount());
+
+        scheduler.finished();
+        assertEquals(6, scheduler.next(MAX_WAIT + 1));
+        scheduler.finished();
+        // Clip 2 waited too long.
+        assertEquals(3, scheduler.next(MAX_WAIT + 2));
+        assertEquals(3, scheduler.getDroppedCount());
+        assertEquals(0, scheduler.getBacklog());
+    }
+
+    @Test
+    public void clearForgetsPendingButKeepsCooldowns() {
+        scheduler.offer(1, PRIORITY_NORMAL, 0);
+        scheduler.offer(2, PRIORITY_NORMAL, 10);
+        scheduler.clear();
+        assertEquals(0, scheduler.getBacklog());
+        assertEquals(0, scheduler.next(20));
+        assertEquals(DROPPED, scheduler.offer(1, PRIORITY_NORMAL, 30));
+        assertEquals(PLAY, scheduler.offer(2, PRIORITY_NORMAL, 40));
+    }
+}
@@ -0,0 +1,65 @@
+package thesis.rttsd_thesis.pipeline;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the mailbox hands out the latest frame, and that under contention every frame is
+ * either taken once or replaced once, in order.
+ */
+public class FrameMailboxTest {
+    private static final int FRAMES = 200000;
+
+    @Test
+    public void latestFrameWins() {
+        FrameMailbox<Long> mailbox = new FrameMailbox<>();
+        Long first = 1L;
+        Long second = 2L;
+
+        assertNull(mailbox.post(first));
+        assertSame(first, mailbox.post(second));
+        assertSame(second, mailbox.take());
+        assertNull(mailbox.take());
+
+        assertEquals(2, mailbox.getPostedCount());
+        assertEquals(1, mailbox.getReplacedCount());
+        assertEquals(1, mailbox.getTakenCount());
+    }
+
+    @Test
+    public void everyFrameIsTakenOrReplacedOnce() throws Exception {
+        final FrameMailbox<Long> mailbox = new FrameMailbox<>();
+        final AtomicLong recycled = new AtomicLong();
+        Thread producer = new Thread(() -> {
+            for (long i = 0; i < FRAMES; i++) {
+                if (mailbox.post(i) != null) {
+                    recycled.incrementAndGet();
+                }
+            }
+        });
+        producer.start();
+
+        long taken = 0;
+        long last = -1;
+        while (producer.isAlive() || !mailbox.isEmpty()) {
+            Long frame = mailbox.take();
+            if (frame != null) {
+                assertTrue(frame > last);
+                last = frame;
+                taken++;
+            }
+        }
+        producer.join();
+
+        assertEquals(FRAMES - 1, last);
+        assertEquals(FRAMES, taken + recycled.get());
+        assertEquals(taken, mailbox.getTakenCount());
+        assertEquals(recycled.get(), mailbox.getReplacedCount());
+    }
+}
@@ -0,0 +1,223 @@
+package thesis.rttsd_thesis.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs frames through a pipeline of sleeping stages and checks ordering, overlap between stages,
+ * back pressure and the frames dropped on stop.
+ */
+public class FramePipelineTest {
+    private static final int STAGE_MILLIS = 20;
+
+    private static class Frame extends RefCountedFrame {
+        final List<String> visited = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean dropped;
+        volatile int sequence;
+    }
+
+    private static FramePool<Frame> frames(int count) {
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            frames.add(new Frame());
+        }
+        return new FramePool<>(frames);
+    }
+
+    private static FramePipeline.Stage<Frame> sleeping(final String name) {
+        return frame -> {
+            frame.visited.add(name);
+            Thread.sleep(STAGE_MILLIS);
+            return true;
+        };
+    }
+
+    @Test
+    public void framesVisitEveryStageInOrder() throws Exception {
+        FramePipeline<Frame> pipeline = new FramePipeline<>(frames(2));
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> order = new ArrayList<>();
+        pipeline.addStage("a", frame -> frame.visited.add("a"))
+                .addStage("b", frame -> frame.visited.add("b"))
+                .addStage("c", frame -> {
+                    frame.visited.add("c");
+                    order.addAll(frame.visited);
+                    done.countDown();
+                    return true;
+                });
+        pipeline.start();
+
+        Frame frame = pipeline.acquire();
+        pipeline.submit(frame);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        assertEquals(3, order.size());
+        assertEquals("a", order.get(0));
+        assertEquals("b", order.get(1));
+        assertEquals("c", order.get(2));
+        assertEquals(1, pipeline.getCompletedCount());
+    }
+
+    @Test
+    public void stagesOverlapAcrossFrames() throws Exception {
+        final int stages = 4;
+        final int count = 20;
+        FramePipeline<Frame> pipeline = new FramePipeline<>(frames(stages));
+        for (int s = 0; s < stages; s++) {
+            pipeline.addStage("s" + s, sleeping("s" + s));
+        }
+        pipeline.start();
+
+        final long start = System.nanoTime();
+        int submitted = 0;
+        while (submitted < count) {
+            Frame frame = pipeline.acquire();
+            if (frame == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            frame.visited.clear();
+            pipeline.submit(frame);
+            submitted++;
+        }
+        while (pipeline.getCompletedCount() < count) {
+            Thread.sleep(1);
+        }
+        final long millis = (System.nanoTime() - start) / 1000000;
+        List<FramePipeline.StageStats> stats = pipeline.getStageStats();
+        pipeline.stop();
+
+        // Serial execution takes count * stages * STAGE_MILLIS, a full pipeline about a quarter.
+        assertTrue("Pipelined " + count + " frames in " + millis + " ms, serial would take "
+                        + count * stages * STAGE_MILLIS + " ms",
+                millis < count * stages * STAGE_MILLIS * 3 / 4);
+        assertEquals(stages, stats.size());
+        for (FramePipeline.StageStats stage : stats) {
+            assertEquals(count, stage.processed);
+            assertTrue(stage.occupancy > 0 && stage.occupancy <= 1);
+        }
+    }
+
+    @Test
+    public void parallelStageKeepsFrameOrder() throws Exception {
+        final int count = 60;
+        FramePipeline<Frame> pipeline = new FramePipeline<>(frames(6));
+        final Random random = new Random(7);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        pipeline.addStage("parallel", frame -> {
+            int millis;
+            synchronized (random) {
+                millis = random.nextInt(STAGE_MILLIS);
+            }
+            Thread.sleep(millis);
+            // Every third frame ends here, the rest must still come out in order.
+            return frame.sequence % 3 != 0;
+        }, 3).addStage("collect", frame -> order.add(frame.sequence));
+        pipeline.start();
+
+        int submitted = 0;
+        while (submitted < count) {
+            Frame frame = pipeline.acquire();
+            if (frame == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            frame.sequence = submitted++;
+            pipeline.submit(frame);
+        }
+        while (pipeline.getCompletedCount() + pipeline.getSkippedCount() < count) {
+            Thread.sleep(1);
+        }
+        pipeline.stop();
+
+        assertEquals(count * 2 / 3, order.size());
+        for (int i = 1; i < order.size(); i++) {
+            assertTrue(order.get(i - 1) < order.get(i));
+        }
+    }
+
+    @Test
+    public void acquireReturnsNullWhileAllFramesAreInFlight() throws Exception {
+        FramePipeline<Frame> pipeline = new FramePipeline<>(frames(2));
+        final CountDownLatch release = new CountDownLatch(1);
+        pipeline.addStage("blocked", frame -> {
+            release.await();
+            return true;
+        });
+        pipeline.start();
+
+        pipeline.submit(pipeline.acquire());
+        pipeline.submit(pipeline.acquire());
+        assertNull(pipeline.acquire());
+        assertEquals(1, pipeline.getRejectedCount());
+
+        release.countDown();
+        while (pipeline.getCompletedCount() < 2) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, pipeline.getFreeCount());
+        pipeline.stop();
+    }
+
+    @Test
+    public void skippedFramesDoNotReachLaterStages() throws Exception {
+        FramePipeline<Frame> pipeline = new FramePipeline<>(frames(1));
+        pipeline.addStage("skip", frame -> false)
+                .addStage("never", frame -> {
+                    frame.visited.add("never");
+                    return true;
+                });
+        pipeline.start();
+
+        Frame frame = pipeline.acquire();
+        pipeline.submit(frame);
+        while (pipeline.getSkippedCount() < 1) {
+            Thread.sleep(1);
+        }
+        pipeline.stop();
+
+        assertTrue(frame.visited.isEmpty());
+        assertEquals(0, pipeline.getCompletedCount());
+        assertEquals(1, pipeline.getFreeCount());
+    }
+
+    @Test
+    public void stopDropsQueuedFrames() throws Exception {
+        FramePipeline<Frame> pipeline = new FramePipeline<>(frames(3));
+        final CountDownLatch entered = new CountDownLatch(1);
+        pipeline.addStage("slow", frame -> {
+            entered.countDown();
+            Thread.sleep(10000);
+            return true;
+        });
+        pipeline.setDropListener(frame -> frame.dropped = true);
+        pipeline.start();
+
+        List<Frame> submitted = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Frame frame = pipeline.acquire();
+            submitted.add(frame);
+            pipeline.submit(frame);
+        }
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        assertEquals(3, pipeline.getDroppedCount());
+        assertEquals(3, pipeline.getFreeCount());
+        for (Frame frame : submitted) {
+            assertTrue(frame.dropped);
+        }
+        assertNull(pipeline.acquire());
+    }
+}
@@ -0,0 +1,114 @@
+package thesis.rttsd_thesis.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks acquire and release semantics of the frame ring and that slots are recycled exactly once
+ * when several threads share them.
+ */
+public class FramePoolTest {
+    private static class Slot extends RefCountedFrame {
+        final AtomicInteger recycled = new AtomicInteger();
+
+        @Override
+        protected void onRecycle() {
+            recycled.incrementAndGet();
+        }
+    }
+
+    private static FramePool<Slot> pool(int count) {
+        List<Slot> slots = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            slots.add(new Slot());
+        }
+        return new FramePool<>(slots);
+    }
+
+    @Test
+    public void lastReleaseRecyclesTheSlot() {
+        FramePool<Slot> pool = pool(2);
+        Slot slot = pool.acquire();
+        slot.retain();
+        assertEquals(2, slot.getRefCount());
+
+        slot.release();
+        assertEquals(0, slot.recycled.get());
+        assertEquals(1, pool.getAvailableCount());
+
+        slot.release();
+        assertEquals(1, slot.recycled.get());
+        assertEquals(2, pool.getAvailableCount());
+        assertEquals(1, pool.getReturnedCount());
+    }
+
+    @Test
+    public void acquireReturnsNullWhenAllSlotsAreInUse() {
+        FramePool<Slot> pool = pool(2);
+        assertNotNull(pool.acquire());
+        assertNotNull(pool.acquire());
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getExhaustedCount());
+    }
+
+    @Test
+    public void releasingAFreeSlotFails() {
+        Slot slot = pool(1).acquire();
+        slot.release();
+        try {
+            slot.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            slot.retain();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void sharedSlotsAreRecycledOncePerUse() throws Exception {
+        final FramePool<Slot> pool = pool(3);
+        final int threads = 4;
+        final int rounds = 50000;
+        final AtomicInteger uses = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < rounds; i++) {
+                    Slot slot = pool.acquire();
+                    if (slot == null) {
+                        continue;
+                    }
+                    uses.incrementAndGet();
+                    // Hand a second reference to another holder and drop both.
+                    slot.retain();
+                    slot.release();
+                    slot.release();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        int recycled = 0;
+        for (int i = 0; i < 3; i++) {
+            Slot slot = pool.acquire();
+            recycled += slot.recycled.get();
+        }
+        assertEquals(uses.get(), recycled);
+        assertEquals(uses.get(), pool.getReturnedCount());
+    }
+}
@@ -0,0 +1,63 @@
+package thesis.rttsd_thesis.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static thesis.rttsd_thesis.tracking.SortTracker.NO_TRACK;
+
+/**
+ * Stores results for a few tracks and checks when they are used again and when the box has to be
+ * classified again.
+ */
+public class ClassificationCacheTest {
+    private static final long TTL = 1000;
+
+    private final ClassificationCache cache = new ClassificationCache(2, TTL, 0.8f, 1.5f);
+
+    @Test
+    public void aTrackedSignIsClassifiedOnceWithinTheTtl() {
+        assertNull(cache.get(1, 100, 0));
+        cache.put(1, "stop", 0.9f, 43, 100, 0);
+        final ClassificationCache.Entry entry = cache.get(1, 120, 500);
+        assertNotNull(entry);
+        assertEquals("stop", entry.getLabel());
+        assertEquals(43, entry.getSignId());
+        assertNull(cache.get(1, 120, TTL));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1 / 3f, cache.getHitRate(), 1e-6f);
+    }
+
+    @Test
+    public void aGrownBoxIsClassifiedAgain() {
+        cache.put(1, "stop", 0.9f, 43, 100, 0);
+        assertNotNull(cache.get(1, 150, 10));
+        assertNull(cache.get(1, 151, 20));
+    }
+
+    @Test
+    public void unsureResultsAndUntrackedBoxesAreNotCached() {
+        cache.put(1, "stop", 0.5f, 43, 100, 0);
+        assertNull(cache.get(1, 100, 10));
+        cache.put(NO_TRACK, "stop", 0.9f, 43, 100, 0);
+        assertNull(cache.get(NO_TRACK, 100, 10));
+
+        // A confident result followed by an unsure one is forgotten.
+        cache.put(2, "stop", 0.9f, 43, 100, 0);
+        cache.put(2, "yield", 0.5f, 47, 100, 10);
+        assertNull(cache.get(2, 100, 20));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedTrackIsEvicted() {
+        cache.put(1, "stop", 0.9f, 43, 100, 0);
+        cache.put(2, "yield", 0.9f, 47, 100, 0);
+        cache.get(1, 100, 10);
+        cache.put(3, "no entry", 0.9f, 22, 100, 20);
+        assertNotNull(cache.get(1, 100, 30));
+        assertNull(cache.get(2, 100, 30));
+        assertNotNull(cache.get(3, 100, 30));
+    }
+}
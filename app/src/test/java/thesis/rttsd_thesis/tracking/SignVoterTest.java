@@ -0,0 +1,91 @@
+package thesis.rttsd_thesis.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static thesis.rttsd_thesis.tracking.SignVoter.NONE;
+
+/**
+ * Votes classifications of a few frames per track and checks when a sign is committed, kept and
+ * replaced.
+ */
+public class SignVoterTest {
+    private static final float HALF_LIFE = 4;
+    private static final int STOP = 43;
+    private static final int YIELD = 47;
+    private static final int LIMIT_50 = 5;
+
+    private final SignVoter voter = new SignVoter(4, HALF_LIFE, 1.5f, 0.5f);
+
+    @Test
+    public void aSignIsCommittedOnceFramesAgree() {
+        assertEquals(NONE, voter.vote(1, STOP, 0.9f));
+        assertEquals(STOP, voter.vote(1, STOP, 0.9f));
+        assertEquals(STOP, voter.getCommitted(1));
+        assertTrue(voter.getConfidence(1) > 0.99f);
+    }
+
+    @Test
+    public void oneMisclassifiedFrameChangesNothing() {
+        voter.vote(1, STOP, 0.9f);
+        voter.vote(1, STOP, 0.9f);
+        assertEquals(STOP, voter.vote(1, LIMIT_50, 0.95f));
+        assertEquals(STOP, voter.vote(1, STOP, 0.9f));
+
+        // Nor can it commit a sign on its own.
+        assertEquals(NONE, voter.vote(2, LIMIT_50, 1f));
+        assertEquals(NONE, voter.vote(2, STOP, 0.9f));
+    }
+
+    @Test
+    public void oldEvidenceDecaysPerVote() {
+        voter.vote(1, STOP, 0.9f);
+        // Two half lives of votes without a sign later the first frame counts a quarter.
+        for (int i = 0; i < 2 * HALF_LIFE - 1; i++) {
+            assertEquals(NONE, voter.vote(1, -1, 0));
+        }
+        assertEquals(NONE, voter.vote(1, STOP, 0.9f));
+        assertEquals(STOP, voter.vote(1, STOP, 0.9f));
+    }
+
+    @Test
+    public void lowFrameRatesCommitAsFastAsHighOnes() {
+        // The votes carry no time, at two frames per second two agreeing frames still commit.
+        assertEquals(NONE, voter.vote(1, STOP, 0.9f));
+        assertEquals(STOP, voter.vote(1, STOP, 0.9f));
+    }
+
+    @Test
+    public void aCommittedSignIsReplacedWhenOutvoted() {
+        voter.vote(1, STOP, 0.9f);
+        voter.vote(1, STOP, 0.9f);
+        int committed = STOP;
+        for (int frame = 0; frame < 10 && committed == STOP; frame++) {
+            committed = voter.vote(1, YIELD, 0.9f);
+        }
+        assertEquals(YIELD, committed);
+        assertTrue(voter.getConfidence(1) < 1f);
+    }
+
+    @Test
+    public void theCommittedSignKeepsItsPlaceAmongManyCandidates() {
+        voter.vote(1, STOP, 0.9f);
+        voter.vote(1, STOP, 0.9f);
+        // Enough votes without a sign for it to be the weakest, then more candidates than there is
+        // room for.
+        for (int i = 0; i < 4 * HALF_LIFE; i++) {
+            voter.vote(1, -1, 0);
+        }
+        for (int sign = 100; sign < 106; sign++) {
+            assertEquals(STOP, voter.vote(1, sign, 0.2f));
+        }
+        assertTrue(voter.getConfidence(1) > 0);
+    }
+
+    @Test
+    public void untrackedBoxesAreNeverCommitted() {
+        assertEquals(NONE, voter.vote(SortTracker.NO_TRACK, STOP, 1f));
+        assertEquals(NONE, voter.vote(SortTracker.NO_TRACK, STOP, 1f));
+    }
+}
@@ -0,0 +1,146 @@
+package thesis.rttsd_thesis.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static thesis.rttsd_thesis.tracking.SortTracker.NO_TRACK;
+
+/**
+ * Feeds boxes moving over a few frames to the tracker and checks ids, birth and death of tracks,
+ * and the assignment.
+ */
+public class SortTrackerTest {
+    private static final int MAX_AGE = 2;
+    private static final int MIN_HITS = 2;
+
+    private final SortTracker tracker = new SortTracker(8, MAX_AGE, MIN_HITS, 0.3f);
+    private final int[] ids = new int[4];
+
+    private static float[] box(float left, float top, float size) {
+        return new float[] {left, top, left + size, top + size};
+    }
+
+    private static float[] boxes(float[]... boxes) {
+        final float[] all = new float[boxes.length * 4];
+        for (int i = 0; i < boxes.length; i++) {
+            System.arraycopy(boxes[i], 0, all, i * 4, 4);
+        }
+        return all;
+    }
+
+    @Test
+    public void aTrackIsReportedAfterMinHitsAndKeepsItsId() {
+        tracker.update(box(100, 100, 40), 1, ids);
+        assertEquals(NO_TRACK, ids[0]);
+        tracker.update(box(104, 100, 41), 1, ids);
+        final int id = ids[0];
+        assertNotEquals(NO_TRACK, id);
+        // Moving at a steady pace, further than the first frames' overlap would allow unpredicted.
+        for (int frame = 2; frame < 20; frame++) {
+            tracker.update(box(100 + 4 * frame, 100, 40 + frame), 1, ids);
+            assertEquals(id, ids[0]);
+        }
+        assertEquals(1, tracker.getTrackCount());
+    }
+
+    @Test
+    public void tentativeTracksKeepTheirCandidateIdOnceReported() {
+        final int[] candidateIds = new int[4];
+        tracker.update(box(100, 100, 40), 1, ids, candidateIds);
+        assertEquals(NO_TRACK, ids[0]);
+        final int candidateId = candidateIds[0];
+        assertNotEquals(NO_TRACK, candidateId);
+        tracker.update(box(104, 100, 41), 1, ids, candidateIds);
+        assertEquals(candidateId, ids[0]);
+        assertEquals(candidateId, candidateIds[0]);
+    }
+
+    @Test
+    public void objectsKeepTheirIdsWhateverTheDetectionOrder() {
+        tracker.update(boxes(box(0, 0, 50), box(200, 0, 50)), 2, ids);
+        tracker.update(boxes(box(5, 0, 50), box(195, 0, 50)), 2, ids);
+        final int left = ids[0];
+        final int right = ids[1];
+        assertNotEquals(left, right);
+        tracker.update(boxes(box(190, 0, 50), box(10, 0, 50)), 2, ids);
+        assertEquals(right, ids[0]);
+        assertEquals(left, ids[1]);
+    }
+
+    @Test
+    public void aMissedTrackCoastsUntilMaxAge() {
+        tracker.update(box(100, 100, 40), 1, ids);
+        tracker.update(box(100, 100, 40), 1, ids);
+        final int id = ids[0];
+        for (int miss = 0; miss < MAX_AGE; miss++) {
+            tracker.update(new float[0], 0, ids);
+            assertTrue(tracker.isAlive(id));
+        }
+        // Seen again in time, it is still the same track.
+        tracker.update(box(100, 100, 40), 1, ids);
+        assertEquals(id, ids[0]);
+
+        for (int miss = 0; miss <= MAX_AGE; miss++) {
+            tracker.update(new float[0], 0, ids);
+        }
+        assertFalse(tracker.isAlive(id));
+        assertEquals(0, tracker.getTrackCount());
+        tracker.update(box(100, 100, 40), 1, ids);
+        assertEquals(NO_TRACK, ids[0]);
+    }
+
+    @Test
+    public void aSingleFalseDetectionIsNeverReported() {
+        tracker.update(boxes(box(100, 100, 40), box(300, 300, 40)), 2, ids);
+        tracker.update(box(100, 100, 40), 1, ids);
+        tracker.update(box(100, 100, 40), 1, ids);
+        assertNotEquals(NO_TRACK, ids[0]);
+        for (int frame = 0; frame < MAX_AGE; frame++) {
+            tracker.update(box(100, 100, 40), 1, ids);
+        }
+        assertEquals(1, tracker.getTrackCount());
+    }
+
+    @Test
+    public void hungarianFindsTheCheapestAssignment() {
+        final SortTracker.Hungarian hungarian = new SortTracker.Hungarian();
+        // Greedy would take the 1 and then be left with the 10.
+        final float[] cost = {
+                1, 2,
+                2, 10,
+        };
+        final int[] square = hungarian.solve(cost, 2, 2);
+        assertEquals(1, square[0]);
+        assertEquals(0, square[1]);
+
+        final float[] wide = {
+                5, 1, 9,
+                1, 2, 9,
+        };
+        final int[] rows = hungarian.solve(wide, 2, 3);
+        assertEquals(1, rows[0]);
+        assertEquals(0, rows[1]);
+
+        final float[] tall = {
+                5, 1,
+                1, 2,
+                0, 0,
+        };
+        final int[] columns = hungarian.solve(tall, 3, 2);
+        // One row is left out, the zero row takes the column the cheaper of the others leaves.
+        float total = 0;
+        int unassigned = 0;
+        for (int row = 0; row < 3; row++) {
+            if (columns[row] < 0) {
+                unassigned++;
+            } else {
+                total += tall[row * 2 + columns[row]];
+            }
+        }
+        assertEquals(1, unassigned);
+        assertEquals(1f, total, 0f);
+    }
+}
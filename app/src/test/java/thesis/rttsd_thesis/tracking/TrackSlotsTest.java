@@ -0,0 +1,99 @@
+package thesis.rttsd_thesis.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static thesis.rttsd_thesis.tracking.SortTracker.NO_TRACK;
+
+/**
+ * Runs the slots along with a {@link SortTracker} the way {@link MultiBoxTracker} does, and checks
+ * that a track keeps its object while it coasts and that new tracks only take those of dead ones.
+ */
+public class TrackSlotsTest {
+    private static final int MAX_AGE = 2;
+
+    private final SortTracker tracker = new SortTracker(8, MAX_AGE, 2, 0.3f);
+    private final TrackSlots slots = new TrackSlots();
+    private final int[] ids = new int[8];
+
+    private static float[] at(float left) {
+        return new float[] {left, 100, left + 40, 140};
+    }
+
+    /** Tracks one frame, returns the object of each box, or -1 while its track is tentative. */
+    private int[] frame(float[]... boxes) {
+        final float[] all = new float[boxes.length * 4];
+        for (int i = 0; i < boxes.length; i++) {
+            System.arraycopy(boxes[i], 0, all, i * 4, 4);
+        }
+        tracker.update(all, boxes.length, ids);
+
+        final int[] objects = new int[boxes.length];
+        slots.reset();
+        for (int i = 0; i < boxes.length; i++) {
+            objects[i] = ids[i] != NO_TRACK ? slots.take(ids[i]) : -1;
+        }
+        for (int i = 0; i < boxes.length; i++) {
+            if (ids[i] != NO_TRACK && objects[i] < 0) {
+                objects[i] = slots.takeFree(ids[i], tracker);
+            }
+        }
+        return objects;
+    }
+
+    @Test
+    public void aCoastingTrackKeepsItsObjectWhileANewTrackStarts() {
+        final float[] a = at(0);
+        final float[] b = at(100);
+        final float[] c = at(200);
+        final float[] d = at(300);
+        final float[] e = at(400);
+        frame(a, b, d, e);
+        final int[] first = frame(a, b, d, e);
+        assertEquals(4, slots.size());
+        assertEquals(4, slots.capacity());
+
+        // A is missed while C starts, every object not taken belongs to A.
+        frame(b, d, e, c);
+        final int[] started = frame(b, d, e, c);
+        assertNotEquals(first[0], started[3]);
+        assertEquals(first[1], started[0]);
+        assertEquals(first[2], started[1]);
+        assertEquals(first[3], started[2]);
+        assertEquals(4, slots.size());
+
+        final int[] back = frame(a, b, d, e, c);
+        assertEquals(first[0], back[0]);
+        assertEquals(started[3], back[4]);
+        assertEquals(5, slots.size());
+    }
+
+    @Test
+    public void aNewTrackTakesTheObjectOfADeadOne() {
+        final float[] a = at(0);
+        final float[] b = at(100);
+        final float[] c = at(200);
+        final float[] d = at(300);
+        final float[] e = at(400);
+        frame(a, b, d, e);
+        final int[] first = frame(a, b, d, e);
+
+        for (int i = 0; i <= MAX_AGE; i++) {
+            frame(b, d, e);
+        }
+        frame(b, d, e, c);
+        final int[] started = frame(b, d, e, c);
+        assertEquals(first[0], started[3]);
+        assertEquals(4, slots.capacity());
+    }
+
+    @Test
+    public void objectsTakenThisFrameAreListedFirst() {
+        frame(at(0), at(100));
+        final int[] objects = frame(at(0), at(100));
+        frame(at(100));
+        assertEquals(1, slots.size());
+        assertEquals(objects[1], slots.get(0));
+    }
+}